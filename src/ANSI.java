@@ -1,107 +1,384 @@
-import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.awt.Color;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-import javax.swing.JTextPane;
+import javax.swing.text.AttributeSet;
 import javax.swing.text.BadLocationException;
-import javax.swing.text.html.HTMLDocument;
-import javax.swing.text.html.HTMLEditorKit;
-import javax.swing.text.html.StyleSheet;
+import javax.swing.text.Element;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
+import javax.swing.text.StyledDocument;
 
+/**
+ * Writes output with ANSI escape sequences to a styled document, as a
+ * terminal would show it. The parser is a state machine that keeps its state
+ * between calls, so sequences split across reads are understood. It handles
+ * SGR bold, italic, underline, inverse and colors, including 256 colors and
+ * truecolor, and a carriage return overwrites the current line so that
+ * progress bars update in place. Other sequences are skipped. Text from
+ * standard error has its own default color.
+ * <p>
+ * Text is gathered with the style of each character and goes into the
+ * document on {@link #flush()}, as one edit for the whole text plus one per
+ * run of another style. Styles come from a cache of the recently used
+ * attribute sets. Use from the event dispatch thread.
+ */
 public class ANSI {
-	public static void appendAnsiText(JTextPane textPane, String text) {
-		String html = ansiToHtml(text);
-		try {
-			HTMLEditorKit kit = (HTMLEditorKit) textPane.getEditorKit();
-			StyleSheet styleSheet = kit.getStyleSheet();
-			styleSheet.addRule("body { font-family: monospaced; color: white;}");
-			kit.insertHTML((HTMLDocument) textPane.getDocument(), textPane.getDocument().getLength(), html, 0, 0, null);
-		} catch (BadLocationException | IOException e) {
-			e.printStackTrace();
+	private static final Color DEFAULT_COLOR = Color.WHITE;
+	private static final Color ERROR_COLOR = new Color(0xD08770);
+	private static final Color[] PALETTE = { new Color(0x3B4252), new Color(0xBF616A), new Color(0xA3BE8C),
+			new Color(0xEBCB8B), new Color(0x81A1C1), new Color(0xB48EAD), new Color(0x88C0F0), new Color(0xFFFFFF),
+			new Color(0x4C566A), new Color(0xBF616A), new Color(0xA3BE8C), new Color(0xEBCB8B), new Color(0x81A1C1),
+			new Color(0xB48EAD), new Color(0x8FBCFF), new Color(0xECEFF4) };
+	private static final int BOLD = 1;
+	private static final int ITALIC = 2;
+	private static final int UNDERLINE = 4;
+	private static final int INVERSE = 8;
+	private static final int TEXT = 0;
+	private static final int ESCAPE = 1;
+	private static final int CSI = 2;
+	private static final int OSC = 3;
+	private static final int OSC_ESCAPE = 4;
+	private static final int CHARSET = 5;
+	private static final int MAX_STYLES = 256;
+	private final StyledDocument doc;
+	// recently used styles, few enough that truecolor output cannot grow them without end
+	private final Map<Long, AttributeSet> styles = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, AttributeSet> eldest) {
+			return size() > MAX_STYLES;
 		}
+	};
+	// the current style, with colors as rgb plus one and 0 for the default
+	private int foreground = 0;
+	private int background = 0;
+	private int flags = 0;
+	// whether the text comes from standard error, which has a color of its own by default
+	private boolean error = false;
+	private AttributeSet style;
+	private int state = TEXT;
+	private final int[] params = new int[16];
+	private int paramCount = 0;
+	private boolean privateSequence = false;
+	// text not yet in the document, which replaces the document from start on, with the style of each character
+	private char[] pending = new char[256];
+	private AttributeSet[] pendingStyles = new AttributeSet[256];
+	private int length = 0;
+	private int column = 0;
+	private int lastNewline = -1;
+	private int start;
+	private boolean eraseLine = false;
+	// where the last line of the document starts
+	private int lineStart;
+	private Scrollback scrollback = null;
+
+	public ANSI(StyledDocument doc) {
+		this.doc = doc;
+		style = style();
+		start = doc.getLength();
+		Element root = doc.getDefaultRootElement();
+		lineStart = root.getElement(root.getElementCount() - 1).getStartOffset();
+	}
+
+	// keeps the document to its last lines, spilling completed ones to the scrollback
+	public void setScrollback(Scrollback scrollback) {
+		this.scrollback = scrollback;
 	}
 
-	public static String ansiToHtml(String ansiText) {
-		StringBuilder html = new StringBuilder();
-		html.append("<pre style='display: inline; margin: 0;'>");
+	public boolean isError() {
+		return error;
+	}
 
-		String ansiRegex = "\\u001B\\[(\\d+;)?(\\d+)?m";
-		Pattern pattern = Pattern.compile(ansiRegex);
-		Matcher matcher = pattern.matcher(ansiText);
-		int lastEnd = 0;
+	public void setError(boolean error) {
+		this.error = error;
+		style = style();
+	}
 
-		while (matcher.find()) {
-			String prefix = ansiText.substring(lastEnd, matcher.start());
-			prefix = convertUnicodeToHtmlEntities(prefix);
-			html.append(prefix.replaceAll("<", "&lt;").replaceAll(">", "&gt;"));
+	// parses and shows the text
+	public void append(CharSequence text) {
+		parse(text);
+		flush();
+	}
 
-			String code = matcher.group();
-			String color = convertAnsiCodeToHtmlColor(code);
-			if (color != null) {
-				html.append("<span style='color: ").append(color).append(";'>");
-			} else if (code.equals("\u001B[0m")) {
-				html.append("</span>");
+	public void parse(CharSequence text) {
+		for (int i = 0, n = text.length(); i < n; i++) {
+			char c = text.charAt(i);
+			switch (state) {
+			case TEXT:
+				if (c == '\u001B')
+					state = ESCAPE;
+				else if (c == '\n')
+					newline();
+				else if (c == '\r')
+					carriageReturn();
+				else if (c == '\b')
+					column = Math.max(lastNewline + 1, column - 1);
+				else if (c >= ' ' || c == '\t')
+					write(c);
+				break;
+			case ESCAPE:
+				if (c == '[') {
+					state = CSI;
+					paramCount = 0;
+					params[0] = 0;
+					privateSequence = false;
+				} else if (c == ']')
+					state = OSC;
+				else if (c == '(' || c == ')')
+					state = CHARSET;
+				else
+					state = TEXT;
+				break;
+			case CSI:
+				if (c >= '0' && c <= '9') {
+					if (paramCount == 0)
+						paramCount = 1;
+					params[paramCount - 1] = Math.min(params[paramCount - 1] * 10 + c - '0', 0xFFFFFF);
+				} else if (c == ';') {
+					if (paramCount == 0)
+						paramCount = 1;
+					if (paramCount < params.length)
+						params[paramCount++] = 0;
+				} else if (c >= '<' && c <= '?')
+					privateSequence = true;
+				else if (c >= '@' && c <= '~') {
+					if (!privateSequence)
+						control(c);
+					state = TEXT;
+				}
+				break;
+			case OSC:
+				if (c == '\u0007')
+					state = TEXT;
+				else if (c == '\u001B')
+					state = OSC_ESCAPE;
+				break;
+			case OSC_ESCAPE:
+				state = c == '\\' ? TEXT : OSC;
+				break;
+			case CHARSET:
+				state = TEXT;
+				break;
 			}
+		}
+	}
+
+	// adds a line of its own in a dimmed style, cutting short any escape sequence
+	public void note(String text) {
+		state = TEXT;
+		boolean lineStarted = length > 0 ? pending[length - 1] != '\n' : doc.getLength() > lineStart;
+		if (lineStarted)
+			newline();
+		AttributeSet saved = style;
+		int savedFlags = flags;
+		int savedForeground = foreground;
+		flags = ITALIC;
+		foreground = PALETTE[8].getRGB() & 0xFFFFFF | 0x1000000;
+		style = style();
+		for (int i = 0; i < text.length(); i++)
+			write(text.charAt(i));
+		newline();
+		style = saved;
+		flags = savedFlags;
+		foreground = savedForeground;
+	}
+
+	private void control(char c) {
+		if (c == 'm')
+			select();
+		else if (c == 'K') {
+			int mode = paramCount == 0 ? 0 : params[0];
+			if (mode == 2)
+				carriageReturn();
+			if (mode == 0 || mode == 2) {
+				// the rest of the line goes, both pending and in the document
+				length = column;
+				if (lastNewline < 0 && start < doc.getLength())
+					eraseLine = true;
+			}
+		}
+	}
+
+	// applies the parameters of an SGR sequence
+	private void select() {
+		if (paramCount == 0)
+			paramCount = 1;
+		for (int i = 0; i < paramCount; i++) {
+			int code = params[i];
+			if (code == 0) {
+				foreground = 0;
+				background = 0;
+				flags = 0;
+			} else if (code == 1)
+				flags |= BOLD;
+			else if (code == 3)
+				flags |= ITALIC;
+			else if (code == 4)
+				flags |= UNDERLINE;
+			else if (code == 7)
+				flags |= INVERSE;
+			else if (code == 22)
+				flags &= ~BOLD;
+			else if (code == 23)
+				flags &= ~ITALIC;
+			else if (code == 24)
+				flags &= ~UNDERLINE;
+			else if (code == 27)
+				flags &= ~INVERSE;
+			else if (code >= 30 && code <= 37)
+				foreground = PALETTE[code - 30].getRGB() & 0xFFFFFF | 0x1000000;
+			else if (code >= 90 && code <= 97)
+				foreground = PALETTE[code - 90 + 8].getRGB() & 0xFFFFFF | 0x1000000;
+			else if (code == 39)
+				foreground = 0;
+			else if (code >= 40 && code <= 47)
+				background = PALETTE[code - 40].getRGB() & 0xFFFFFF | 0x1000000;
+			else if (code >= 100 && code <= 107)
+				background = PALETTE[code - 100 + 8].getRGB() & 0xFFFFFF | 0x1000000;
+			else if (code == 49)
+				background = 0;
+			else if ((code == 38 || code == 48) && i + 1 < paramCount) {
+				int color = -1;
+				if (params[i + 1] == 5 && i + 2 < paramCount) {
+					color = indexedColor(params[i + 2]);
+					i += 2;
+				} else if (params[i + 1] == 2 && i + 4 < paramCount) {
+					color = (Math.min(params[i + 2], 255) << 16) | (Math.min(params[i + 3], 255) << 8)
+							| Math.min(params[i + 4], 255);
+					i += 4;
+				} else
+					i = paramCount;
+				if (color >= 0 && code == 38)
+					foreground = color | 0x1000000;
+				else if (color >= 0)
+					background = color | 0x1000000;
+			}
+		}
+		style = style();
+	}
+
+	// rgb of an entry of the 256 color palette: 16 base colors, a 6x6x6 cube and 24 grays
+	private static int indexedColor(int index) {
+		if (index < 16)
+			return PALETTE[index].getRGB() & 0xFFFFFF;
+		if (index < 232) {
+			index -= 16;
+			return (level(index / 36) << 16) | (level(index / 6 % 6) << 8) | level(index % 6);
+		}
+		int gray = 8 + 10 * (Math.min(index, 255) - 232);
+		return (gray << 16) | (gray << 8) | gray;
+	}
+
+	private static int level(int step) {
+		return step == 0 ? 0 : 55 + 40 * step;
+	}
 
-			lastEnd = matcher.end();
+	private AttributeSet style() {
+		long key = foreground | ((long) background << 25) | ((long) flags << 50) | (error ? 1L << 60 : 0);
+		AttributeSet attributes = styles.get(key);
+		if (attributes == null) {
+			attributes = attributes();
+			styles.put(key, attributes);
 		}
+		return attributes;
+	}
 
-		html.append(convertUnicodeToHtmlEntities(ansiText.substring(lastEnd).replaceAll("&", "&amp;"))
-				.replaceAll("<", "&lt;").replaceAll(">", "&gt;"));
-		html.append("</pre>");
-		return html.toString();
+	private AttributeSet attributes() {
+		Color fg = foreground != 0 ? new Color(foreground & 0xFFFFFF) : error ? ERROR_COLOR : DEFAULT_COLOR;
+		Color bg = background == 0 ? null : new Color(background & 0xFFFFFF);
+		if ((flags & INVERSE) != 0) {
+			Color swapped = bg == null ? Color.BLACK : bg;
+			bg = fg;
+			fg = swapped;
+		}
+		StyleContext context = StyleContext.getDefaultStyleContext();
+		AttributeSet attributes = context.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, fg);
+		if (bg != null)
+			attributes = context.addAttribute(attributes, StyleConstants.Background, bg);
+		if ((flags & BOLD) != 0)
+			attributes = context.addAttribute(attributes, StyleConstants.Bold, Boolean.TRUE);
+		if ((flags & ITALIC) != 0)
+			attributes = context.addAttribute(attributes, StyleConstants.Italic, Boolean.TRUE);
+		if ((flags & UNDERLINE) != 0)
+			attributes = context.addAttribute(attributes, StyleConstants.Underline, Boolean.TRUE);
+		return attributes;
 	}
 
-	private static String convertUnicodeToHtmlEntities(String text) {
-		StringBuilder result = new StringBuilder();
-		for (char c : text.toCharArray()) {
-			if (c > 127) { // Non-ASCII characters
-				result.append("&#").append((int) c).append(";");
-			} else {
-				result.append(c);
+	// writes at the column, over what is there
+	private void write(char c) {
+		if (column == pending.length) {
+			pending = Arrays.copyOf(pending, column * 2);
+			pendingStyles = Arrays.copyOf(pendingStyles, column * 2);
+		}
+		pending[column] = c;
+		pendingStyles[column++] = style;
+		length = Math.max(length, column);
+	}
+
+	private void newline() {
+		// the rest of an overwritten line stays as it is
+		if (start < doc.getLength() && lastNewline < 0) {
+			flush();
+			start = doc.getLength();
+		}
+		column = length;
+		write('\n');
+		lastNewline = column - 1;
+	}
+
+	private void carriageReturn() {
+		if (lastNewline >= 0)
+			column = lastNewline + 1;
+		else if (start == lineStart)
+			column = 0;
+		else {
+			// the line starts in the document, and is overwritten from there
+			flush();
+			start = lineStart;
+			column = 0;
+		}
+	}
+
+	// shows the pending text
+	public void flush() {
+		int end = doc.getLength();
+		start = Math.min(start, end);
+		lineStart = Math.min(lineStart, start);
+		if (length == 0 && !eraseLine)
+			return;
+		try {
+			int replaced = eraseLine ? end - start : Math.min(length, end - start);
+			if (replaced > 0)
+				doc.remove(start, replaced);
+			if (length > 0) {
+				AttributeSet first = pendingStyles[0];
+				doc.insertString(start, new String(pending, 0, length), first);
+				for (int i = 0; i < length;) {
+					int j = i + 1;
+					while (j < length && pendingStyles[j] == pendingStyles[i])
+						j++;
+					if (pendingStyles[i] != first)
+						doc.setCharacterAttributes(start + i, j - i, pendingStyles[i], true);
+					i = j;
+				}
 			}
+		} catch (BadLocationException e) {
+			e.printStackTrace();
 		}
-		return result.toString();
-	}
-
-	private static String convertAnsiCodeToHtmlColor(String code) {
-		switch (code) {
-		case "\u001B[30m":
-			return "#3B4252;"; // Black
-		case "\u001B[31m":
-			return "#BF616A;"; // Red
-		case "\u001B[32m":
-			return "#A3BE8C;"; // Green
-		case "\u001B[33m":
-			return "#EBCB8B;"; // Yellow
-		case "\u001B[34m":
-			return "#81A1C1;"; // Blue
-		case "\u001B[35m":
-			return "#B48EAD;"; // Magenta
-		case "\u001B[36m":
-			return "#88C0F0;"; // Cyan
-		case "\u001B[37m":
-			return "#FFFFFF;"; // White
-		case "\u001B[90m":
-			return "#4C566A;"; // Bright Black
-		case "\u001B[91m":
-			return "#BF616A;"; // Bright Red
-		case "\u001B[92m":
-			return "#A3BE8C;"; // Bright Green
-		case "\u001B[93m":
-			return "#EBCB8B;"; // Bright Yellow
-		case "\u001B[94m":
-			return "#81A1C1;"; // Bright Blue
-		case "\u001B[95m":
-			return "#B48EAD;"; // Bright Magenta
-		case "\u001B[96m":
-			return "#8FBCFF;"; // Bright Cyan
-		case "\u001B[97m":
-			return "#ECEFF4;"; // Bright White
-		case "\u001B[0m":
-			return null; // Reset
-		default:
-			return null;
+		if (lastNewline >= 0)
+			lineStart = start + lastNewline + 1;
+		// later text goes on from the column, over the rest of the line if any
+		start += column;
+		if (scrollback != null) {
+			int trimmed = scrollback.spill(lineStart);
+			start -= trimmed;
+			lineStart -= trimmed;
 		}
+		length = 0;
+		column = 0;
+		lastNewline = -1;
+		eraseLine = false;
 	}
 }
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+import org.fife.ui.rtextarea.RTextArea;
+
+/**
+ * Replaces all matches of a {@link SearchQuery} in a text area at once. The
+ * matches are collected first and the text of each run of them is rebuilt with
+ * their replacements, which then goes into the document as a single replace.
+ * Listeners hear of one removal and one insertion per run instead of an edit
+ * per match, and undo takes the whole replacement back in one step. A run ends
+ * where a long stretch of text without matches follows, since the document and
+ * its view spend time on every line an edit spans.
+ */
+public class BulkReplace {
+	private static final long MATCH_BUDGET = 5000;
+	// unchanged text that splits runs, costing more to reinsert than a separate edit does
+	private static final int SPLIT_GAP = 1 << 12;
+	private final int count;
+	private final long nanos;
+
+	private BulkReplace(int count, long nanos) {
+		this.count = count;
+		this.nanos = nanos;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * Replaces every match in the text area, which should be editable. Call on
+	 * the event dispatch thread.
+	 */
+	public static BulkReplace replaceAll(RTextArea textArea, SearchQuery query, String replacement)
+			throws BadLocationException {
+		long started = System.nanoTime();
+		Document doc = textArea.getDocument();
+		// the runs of matches as start and end offsets, and their replacements
+		List<int[]> runs = new ArrayList<>();
+		List<String> texts = new ArrayList<>();
+		int[] count = { 0 };
+		RuntimeException[] failure = { null };
+		doc.render(() -> {
+			try {
+				CharSequence text = query.limit(new DocumentText(doc), MATCH_BUDGET);
+				Segment segment = new Segment();
+				segment.setPartialReturn(true);
+				StringBuilder rebuilt = new StringBuilder();
+				int[] run = null;
+				int from = 0;
+				for (long match = query.find(text, 0, text.length() + 1); match >= 0; match = query.find(text, from,
+						text.length() + 1)) {
+					int start = SearchQuery.start(match);
+					int end = SearchQuery.end(match);
+					if (run != null && start - run[1] > SPLIT_GAP) {
+						texts.add(rebuilt.toString());
+						rebuilt.setLength(0);
+						run = null;
+					}
+					if (run == null) {
+						run = new int[] { start, end };
+						runs.add(run);
+					} else
+						append(doc, segment, run[1], start, rebuilt);
+					rebuilt.append(query.replacement(text, match, replacement));
+					run[1] = end;
+					count[0]++;
+					from = end > start ? end : end + 1;
+				}
+				if (run != null)
+					texts.add(rebuilt.toString());
+			} catch (RuntimeException e) {
+				failure[0] = e;
+			}
+		});
+		if (failure[0] != null)
+			throw failure[0];
+		if (count[0] > 0) {
+			int caret = textArea.getCaretPosition();
+			// the caret would otherwise follow, and post a repaint for, every edit
+			DefaultCaret defaultCaret = textArea.getCaret() instanceof DefaultCaret ? (DefaultCaret) textArea.getCaret()
+					: null;
+			int policy = defaultCaret != null ? defaultCaret.getUpdatePolicy() : DefaultCaret.UPDATE_WHEN_ON_EDT;
+			if (defaultCaret != null)
+				defaultCaret.setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+			textArea.beginAtomicEdit();
+			try {
+				// from the last run, so that the offsets of earlier ones stay put
+				for (int i = runs.size() - 1; i >= 0; i--)
+					((AbstractDocument) doc).replace(runs.get(i)[0], runs.get(i)[1] - runs.get(i)[0], texts.get(i), null);
+			} finally {
+				textArea.endAtomicEdit();
+				if (defaultCaret != null)
+					defaultCaret.setUpdatePolicy(policy);
+			}
+			textArea.setCaretPosition(Math.min(caret, doc.getLength()));
+		}
+		return new BulkReplace(count[0], System.nanoTime() - started);
+	}
+
+	// appends the text within [from, to) as it is
+	private static void append(Document doc, Segment segment, int from, int to, StringBuilder rebuilt) {
+		try {
+			while (from < to) {
+				doc.getText(from, to - from, segment);
+				rebuilt.append(segment.array, segment.offset, segment.count);
+				from += segment.count;
+			}
+		} catch (BadLocationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -1,4 +1,5 @@
 import org.fife.ui.rsyntaxtextarea.AbstractTokenMakerFactory;
+import org.fife.ui.rsyntaxtextarea.RSyntaxDocument;
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 import org.fife.ui.rsyntaxtextarea.SyntaxConstants;
 import org.fife.ui.rsyntaxtextarea.SyntaxScheme;
@@ -21,47 +22,93 @@ import javax.swing.event.DocumentListener;
 import javax.swing.event.TreeExpansionEvent;
 import javax.swing.event.TreeExpansionListener;
 import javax.swing.text.BadLocationException;
-import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.JTextComponent;
 import javax.swing.tree.DefaultTreeCellRenderer;
-import javax.swing.tree.DefaultTreeModel;
-import javax.swing.tree.TreeNode;
 import javax.swing.tree.TreePath;
 import javax.swing.tree.TreeSelectionModel;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.awt.event.ContainerAdapter;
+import java.awt.event.ContainerEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class CodeEditor extends JFrame {
 	private static final long serialVersionUID = 1431536465167923296L;
 	private JTree projectTree;
-	private DefaultTreeModel treeModel;
+	private ProjectTreeModel treeModel;
 	private JTabbedPane tabbedPane;
 	private JTabbedPane consoleTabbedPane;
 	private Map<File, Component> openFilesMap = new HashMap<>();
 	private Map<File, Boolean> dirtyMap = new HashMap<>();
-	private Map<Component, Process> consoleProcessMap = new HashMap<>();
+	// selections to make in files that are still loading
+	private final Map<File, int[]> pendingSelections = new HashMap<>();
+	private Map<Component, TaskExecutor.Run> consoleRunMap = new HashMap<>();
+	private final TaskExecutor taskExecutor = new TaskExecutor();
+	private TaskCache taskCache;
 	public File projectDir;
 	private File currentFile;
 	private Tasks languageConfig, baseLanguageConfig;
 	private ArrayList<String> log = new ArrayList<String>();
+	private final ExecutorService loadExecutor = daemonPool("Mango loader", 4);
+	private final ExecutorService saveExecutor = daemonPool("Mango saver", 4);
+	private final AtomicLong saveTotal = new AtomicLong();
+	private final AtomicLong saveDone = new AtomicLong();
+	private final AtomicBoolean saveRepaintPending = new AtomicBoolean();
+	private int savesInFlight = 0;
+	private Map<File, EditJournal> journals = new HashMap<>();
+	private Set<File> recoverFiles = new HashSet<>();
+	private JProgressBar saveProgress;
+	private ProjectWatcher watcher;
+	private volatile IgnoreRules ignoreRules;
+	private List<String> ignorePatterns;
+	private FileIndex fileIndex;
+	private TrigramIndex contentIndex;
+	// the last content index closed, which the next one waits for
+	private TrigramIndex closedContentIndex;
+	private final ExecutorService listExecutor = daemonPool("Mango lister", 2);
+	private final DirectoryLister directoryLister = new DirectoryLister(LISTING_CACHE);
+	private Map<ProjectTreeModel.DirectoryNode, List<Runnable>> pendingListings = new HashMap<>();
+	private Set<ProjectTreeModel.DirectoryNode> staleListings = new HashSet<>();
+	private static final int LISTING_BATCH = 500;
+	private static final int LISTING_CACHE = 64;
+	private static final long INDEX_CLOSE_WAIT_MS = 2000;
+	private static final long JOURNAL_WAIT_MS = 2000;
 
 	public void log(String message) {
 		log.add(message);
@@ -85,6 +132,18 @@ public class CodeEditor extends JFrame {
 			public void windowClosing(WindowEvent e) {
 				try {
 					promptSaveAllFiles();
+					forgetAllFiles();
+					if (fileIndex != null)
+						fileIndex.close();
+					if (contentIndex != null)
+						contentIndex.close();
+					// the indexes save in the background, which exiting would cut short
+					if (fileIndex != null)
+						fileIndex.awaitClose(INDEX_CLOSE_WAIT_MS);
+					if (contentIndex != null)
+						contentIndex.awaitClose(INDEX_CLOSE_WAIT_MS);
+					// discarded journals would otherwise offer to restore edits next time
+					EditJournal.awaitWrites(JOURNAL_WAIT_MS);
 					System.exit(0);
 				} catch (RuntimeException ex) {
 				}
@@ -98,9 +157,32 @@ public class CodeEditor extends JFrame {
 		upperSplitPane.setDividerLocation(200);
 
 		// Project Explorer
-		DefaultMutableTreeNode root = new DefaultMutableTreeNode("Project");
-		treeModel = new DefaultTreeModel(root);
-		projectTree = new JTree(treeModel);
+		treeModel = new ProjectTreeModel();
+		projectTree = new JTree(treeModel) {
+			private static final long serialVersionUID = 275798372257679170L;
+
+			@Override
+			public void updateUI() {
+				super.updateUI();
+				// with a fixed row height, the large model keeps state for expanded directories only, not every row
+				if (getRowHeight() <= 0)
+					setRowHeight(getFontMetrics(getFont()).getHeight() + 2);
+			}
+
+			@Override
+			public String getToolTipText(MouseEvent e) {
+				// paths are built only when a tooltip is shown
+				TreePath path = getPathForLocation(e.getX(), e.getY());
+				Object node = path != null ? path.getLastPathComponent() : null;
+				if (node instanceof ProjectTreeModel.FileNode)
+					return ((ProjectTreeModel.FileNode) node).getFile().getAbsolutePath();
+				if (node instanceof ProjectTreeModel.DirectoryNode)
+					return ((ProjectTreeModel.DirectoryNode) node).getFile().getAbsolutePath();
+				return null;
+			}
+		};
+		projectTree.setLargeModel(true);
+		ToolTipManager.sharedInstance().registerComponent(projectTree);
 		projectTree.setCellRenderer(new CustomTreeCellRenderer());
 		projectTree.getSelectionModel().setSelectionMode(TreeSelectionModel.DISCONTIGUOUS_TREE_SELECTION);
 		projectTree.addMouseListener(new MouseAdapter() {
@@ -108,13 +190,12 @@ public class CodeEditor extends JFrame {
 			public void mouseReleased(MouseEvent e) {
 				if (e.isPopupTrigger()) {
 					int row = projectTree.getClosestRowForLocation(e.getX(), e.getY());
-					projectTree.setSelectionRow(row);
+					if (!projectTree.isRowSelected(row))
+						projectTree.setSelectionRow(row);
 					TreePath path = projectTree.getPathForRow(row);
-					if (path != null) {
-						DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) path.getLastPathComponent();
-						File selectedFile = (File) selectedNode.getUserObject();
+					File selectedFile = path != null ? ProjectTreeModel.fileOf(path.getLastPathComponent()) : null;
+					if (selectedFile != null)
 						showFileContextMenu(e.getX(), e.getY(), selectedFile);
-					}
 				}
 			}
 
@@ -125,28 +206,30 @@ public class CodeEditor extends JFrame {
 					TreePath path = projectTree.getPathForRow(row);
 					if (path != null) {
 						projectTree.setSelectionPath(path);
-						DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) path.getLastPathComponent();
-						if (selectedNode != null) {
-							File selectedFile = (File) selectedNode.getUserObject();
-							if (selectedFile.isDirectory())
-								addFilesToNode(selectedNode, selectedFile);
-							else
-								openFile(selectedFile);
-						}
+						Object selectedNode = path.getLastPathComponent();
+						if (selectedNode instanceof ProjectTreeModel.DirectoryNode)
+							addFilesToNode((ProjectTreeModel.DirectoryNode) selectedNode);
+						else if (selectedNode instanceof ProjectTreeModel.FileNode)
+							openFile(((ProjectTreeModel.FileNode) selectedNode).getFile());
 					}
 				}
 			}
 		});
+		projectTree.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_ENTER, 0), "openSelected");
+		projectTree.getActionMap().put("openSelected", new AbstractAction() {
+			private static final long serialVersionUID = -6286471873506123349L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				openSelectedFiles();
+			}
+		});
 		projectTree.addTreeExpansionListener(new TreeExpansionListener() {
 			@Override
 			public void treeExpanded(TreeExpansionEvent event) {
-				DefaultMutableTreeNode node = (DefaultMutableTreeNode) event.getPath().getLastPathComponent();
-				// System.out.println(node.getUserObject());
-				File file = (File) new File(node.getUserObject().toString());
-				if (file.isDirectory()
-						&& (node.getChildCount() == 1 && node.getChildAt(0).toString().equals("Loading..."))) {
-					addFilesToNode(node, file);
-				}
+				Object node = event.getPath().getLastPathComponent();
+				if (node instanceof ProjectTreeModel.DirectoryNode)
+					addFilesToNode((ProjectTreeModel.DirectoryNode) node);
 			}
 
 			@Override
@@ -157,7 +240,9 @@ public class CodeEditor extends JFrame {
 		addWindowFocusListener(new WindowFocusListener() {
 			@Override
 			public void windowGainedFocus(WindowEvent e) {
-				refreshContent(projectTree);
+				// the watcher keeps the tree up to date; rebuild only where it is unavailable
+				if (watcher == null && projectDir != null)
+					refreshContent(projectTree);
 			}
 
 			@Override
@@ -170,12 +255,38 @@ public class CodeEditor extends JFrame {
 
 		// Editor Panel with Tabs
 		tabbedPane = new JTabbedPane();
+		tabbedPane.addChangeListener(new ChangeListener() {
+			public void stateChanged(ChangeEvent e) {
+				if (tabbedPane.getTabCount() > 0 && tabbedPane.getSelectedComponent() != null) {
+					for (Map.Entry<File, Component> entry : openFilesMap.entrySet()) {
+						if (getParentInPane(entry.getValue()) == tabbedPane.getSelectedComponent()) {
+							currentFile = entry.getKey();
+							updateTreeSelection(currentFile);
+							break;
+						}
+					}
+				}
+			}
+		});
 		upperSplitPane.setRightComponent(tabbedPane);
 
 		splitPane.setTopComponent(upperSplitPane);
 
 		// Console Tabs
 		consoleTabbedPane = new JTabbedPane();
+		consoleTabbedPane.addContainerListener(new ContainerAdapter() {
+			@Override
+			public void componentRemoved(ContainerEvent e) {
+				// however a console tab is closed, its scrollback file goes
+				if (e.getChild() instanceof JScrollPane
+						&& ((JScrollPane) e.getChild()).getViewport().getView() instanceof JTextPane) {
+					Object scrollback = ((JTextPane) ((JScrollPane) e.getChild()).getViewport().getView()).getDocument()
+							.getProperty(Scrollback.PROPERTY);
+					if (scrollback != null)
+						((Scrollback) scrollback).close();
+				}
+			}
+		});
 		splitPane.setBottomComponent(consoleTabbedPane);
 
 		getContentPane().add(splitPane, BorderLayout.CENTER);
@@ -217,6 +328,10 @@ public class CodeEditor extends JFrame {
 		saveButton.setToolTipText("Save current file (Ctrl+S)");
 		saveButton.addActionListener(e -> saveCurrentFile());
 		searchReplaceToolBar.add(saveButton);
+		saveProgress = new JProgressBar(0, 100);
+		saveProgress.setToolTipText("Saving");
+		saveProgress.setPreferredSize(new Dimension(60, 8));
+		saveProgress.setVisible(false);
 
 		// Search Button
 		JButton searchButton = new JButton(
@@ -226,6 +341,13 @@ public class CodeEditor extends JFrame {
 		searchButton.addActionListener(e -> Search.getInstance().showSearchDialog(this));
 		searchReplaceToolBar.add(searchButton);
 
+		JButton findInFilesButton = new JButton(
+				new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/search.png")).getImage()
+						.getScaledInstance(24, 24, Image.SCALE_SMOOTH)));
+		findInFilesButton.setToolTipText("Find in files (Ctrl+Shift+F)");
+		findInFilesButton.addActionListener(e -> FindInFiles.showFindDialog(this));
+		searchReplaceToolBar.add(findInFilesButton);
+
 		// Replace Button
 		JButton replaceButton = new JButton(
 				new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/replace.png")).getImage()
@@ -270,6 +392,7 @@ public class CodeEditor extends JFrame {
 		toolBarPanel.add(mainToolBar);
 		toolBarPanel.add(searchReplaceToolBar);
 		toolBarPanel.add(editToolBar);
+		toolBarPanel.add(saveProgress);
 
 		getContentPane().add(toolBarPanel, BorderLayout.NORTH);
 
@@ -301,7 +424,7 @@ public class CodeEditor extends JFrame {
 		}
 	}
 
-	private void openFile(File file) {
+	public void openFile(File file) {
 		if (file.getName().equals(".mango.yaml")) {
 			TasksEditor.createTasks(this);
 			return;
@@ -313,84 +436,162 @@ public class CodeEditor extends JFrame {
 		} else {
 			if (isImageFile(file)) {
 				openImageFile(file);
+			} else if (file.length() > getSettings().getLargeFileMB() * 1024L * 1024L) {
+				openLargeFile(file);
 			} else {
-				try {
-					String content = new String(Files.readAllBytes(file.toPath()));
-					RSyntaxTextArea textArea = new RSyntaxTextArea(content, 20, 80);
-					textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_NONE);
-					textArea.setCodeFoldingEnabled(true);
-					updateSyntaxHighlighter(file, textArea);
-					setupKeyBindings(textArea.getActionMap(), textArea.getInputMap());
+				openTextFile(file);
+			}
+		}
+	}
 
-					RTextScrollPane sp = new RTextScrollPane(textArea);
-
-					// Create tab component with close button
-					JPanel tabComponent = new JPanel(new BorderLayout());
-					tabComponent.setOpaque(false);
-					JLabel tabLabel = new JLabel(file.getName());
-					tabLabel.setToolTipText(file.getAbsolutePath());
-					JButton closeButton = new JButton(
-							new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/close.png")).getImage()
-									.getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
-					closeButton.setPreferredSize(new Dimension(16, 16));
-					closeButton.addActionListener(e -> closeFile(file));
-					closeButton.setFocusable(false);
-					tabComponent.add(tabLabel, BorderLayout.WEST);
-					tabComponent.add(closeButton, BorderLayout.EAST);
-
-					tabbedPane.addTab(file.getName(), sp);
-					tabbedPane.setTabComponentAt(tabbedPane.getTabCount() - 1, tabComponent);
-					tabbedPane.setSelectedComponent(sp);
-
-					// Add mouse listener to label for selecting the tab and showing context menu
-					tabLabel.addMouseListener(new MouseAdapter() {
-						@Override
-						public void mouseClicked(MouseEvent e) {
-							int tabIndex = tabbedPane.indexOfTabComponent(tabComponent);
-							if (tabIndex != -1) {
-								tabbedPane.setSelectedIndex(tabIndex);
-							}
+	/**
+	 * Opens the file and selects the given span of a (zero-based) line, once
+	 * the file has loaded.
+	 */
+	public void openFileAt(File file, int line, int column, int length) {
+		openFile(file);
+		Component component = openFilesMap.get(file);
+		if (component instanceof JTextComponent)
+			selectInLine((JTextComponent) component, line, column, length);
+		else
+			pendingSelections.put(file, new int[] { line, column, length });
+	}
 
-							if (SwingUtilities.isRightMouseButton(e)) {
-								showTabContextMenu(e, tabIndex);
-							}
-						}
-					});
+	private static void selectInLine(JTextComponent textArea, int line, int column, int length) {
+		Element lines = textArea.getDocument().getDefaultRootElement();
+		Element element = lines.getElement(Math.max(0, Math.min(line, lines.getElementCount() - 1)));
+		int start = Math.min(element.getStartOffset() + column, element.getEndOffset() - 1);
+		int end = Math.min(start + length, textArea.getDocument().getLength());
+		textArea.setCaretPosition(end);
+		textArea.moveCaretPosition(start);
+		textArea.requestFocusInWindow();
+	}
 
-					openFilesMap.put(file, textArea);
-					dirtyMap.put(file, false); // File initially not dirty
+	// documents of open files with edits that are not saved yet
+	public Map<File, Document> getUnsavedDocuments() {
+		Map<File, Document> unsaved = new HashMap<>();
+		for (Map.Entry<File, Component> entry : openFilesMap.entrySet())
+			if (Boolean.TRUE.equals(dirtyMap.get(entry.getKey())) && entry.getValue() instanceof JTextComponent)
+				unsaved.put(entry.getKey(), ((JTextComponent) entry.getValue()).getDocument());
+		return unsaved;
+	}
 
-					textArea.getDocument().addDocumentListener(new DocumentListener() {
-						@Override
-						public void insertUpdate(DocumentEvent e) {
-							setDirty(file, true);
-						}
+	private void openTextFile(File file) {
+		// read and decode in the background, then swap the editor in place of the placeholder
+		LoadingPanel placeholder = new LoadingPanel("Loading " + file.getName() + "...");
+		placeholder.onCancel(() -> closeFile(file));
+		addFileTab(file, placeholder);
+		openFilesMap.put(file, placeholder);
+		dirtyMap.put(file, false);
+		String syntaxStyle = syntaxStyleFor(file);
+		loadExecutor.submit(() -> {
+			RSyntaxDocument doc = new RSyntaxDocument(syntaxStyle);
+			try {
+				if (!FileLoader.load(file, doc, placeholder::setProgress, placeholder::isCancelled))
+					return;
+			} catch (IOException | BadLocationException ex) {
+				placeholder.fail("Failed to open: " + ex.getMessage());
+				SwingUtilities.invokeLater(() -> log(file.toString() + ": failed to open"));
+				return;
+			}
+			SwingUtilities.invokeLater(() -> showTextFile(file, placeholder, doc));
+		});
+	}
 
-						@Override
-						public void removeUpdate(DocumentEvent e) {
-							setDirty(file, true);
-						}
+	private void showTextFile(File file, Component placeholder, RSyntaxDocument doc) {
+		if (openFilesMap.get(file) != placeholder)
+			return;
+		boolean recovered = recoverFiles.remove(file);
+		boolean replayed = false;
+		if (recovered)
+			try {
+				EditJournal.replay(projectDir, file, doc);
+				replayed = true;
+			} catch (IOException e) {
+				log(file.toString() + ": failed to restore unsaved edits");
+				JOptionPane.showMessageDialog(this, "Some unsaved edits could not be restored: " + e.getMessage(),
+						"Restore", JOptionPane.WARNING_MESSAGE);
+			}
+		startJournal(file, doc, recovered, replayed);
+		RSyntaxTextArea textArea = new RSyntaxTextArea(doc, null, 20, 80);
+		textArea.setCodeFoldingEnabled(true);
+		updateSyntaxHighlighter(file, textArea);
+		setupKeyBindings(textArea.getActionMap(), textArea.getInputMap());
+		textArea.setCaretPosition(0);
+		textArea.discardAllEdits();
+		int[] selection = pendingSelections.remove(file);
+		if (selection != null)
+			selectInLine(textArea, selection[0], selection[1], selection[2]);
+
+		RTextScrollPane sp = new RTextScrollPane(textArea);
+		tabbedPane.setComponentAt(tabbedPane.indexOfComponent(placeholder), sp);
+		openFilesMap.put(file, textArea);
+
+		textArea.getDocument().addDocumentListener(new DocumentListener() {
+			@Override
+			public void insertUpdate(DocumentEvent e) {
+				FileSaver.markEdited(e.getDocument());
+				EditJournal journal = journals.get(file);
+				if (journal != null)
+					try {
+						journal.recordInsert(e.getOffset(), e.getDocument().getText(e.getOffset(), e.getLength()));
+					} catch (BadLocationException ex) {
+						ex.printStackTrace();
+					}
+				setDirty(file, true);
+			}
 
-						@Override
-						public void changedUpdate(DocumentEvent e) {
-							setDirty(file, true);
-						}
-					});
+			@Override
+			public void removeUpdate(DocumentEvent e) {
+				FileSaver.markEdited(e.getDocument());
+				EditJournal journal = journals.get(file);
+				if (journal != null)
+					journal.recordRemove(e.getOffset(), e.getLength());
+				setDirty(file, true);
+			}
 
-					tabbedPane.addChangeListener(new ChangeListener() {
-						public void stateChanged(ChangeEvent e) {
-							if (tabbedPane.getTabCount() > 0 && tabbedPane.getSelectedComponent() != null) {
-								for (Map.Entry<File, Component> entry : openFilesMap.entrySet()) {
-									if (getParentInPane(entry.getValue()) == tabbedPane.getSelectedComponent()) {
-										currentFile = entry.getKey();
-										updateTreeSelection(currentFile);
-										break;
-									}
-								}
-							}
-						}
-					});
+			@Override
+			public void changedUpdate(DocumentEvent e) {
+				setDirty(file, true);
+			}
+		});
+		if (recovered) {
+			FileSaver.markEdited(doc);
+			setDirty(file, true);
+			log(file.toString() + ": restored unsaved edits");
+		}
+	}
+
+	private void startJournal(File file, RSyntaxDocument doc, boolean recovered, boolean replayed) {
+		if (projectDir == null)
+			return;
+		try {
+			// a fully replayed journal keeps growing; a partial one restarts from what could be restored
+			EditJournal journal = EditJournal.open(projectDir, file, replayed);
+			if (recovered && !replayed)
+				journal.compact(doc);
+			journals.put(file, journal);
+		} catch (IOException e) {
+			log(file.toString() + ": edits are not journaled");
+		}
+	}
 
+	private void recoverJournals() {
+		// lets the journals of files just closed be discarded first
+		EditJournal.awaitWrites(JOURNAL_WAIT_MS);
+		List<File> recoverable = EditJournal.findRecoverable(projectDir);
+		if (recoverable.isEmpty())
+			return;
+		int option = JOptionPane.showConfirmDialog(this,
+				"Unsaved edits to " + recoverable.size() + " file(s) remain from a previous session. Restore them?",
+				"Restore unsaved edits", JOptionPane.YES_NO_OPTION);
+		for (File file : recoverable) {
+			if (option == JOptionPane.YES_OPTION) {
+				recoverFiles.add(file);
+				openFile(file);
+			} else {
+				try {
+					EditJournal.open(projectDir, file, false).discard();
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
@@ -398,6 +599,100 @@ public class CodeEditor extends JFrame {
 		}
 	}
 
+	private void openSelectedFiles() {
+		TreePath[] paths = projectTree.getSelectionPaths();
+		if (paths == null)
+			return;
+		for (TreePath path : paths) {
+			if (path.getLastPathComponent() instanceof ProjectTreeModel.FileNode)
+				openFile(((ProjectTreeModel.FileNode) path.getLastPathComponent()).getFile());
+		}
+	}
+
+	private void addFileTab(File file, Component content) {
+		// Create tab component with close button
+		JPanel tabComponent = new JPanel(new BorderLayout());
+		tabComponent.setOpaque(false);
+		JLabel tabLabel = new JLabel(file.getName());
+		tabLabel.setToolTipText(file.getAbsolutePath());
+		JButton closeButton = new JButton(
+				new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/close.png")).getImage()
+						.getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
+		closeButton.setPreferredSize(new Dimension(16, 16));
+		closeButton.addActionListener(e -> closeFile(file));
+		closeButton.setFocusable(false);
+		tabComponent.add(tabLabel, BorderLayout.WEST);
+		tabComponent.add(closeButton, BorderLayout.EAST);
+
+		tabbedPane.addTab(file.getName(), content);
+		tabbedPane.setTabComponentAt(tabbedPane.getTabCount() - 1, tabComponent);
+		tabbedPane.setSelectedComponent(content);
+
+		// Add mouse listener to label for selecting the tab and showing context menu
+		tabLabel.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				int tabIndex = tabbedPane.indexOfTabComponent(tabComponent);
+				if (tabIndex != -1) {
+					tabbedPane.setSelectedIndex(tabIndex);
+				}
+
+				if (SwingUtilities.isRightMouseButton(e)) {
+					showTabContextMenu(e, tabIndex);
+				}
+			}
+		});
+	}
+
+	private void openLargeFile(File file) {
+		// large files are mapped and indexed in the background, then shown read-only
+		LoadingPanel placeholder = new LoadingPanel("Indexing " + file.getName() + "...");
+		placeholder.onCancel(() -> closeFile(file));
+		addFileTab(file, placeholder);
+		openFilesMap.put(file, placeholder);
+		dirtyMap.put(file, false);
+
+		loadExecutor.submit(() -> {
+			try {
+				LargeFileDocument doc = LargeFileDocument.open(file, detectCharset(file), placeholder::setProgress,
+						placeholder::isCancelled);
+				SwingUtilities.invokeLater(() -> {
+					if (doc == null || openFilesMap.get(file) != placeholder)
+						return;
+					LargeFileTextArea textArea = new LargeFileTextArea(doc);
+					textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, textArea.getFont().getSize()));
+					setupKeyBindings(textArea.getActionMap(), textArea.getInputMap());
+					tabbedPane.setComponentAt(tabbedPane.indexOfComponent(placeholder), new JScrollPane(textArea));
+					openFilesMap.put(file, textArea);
+					int[] selection = pendingSelections.remove(file);
+					if (selection != null)
+						selectInLine(textArea, selection[0], selection[1], selection[2]);
+					log(file.toString() + ": opened read-only as a large file");
+				});
+			} catch (IOException ex) {
+				placeholder.fail("Failed to open: " + ex.getMessage());
+				SwingUtilities.invokeLater(() -> log(file.toString() + ": failed to open"));
+			}
+		});
+	}
+
+	private static Charset detectCharset(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer head = ByteBuffer.allocate(1 << 16);
+			channel.read(head);
+			head.flip();
+			return FileLoader.detectCharset(head);
+		}
+	}
+
+	static ExecutorService daemonPool(String name, int threads) {
+		return Executors.newFixedThreadPool(threads, runnable -> {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
 	private boolean isImageFile(File file) {
 		String[] imageExtensions = { ".jpg", ".jpeg", ".png", ".gif", ".bmp" };
 		for (String ext : imageExtensions) {
@@ -448,39 +743,9 @@ public class CodeEditor extends JFrame {
 			imagePanel.add(topPanel, BorderLayout.NORTH);
 			imagePanel.add(imageScrollPane, BorderLayout.CENTER);
 
-			JPanel tabComponent = new JPanel(new BorderLayout());
-			tabComponent.setOpaque(false);
-			JLabel tabLabel = new JLabel(file.getName());
-			tabLabel.setToolTipText(file.getAbsolutePath());
-			JButton closeButton = new JButton(new ImageIcon(new ImageIcon(getClass().getResource("/icons/close.png"))
-					.getImage().getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
-			closeButton.setPreferredSize(new Dimension(16, 16));
-			closeButton.addActionListener(e -> closeFile(file));
-			closeButton.setFocusable(false);
-			tabComponent.add(tabLabel, BorderLayout.WEST);
-			tabComponent.add(closeButton, BorderLayout.EAST);
-
-			tabbedPane.addTab(file.getName(), imagePanel);
-			tabbedPane.setTabComponentAt(tabbedPane.getTabCount() - 1, tabComponent);
-			tabbedPane.setSelectedComponent(imagePanel);
+			addFileTab(file, imagePanel);
 			openFilesMap.put(file, imageScrollPane);
 			dirtyMap.put(file, false);
-
-			// Add mouse listener to label for selecting the tab and showing context menu
-			tabLabel.addMouseListener(new MouseAdapter() {
-				@Override
-				public void mouseClicked(MouseEvent e) {
-					int tabIndex = tabbedPane.indexOfTabComponent(tabComponent);
-					if (tabIndex != -1) {
-						tabbedPane.setSelectedIndex(tabIndex);
-					}
-
-					if (SwingUtilities.isRightMouseButton(e)) {
-						showTabContextMenu(e, tabIndex);
-					}
-				}
-			});
-
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -513,13 +778,10 @@ public class CodeEditor extends JFrame {
 		if (hasUnsavedChanges) {
 			int option = JOptionPane.showConfirmDialog(this, "Save changes to the files being closed?", "Save Files",
 					JOptionPane.YES_NO_CANCEL_OPTION);
-			if (option == JOptionPane.YES_OPTION)
-				saveAllFiles();
-			else
+			if (option != JOptionPane.YES_OPTION || !saveAllFiles())
 				return;
 		}
-		openFilesMap.clear();
-		dirtyMap.clear();
+		forgetAllFiles();
 		tabbedPane.removeAll();
 	}
 
@@ -539,9 +801,7 @@ public class CodeEditor extends JFrame {
 		if (hasUnsavedChanges) {
 			int option = JOptionPane.showConfirmDialog(this, "Save changes to the files being closed?", "Save Files",
 					JOptionPane.YES_NO_CANCEL_OPTION);
-			if (option == JOptionPane.YES_OPTION)
-				saveAllFiles();
-			else
+			if (option != JOptionPane.YES_OPTION || !saveAllFiles())
 				return;
 		}
 		updateInverseTextAreaMap();
@@ -551,8 +811,7 @@ public class CodeEditor extends JFrame {
 				RSyntaxTextArea textArea = (RSyntaxTextArea) ((RTextScrollPane) component).getViewport().getView();
 				File file = getFileForTextArea(textArea);
 				if (file != null) {
-					openFilesMap.remove(file);
-					dirtyMap.remove(file);
+					forgetFile(file);
 				}
 			}
 			tabbedPane.remove(i);
@@ -575,9 +834,7 @@ public class CodeEditor extends JFrame {
 		if (hasUnsavedChanges) {
 			int option = JOptionPane.showConfirmDialog(this, "Save changes to the files being closed?", "Save Files",
 					JOptionPane.YES_NO_CANCEL_OPTION);
-			if (option == JOptionPane.YES_OPTION)
-				saveAllFiles();
-			else
+			if (option != JOptionPane.YES_OPTION || !saveAllFiles())
 				return;
 		}
 		updateInverseTextAreaMap();
@@ -587,8 +844,7 @@ public class CodeEditor extends JFrame {
 				RSyntaxTextArea textArea = (RSyntaxTextArea) ((RTextScrollPane) component).getViewport().getView();
 				File file = getFileForTextArea(textArea);
 				if (file != null) {
-					openFilesMap.remove(file);
-					dirtyMap.remove(file);
+					forgetFile(file);
 				}
 			}
 			tabbedPane.remove(i);
@@ -612,9 +868,7 @@ public class CodeEditor extends JFrame {
 		if (hasUnsavedChanges) {
 			int option = JOptionPane.showConfirmDialog(this, "Save changes to the files being closed?", "Save Files",
 					JOptionPane.YES_NO_CANCEL_OPTION);
-			if (option == JOptionPane.YES_OPTION)
-				saveAllFiles();
-			else
+			if (option != JOptionPane.YES_OPTION || !saveAllFiles())
 				return;
 		}
 		updateInverseTextAreaMap();
@@ -624,8 +878,7 @@ public class CodeEditor extends JFrame {
 				RSyntaxTextArea textArea = (RSyntaxTextArea) ((RTextScrollPane) component).getViewport().getView();
 				File file = getFileForTextArea(textArea);
 				if (file != null) {
-					openFilesMap.remove(file);
-					dirtyMap.remove(file);
+					forgetFile(file);
 				}
 			}
 			tabbedPane.remove(i);
@@ -636,8 +889,7 @@ public class CodeEditor extends JFrame {
 				RSyntaxTextArea textArea = (RSyntaxTextArea) ((RTextScrollPane) component).getViewport().getView();
 				File file = getFileForTextArea(textArea);
 				if (file != null) {
-					openFilesMap.remove(file);
-					dirtyMap.remove(file);
+					forgetFile(file);
 				}
 			}
 			tabbedPane.remove(i);
@@ -665,13 +917,15 @@ public class CodeEditor extends JFrame {
 	}
 
 	private void updateSyntaxHighlighter(File file, RSyntaxTextArea textArea) {
+		textArea.setSyntaxEditingStyle(syntaxStyleFor(file));
+	}
+
+	private String syntaxStyleFor(File file) {
 		if (languageConfig != null)
 			for (Tasks.Task task : languageConfig.getTasks().values()) {
 				for (String extension : task.getExtensions()) {
-					if (file.getName().endsWith("." + (extension.startsWith(".")?extension.substring(1):extension))) {
-						textArea.setSyntaxEditingStyle("text/" + task.getHighlighter().replace("text/", ""));
-						return;
-					}
+					if (file.getName().endsWith("." + (extension.startsWith(".")?extension.substring(1):extension)))
+						return "text/" + task.getHighlighter().replace("text/", "");
 				}
 			}
 		/*if (file.getName().endsWith(".bb")) {
@@ -683,44 +937,46 @@ public class CodeEditor extends JFrame {
 
 		
 		// handle some common languages based on extension
+		String style = SyntaxConstants.SYNTAX_STYLE_NONE;
 		if (file.getName().endsWith(".c"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_C);
+			style = SyntaxConstants.SYNTAX_STYLE_C;
 		if (file.getName().endsWith(".cpp") || file.getName().endsWith(".h"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_CPLUSPLUS);
+			style = SyntaxConstants.SYNTAX_STYLE_CPLUSPLUS;
 		if (file.getName().endsWith(".java") || file.getName().endsWith(".jar"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_JAVA);
+			style = SyntaxConstants.SYNTAX_STYLE_JAVA;
 		if (file.getName().endsWith(".js"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_JAVASCRIPT);
+			style = SyntaxConstants.SYNTAX_STYLE_JAVASCRIPT;
 		if (file.getName().endsWith(".css"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_CSS);
+			style = SyntaxConstants.SYNTAX_STYLE_CSS;
 		if (file.getName().endsWith(".html"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_HTML);
+			style = SyntaxConstants.SYNTAX_STYLE_HTML;
 		if (file.getName().endsWith(".cs"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_CSHARP);
+			style = SyntaxConstants.SYNTAX_STYLE_CSHARP;
 		if (file.getName().endsWith(".csv"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_CSV);
+			style = SyntaxConstants.SYNTAX_STYLE_CSV;
 		if (file.getName().endsWith(".go"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_GO);
+			style = SyntaxConstants.SYNTAX_STYLE_GO;
 		if (file.getName().endsWith(".ini"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_INI);
+			style = SyntaxConstants.SYNTAX_STYLE_INI;
 		if (file.getName().endsWith(".yaml"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_YAML);
+			style = SyntaxConstants.SYNTAX_STYLE_YAML;
 		if (file.getName().endsWith(".json"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_JSON_WITH_COMMENTS);
+			style = SyntaxConstants.SYNTAX_STYLE_JSON_WITH_COMMENTS;
 		if (file.getName().endsWith(".lua"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_LUA);
+			style = SyntaxConstants.SYNTAX_STYLE_LUA;
 		if (file.getName().endsWith(".lisp") || file.getName().endsWith(".lsp") || file.getName().endsWith(".l")
 				|| file.getName().endsWith(".cl") || file.getName().endsWith(".v"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_LISP);
+			style = SyntaxConstants.SYNTAX_STYLE_LISP;
 		if (file.getName().endsWith(".f90") || file.getName().endsWith(".for") || file.getName().endsWith(".f")
 				|| file.getName().endsWith(".f77"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_FORTRAN);
+			style = SyntaxConstants.SYNTAX_STYLE_FORTRAN;
 		if (file.getName().endsWith(".md"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_MARKDOWN);
+			style = SyntaxConstants.SYNTAX_STYLE_MARKDOWN;
 		if (file.getName().endsWith(".py"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_PYTHON);
+			style = SyntaxConstants.SYNTAX_STYLE_PYTHON;
 		if (file.getName().endsWith(".rb"))
-			textArea.setSyntaxEditingStyle(SyntaxConstants.SYNTAX_STYLE_RUBY);
+			style = SyntaxConstants.SYNTAX_STYLE_RUBY;
+		return style;
 	}
 
 	private void setDirty(File file, boolean dirty) {
@@ -728,20 +984,85 @@ public class CodeEditor extends JFrame {
 		updateTabLabel(file, dirty);
 	}
 
-	private void saveFile(File file) {
-		if (file != null && openFilesMap.containsKey(file)) {
+	// the returned future completes on the EDT, once the dirty state reflects the save
+	private CompletableFuture<Boolean> saveFile(File file) {
+		CompletableFuture<Boolean> result = new CompletableFuture<Boolean>();
+		if (file == null || !(openFilesMap.get(file) instanceof RSyntaxTextArea)) {
+			result.complete(true);
+			return result;
+		}
+		Document doc = ((RSyntaxTextArea) openFilesMap.get(file)).getDocument();
+		int length = doc.getLength();
+		startSaveProgress(length);
+		saveExecutor.submit(() -> {
 			try {
-				Component component = openFilesMap.get(file);
-				if (!(component instanceof RSyntaxTextArea))
-					return;
-				RSyntaxTextArea textArea = (RSyntaxTextArea) component;
-				Files.write(file.toPath(), textArea.getText().getBytes(), StandardOpenOption.TRUNCATE_EXISTING);
-				setDirty(file, false);
-			} catch (IOException e) {
-				JOptionPane.showMessageDialog(this, "Failed to save the file: " + e.toString(), "Error",
-						JOptionPane.ERROR_MESSAGE);
+				int revision = FileSaver.save(doc, file, chars -> advanceSaveProgress(chars));
+				SwingUtilities.invokeLater(() -> {
+					if (openFilesMap.containsKey(file)) {
+						boolean saved = FileSaver.getRevision(doc) == revision;
+						if (saved)
+							setDirty(file, false);
+						if (fileIndex != null)
+							fileIndex.refresh(file.getParentFile());
+						if (contentIndex != null)
+							contentIndex.update(file);
+						EditJournal journal = journals.get(file);
+						if (journal != null)
+							try {
+								journal.compact(saved ? null : doc);
+							} catch (IOException e) {
+								log(file.toString() + ": failed to compact the edit journal");
+							}
+					}
+					endSaveProgress();
+					result.complete(true);
+				});
+			} catch (IOException | RuntimeException e) {
+				SwingUtilities.invokeLater(() -> {
+					endSaveProgress();
+					log(file.toString() + ": failed to save");
+					JOptionPane.showMessageDialog(this, "Failed to save the file: " + e.toString(), "Error",
+							JOptionPane.ERROR_MESSAGE);
+					result.complete(false);
+				});
 			}
+		});
+		return result;
+	}
+
+	private void startSaveProgress(int chars) {
+		if (savesInFlight++ == 0) {
+			saveTotal.set(0);
+			saveDone.set(0);
 		}
+		saveTotal.addAndGet(Math.max(1, chars));
+		saveProgress.setValue(0);
+		saveProgress.setVisible(true);
+	}
+
+	// called by the background writers
+	private void advanceSaveProgress(int chars) {
+		saveDone.addAndGet(chars);
+		if (saveRepaintPending.compareAndSet(false, true))
+			SwingUtilities.invokeLater(() -> {
+				saveRepaintPending.set(false);
+				saveProgress.setValue((int) (100 * saveDone.get() / Math.max(1, saveTotal.get())));
+			});
+	}
+
+	private void endSaveProgress() {
+		if (--savesInFlight == 0)
+			saveProgress.setVisible(false);
+	}
+
+	// keeps the UI responsive (and painting progress) while waiting for a background operation
+	private void waitFor(CompletableFuture<?> future) {
+		if (future.isDone())
+			return;
+		SecondaryLoop loop = Toolkit.getDefaultToolkit().getSystemEventQueue().createSecondaryLoop();
+		future.whenComplete((result, error) -> loop.exit());
+		if (!future.isDone())
+			loop.enter();
 	}
 
 	private void saveCurrentFile() {
@@ -750,10 +1071,14 @@ public class CodeEditor extends JFrame {
 		}
 	}
 
-	private void saveAllFiles() {
-		for (Map.Entry<File, Component> entry : openFilesMap.entrySet()) {
-			saveFile(entry.getKey());
-		}
+	// saves all modified files in parallel and waits for them; returns false if any failed
+	private boolean saveAllFiles() {
+		ArrayList<CompletableFuture<Boolean>> saves = new ArrayList<CompletableFuture<Boolean>>();
+		for (Map.Entry<File, Boolean> entry : dirtyMap.entrySet())
+			if (entry.getValue())
+				saves.add(saveFile(entry.getKey()));
+		waitFor(CompletableFuture.allOf(saves.toArray(new CompletableFuture<?>[0])));
+		return saves.stream().allMatch(CompletableFuture::join);
 	}
 
 	private void promptSaveAllFiles() {
@@ -762,7 +1087,8 @@ public class CodeEditor extends JFrame {
 			int option = JOptionPane.showConfirmDialog(this, "Save changes to the files being closed?", "Save Files",
 					JOptionPane.YES_NO_CANCEL_OPTION);
 			if (option == JOptionPane.YES_OPTION) {
-				saveAllFiles();
+				if (!saveAllFiles())
+					throw new RuntimeException("Saving failed.");
 			} else if (option == JOptionPane.CANCEL_OPTION) {
 				throw new RuntimeException("Operation cancelled by the user.");
 			}
@@ -776,19 +1102,34 @@ public class CodeEditor extends JFrame {
 						"Do you want to save changes to " + file.getName() + "?", "Save File",
 						JOptionPane.YES_NO_CANCEL_OPTION);
 				if (option == JOptionPane.YES_OPTION) {
-					saveFile(file);
+					CompletableFuture<Boolean> save = saveFile(file);
+					waitFor(save);
+					if (!save.join())
+						return;
 				} else if (option == JOptionPane.CANCEL_OPTION) {
 					return;
 				}
 			}
 			tabbedPane.remove(getParentInPane(openFilesMap.get(file)));
-			openFilesMap.remove(file);
-			dirtyMap.remove(file);
+			forgetFile(file);
 		} else {
 			throw new RuntimeException("No file to close");
 		}
 	}
 
+	private void forgetFile(File file) {
+		openFilesMap.remove(file);
+		dirtyMap.remove(file);
+		EditJournal journal = journals.remove(file);
+		if (journal != null)
+			journal.discard();
+	}
+
+	private void forgetAllFiles() {
+		for (File file : new ArrayList<File>(openFilesMap.keySet()))
+			forgetFile(file);
+	}
+
 	private Component getParentInPane(Component component) {
 		while (true) {
 			Component parent = component.getParent();
@@ -801,8 +1142,7 @@ public class CodeEditor extends JFrame {
 	private void closeAllFiles() {
 		promptSaveAllFiles();
 		tabbedPane.removeAll();
-		openFilesMap.clear();
-		dirtyMap.clear();
+		forgetAllFiles();
 	}
 
 	private void runCommand() {
@@ -841,8 +1181,10 @@ public class CodeEditor extends JFrame {
 		}
 
 		Tasks.Task runLanguage = null;
+		String runName = null;
 		if (alternatives.size() == 1) {
-			runLanguage = new ArrayList<Tasks.Task>(alternatives.values()).get(0);
+			runName = alternatives.keySet().iterator().next();
+			runLanguage = alternatives.get(runName);
 		} else {
 			String[] options = new String[alternatives.size() + 1];
 			HashMap<Integer, Tasks.Task> optionToTask = new HashMap<Integer, Tasks.Task>();
@@ -860,8 +1202,10 @@ public class CodeEditor extends JFrame {
 
 			if (choice == JOptionPane.CLOSED_OPTION || choice == alternatives.size())
 				return;
-			else
+			else {
+				runName = options[choice];
 				runLanguage = optionToTask.get(choice);
+			}
 		}
 		assert runLanguage != null; // this should be impossible right now
 		try {
@@ -869,30 +1213,37 @@ public class CodeEditor extends JFrame {
 		} catch (RuntimeException e) {
 			return;
 		}
+		TaskGraph graph;
+		try {
+			graph = new TaskGraph(languageConfig.getTasks(), runName);
+		} catch (IllegalArgumentException e) {
+			JOptionPane.showMessageDialog(this, e.getMessage(), "Cannot run", JOptionPane.ERROR_MESSAGE);
+			return;
+		}
 		String filepath = currentFile.getAbsolutePath().replace("\\", "/");
-		String os = System.getProperty("os.name");
-		String osCmd = os.toLowerCase().contains("windows") ? "cmd /C" : "";
-		String osBrowser = os.toLowerCase().contains("windows") ? "start" : "xdg-open";
-		String command = runLanguage
-				.getCommand().replace("{os}", os).replace("{cmd}", osCmd).replace("{open}",
-						osBrowser)
-				.replace("{path}",
-						filepath.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1) : ".")
-				.replace("{path/}", filepath
-						.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1)
-								: ".")
-				.replace("{path.}",
-						filepath.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1).replace("/", ".")
-								: ".")
-				.replace("{path\\}",
-						filepath.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1).replace("/", "\\")
-								: ".")
-				.replace("{file}",
-						filepath.contains(".")
-								? filepath.substring(filepath.lastIndexOf("/") + 1, filepath.lastIndexOf("."))
-								: filepath.substring(filepath.lastIndexOf("/") + 1))
-				.replace("{ext}", filepath.contains(".") ? filepath.substring(filepath.lastIndexOf(".")) : "");
+		// asks for every placeholder before anything runs, so that no run waits on a dialog
+		Map<String, String> commands = new HashMap<String, String>();
+		for (String name : graph.getOrder()) {
+			String command = promptPlaceholders(fillPlaceholders(languageConfig.getTasks().get(name).getCommand(), filepath));
+			if (command == null)
+				return;
+			commands.put(name, command);
+		}
+		Map<String, RunConsole> consoles = new HashMap<String, RunConsole>();
+		for (String name : graph.getOrder()) {
+			RunConsole tab = openConsole(graph.getOrder().size() > 1 ? name : "Console", commands.get(name));
+			consoles.put(name, tab);
+			tab.onStop = () -> cancelRuns(graph.cancel(name), name + " was stopped", consoles);
+			if (!graph.getDependencies(name).isEmpty()) {
+				tab.console.note("[waiting for " + String.join(", ", graph.getDependencies(name)) + "]");
+				tab.console.flush();
+			}
+		}
+		startRuns(graph, commands, consoles, filepath);
+	}
 
+	// replaces the placeholders left after the known ones with what the user enters, or returns null if cancelled
+	private String promptPlaceholders(String command) {
 		Pattern pattern = Pattern.compile("\\{(.*?)\\}");
 		Matcher matcher = pattern.matcher(command);
 
@@ -901,21 +1252,60 @@ public class CodeEditor extends JFrame {
 			String placeholder = matcher.group(1);
 			String userInput = JOptionPane.showInputDialog(this, "Enter " + placeholder + ":");
 			if (userInput == null)
-				return;
+				return null;
 			matcher.appendReplacement(resultString, userInput);
 		}
 		matcher.appendTail(resultString);
-		command = resultString.toString();
+		return resultString.toString();
+	}
+
+	// starts the tasks of the graph whose dependencies have succeeded, each in its console
+	private void startRuns(TaskGraph graph, Map<String, String> commands, Map<String, RunConsole> consoles,
+			String filepath) {
+		for (String name : graph.start()) {
+			RunConsole tab = consoles.get(name);
+			if (consoleTabbedPane.indexOfComponent(tab.scrollPane) < 0) {
+				cancelRuns(graph.finish(name, false), name + " was closed", consoles);
+				continue;
+			}
+			runTask(name, languageConfig.getTasks().get(name), commands.get(name), filepath, tab, exitCode -> {
+				cancelRuns(graph.finish(name, exitCode == 0), name + " failed", consoles);
+				startRuns(graph, commands, consoles, filepath);
+			});
+		}
+	}
+
+	private void cancelRuns(List<String> cancelled, String reason, Map<String, RunConsole> consoles) {
+		for (String name : cancelled) {
+			RunConsole tab = consoles.get(name);
+			tab.console.note("[cancelled as " + reason + "]");
+			tab.console.flush();
+			tab.stopButton.setVisible(false);
+		}
+	}
 
+	/**
+	 * A console tab for a task run, with what stops the run before it has
+	 * started.
+	 */
+	private static class RunConsole {
+		JScrollPane scrollPane;
+		ANSI console;
+		ConsoleBuffer output;
+		JButton stopButton;
+		Runnable onStop = null;
+	}
+
+	private RunConsole openConsole(String title, String command) {
 		JTextPane consoleOutput = new JTextPane();
-		consoleOutput.setContentType("text/html");
+		consoleOutput.setFont(new Font(Font.MONOSPACED, Font.PLAIN, consoleOutput.getFont().getSize()));
 		consoleOutput.setEditable(false);
 		consoleOutput.setBackground(Color.BLACK);
 		JScrollPane scrollPane = new JScrollPane(consoleOutput);
 
 		JPanel tabComponent = new JPanel(new BorderLayout());
 		tabComponent.setOpaque(false);
-		JLabel tabLabel = new JLabel("Console");
+		JLabel tabLabel = new JLabel(title);
 		JButton stopButton = new JButton(new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/stop.png"))
 				.getImage().getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
 		stopButton.setToolTipText("Force stop");
@@ -941,72 +1331,191 @@ public class CodeEditor extends JFrame {
 		consoleTabbedPane.setTabComponentAt(consoleTabbedPane.getTabCount() - 1, tabComponent);
 		consoleTabbedPane.setSelectedComponent(scrollPane);
 
-		ProcessBuilder processBuilder = new ProcessBuilder(command.split(" "));
-		processBuilder.directory(projectDir);
-		ANSI.appendAnsiText(consoleOutput, command + "\n\n");
+		ANSI console = new ANSI(consoleOutput.getStyledDocument());
 		try {
-			Process process = processBuilder.start();
-			stopButton.addActionListener(e -> stopProcess(process));
-			closeButton.addActionListener(e -> closeConsoleTab(process, scrollPane, consoleOutput));
-
-			consoleProcessMap.put(scrollPane, process); // Add process to the map
-
-			new Thread(() -> {
-				try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-					String line;
-					while ((line = reader.readLine()) != null) {
-						String l = line;
-						SwingUtilities.invokeLater(() -> ANSI.appendAnsiText(consoleOutput, l + "\n"));
-					}
-				} catch (IOException ex) {
-					ex.printStackTrace();
+			console.setScrollback(new Scrollback(consoleOutput.getDocument(), getSettings().getConsoleLines()));
+		} catch (IOException e) {
+			log("Console: no scrollback file, keeping all output in memory");
+		}
+		console.append(command + "\n\n");
+		RunConsole tab = new RunConsole();
+		tab.scrollPane = scrollPane;
+		tab.console = console;
+		tab.output = new ConsoleBuffer(console);
+		tab.stopButton = stopButton;
+		stopButton.addActionListener(e -> {
+			TaskExecutor.Run run = consoleRunMap.get(scrollPane);
+			if (run != null)
+				stopRun(run);
+			else if (tab.onStop != null)
+				tab.onStop.run();
+		});
+		closeButton.addActionListener(e -> closeConsoleTab(consoleRunMap.get(scrollPane), scrollPane, consoleOutput));
+
+		// Add mouse listener to tab for context menu
+		tabComponent.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (SwingUtilities.isRightMouseButton(e)) {
+					showConsoleContextMenu(e, consoleTabbedPane.indexOfTabComponent(tabComponent));
 				}
-				stopButton.setVisible(false);
-			}).start();
-
-			new Thread(() -> {
-				try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-					String line;
-					while ((line = reader.readLine()) != null) {
-						String l = line;
-						SwingUtilities.invokeLater(() -> ANSI.appendAnsiText(consoleOutput, l + "\n"));
-					}
-				} catch (IOException ex) {
-					ex.printStackTrace();
+			}
+		});
+		return tab;
+	}
+
+	/**
+	 * Runs the task's command in its console, or replays the cached run if the
+	 * task declares inputs and they are unchanged. onExit gets the exit code on
+	 * the event dispatch thread, or -1 if the run failed to start or was stopped.
+	 */
+	private void runTask(String name, Tasks.Task task, String command, String filepath, RunConsole tab,
+			IntConsumer onExit) {
+		ProcessBuilder processBuilder = new ProcessBuilder(command.split(" "));
+		processBuilder.directory(projectDir);
+		if (task.getInputs().isEmpty() || taskCache == null) {
+			startRun(name, task, processBuilder, tab, null, null, onExit);
+			return;
+		}
+		List<String> inputs = new ArrayList<String>();
+		for (String input : task.getInputs())
+			inputs.add(fillPlaceholders(input, filepath));
+		List<String> outputs = new ArrayList<String>();
+		for (String file : task.getOutputs())
+			outputs.add(fillPlaceholders(file, filepath));
+		TaskCache cache = taskCache;
+		cache.setMaxBytes(getSettings().getTaskCacheMB() * 1024L * 1024L);
+		cache.key(command, inputs, outputs).whenComplete((key, failure) -> {
+			if (failure != null) {
+				SwingUtilities.invokeLater(() -> {
+					log("Run: inputs not hashed, running without the cache");
+					if (consoleTabbedPane.indexOfComponent(tab.scrollPane) >= 0)
+						startRun(name, task, processBuilder, tab, null, null, onExit);
+					else
+						onExit.accept(-1);
+				});
+				return;
+			}
+			cache.lookup(key).thenAccept(hit -> SwingUtilities.invokeLater(() -> {
+				// the tab may have been closed while inputs were hashed
+				if (consoleTabbedPane.indexOfComponent(tab.scrollPane) < 0) {
+					onExit.accept(-1);
+					return;
 				}
-			}).start();
-
-			// Add mouse listener to tab for context menu
-			tabComponent.addMouseListener(new MouseAdapter() {
-				@Override
-				public void mouseClicked(MouseEvent e) {
-					if (SwingUtilities.isRightMouseButton(e)) {
-						showConsoleContextMenu(e, consoleTabbedPane.indexOfTabComponent(tabComponent));
-					}
+				if (hit == null) {
+					startRun(name, task, processBuilder, tab, key, outputs, onExit);
+					return;
 				}
-			});
+				tab.output.setOnClosed(() -> {
+					tab.console.note("[exited with code " + hit.getExitCode() + ", cached as inputs are unchanged]");
+					tab.console.flush();
+					tab.stopButton.setVisible(false);
+					onExit.accept(hit.getExitCode());
+				});
+				hit.replay(tab.output);
+			}));
+		});
+	}
 
-		} catch (Exception e) {
-			ANSI.appendAnsiText(consoleOutput, e.toString());
+	/**
+	 * Runs the task's process in its console. Given a cache key, the output of
+	 * the run is recorded and cached with the output files once it has exited.
+	 */
+	private void startRun(String name, Tasks.Task task, ProcessBuilder processBuilder, RunConsole tab, String key,
+			List<String> outputs, IntConsumer onExit) {
+		TaskCache.Recorder recorder = key == null ? null : new TaskCache.Recorder(tab.output);
+		ProcessPump.Sink sink = recorder != null ? recorder : tab.output;
+		Charset charset = outputCharset(task);
+		ANSI console = tab.console;
+		taskExecutor.setMaxRuns(getSettings().getMaxParallelRuns() > 0 ? getSettings().getMaxParallelRuns()
+				: Runtime.getRuntime().availableProcessors());
+		// set before the process starts, as its output may end before submit returns
+		AtomicReference<TaskExecutor.Run> submitted = new AtomicReference<>();
+		tab.output.setOnClosed(() -> {
+			TaskExecutor.Run run = submitted.get();
+			int exitCode = run.getProcess().exitValue();
+			console.note("[exited with code " + exitCode
+					+ String.format(" after %.1f s]", run.getRunMillis() / 1000.0));
+			console.flush();
+			tab.stopButton.setVisible(false);
+			if (recorder != null && !run.isStopRequested())
+				taskCache.store(key, recorder, exitCode, outputs);
+			onExit.accept(run.isStopRequested() ? -1 : exitCode);
+		});
+		TaskExecutor.Run run = taskExecutor.submit(name, task.getMaxParallelRuns(), processBuilder,
+				started -> ProcessPump.getInstance().add(started.getProcess(), charset, sink),
+				ended -> SwingUtilities.invokeLater(() -> {
+					// a process that ran reports once its output is shown
+					if (ended.getState() == TaskExecutor.State.FAILED)
+						console.append(ended.getFailure().toString());
+					else if (ended.getProcess() == null)
+						console.note("[stopped while queued]");
+					else
+						return;
+					console.flush();
+					tab.stopButton.setVisible(false);
+					onExit.accept(-1);
+				}));
+		submitted.set(run);
+		if (run.getState() == TaskExecutor.State.QUEUED) {
+			console.note("[queued until other runs finish]");
+			console.flush();
+		}
+		consoleRunMap.put(tab.scrollPane, run);
+	}
+
+	// replaces the placeholders that depend on the system and the file being run
+	private static String fillPlaceholders(String text, String filepath) {
+		String os = System.getProperty("os.name");
+		String osCmd = os.toLowerCase().contains("windows") ? "cmd /C" : "";
+		String osBrowser = os.toLowerCase().contains("windows") ? "start" : "xdg-open";
+		return text.replace("{os}", os).replace("{cmd}", osCmd).replace("{open}",
+						osBrowser)
+				.replace("{path}",
+						filepath.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1) : ".")
+				.replace("{path/}", filepath
+						.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1)
+								: ".")
+				.replace("{path.}",
+						filepath.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1).replace("/", ".")
+								: ".")
+				.replace("{path\\}",
+						filepath.contains("/") ? filepath.substring(0, filepath.lastIndexOf("/") + 1).replace("/", "\\")
+								: ".")
+				.replace("{file}",
+						filepath.contains(".")
+								? filepath.substring(filepath.lastIndexOf("/") + 1, filepath.lastIndexOf("."))
+								: filepath.substring(filepath.lastIndexOf("/") + 1))
+				.replace("{ext}", filepath.contains(".") ? filepath.substring(filepath.lastIndexOf(".")) : "");
+	}
+
+	private Charset outputCharset(Tasks.Task task) {
+		if (task.getCharset() == null || task.getCharset().isEmpty())
+			return Charset.defaultCharset();
+		try {
+			return Charset.forName(task.getCharset());
+		} catch (IllegalArgumentException e) {
+			log("Console: unknown charset " + task.getCharset() + ", using the default");
+			return Charset.defaultCharset();
 		}
 	}
 
-	private void stopProcess(Process process) {
-		if (process != null && process.isAlive()) {
+	private void stopRun(TaskExecutor.Run run) {
+		if (run != null && run.isActive()) {
 			log("Console: process cancelled by user");
-			process.destroy();
+			run.stop();
 		}
 	}
 
-	private void closeConsoleTab(Process process, Component tabComponent, JTextPane consoleOutput) {
+	private void closeConsoleTab(TaskExecutor.Run run, Component tabComponent, JTextPane consoleOutput) {
 		int option = JOptionPane.YES_OPTION;
-		if (process != null && process.isAlive())
+		if (run != null && run.isActive())
 			option = JOptionPane.showConfirmDialog(this, "Closing a running process stops it. Proceed?", "Close",
 					JOptionPane.YES_NO_OPTION);
 		if (option == JOptionPane.YES_OPTION) {
-			stopProcess(process);
+			stopRun(run);
 			consoleTabbedPane.remove(tabComponent);
-			consoleProcessMap.remove(tabComponent); // Remove the process from the map
+			consoleRunMap.remove(tabComponent);
 			consoleOutput.setText(""); // Clearing the console output text
 		}
 		/*
@@ -1033,6 +1542,14 @@ public class CodeEditor extends JFrame {
 		JMenuItem closeOthersSameFirstLineItem = new JMenuItem("Close all others with this command");
 		closeOthersSameFirstLineItem.addActionListener(ev -> closeConsoleTabsWithSameFirstLine(tabIndex, false));
 
+		JMenuItem fullOutputItem = new JMenuItem("Show full output");
+		fullOutputItem.addActionListener(ev -> showFullOutput(tabIndex));
+		JMenuItem exportItem = new JMenuItem("Export output...");
+		exportItem.addActionListener(ev -> exportOutput(tabIndex));
+
+		contextMenu.add(fullOutputItem);
+		contextMenu.add(exportItem);
+		contextMenu.addSeparator();
 		contextMenu.add(closeAllItem);
 		contextMenu.add(closeOthersItem);
 		contextMenu.add(closeToLeftItem);
@@ -1043,8 +1560,60 @@ public class CodeEditor extends JFrame {
 		contextMenu.show(e.getComponent(), e.getX(), e.getY());
 	}
 
+	private Scrollback scrollbackAt(int tabIndex) {
+		JTextPane output = consoleOutputAt(tabIndex);
+		return output == null ? null : (Scrollback) output.getDocument().getProperty(Scrollback.PROPERTY);
+	}
+
+	// shows all output spilled so far, mapped from the scrollback file rather than loaded
+	private void showFullOutput(int tabIndex) {
+		Scrollback scrollback = scrollbackAt(tabIndex);
+		if (scrollback == null)
+			return;
+		loadExecutor.submit(() -> {
+			try {
+				LargeFileDocument doc = LargeFileDocument.open(scrollback.getFile(), StandardCharsets.UTF_8,
+						progress -> {
+						}, () -> false);
+				SwingUtilities.invokeLater(() -> {
+					LargeFileTextArea textArea = new LargeFileTextArea(doc);
+					textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, textArea.getFont().getSize()));
+					addResultsTab("Full output", new JScrollPane(textArea), () -> {
+					});
+				});
+			} catch (IOException ex) {
+				SwingUtilities.invokeLater(() -> log("Console: failed to read the full output"));
+			}
+		});
+	}
+
+	private void exportOutput(int tabIndex) {
+		Scrollback scrollback = scrollbackAt(tabIndex);
+		if (scrollback == null)
+			return;
+		JFileChooser fileChooser = new JFileChooser(projectDir);
+		if (fileChooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION)
+			return;
+		File target = fileChooser.getSelectedFile();
+		Scrollback.Snapshot snapshot;
+		try {
+			snapshot = scrollback.snapshot();
+		} catch (IOException | BadLocationException e) {
+			log("Console: failed to export output");
+			return;
+		}
+		loadExecutor.submit(() -> {
+			try (OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+				snapshot.writeTo(out);
+				SwingUtilities.invokeLater(() -> log("Console: output exported to " + target));
+			} catch (IOException ex) {
+				SwingUtilities.invokeLater(() -> log("Console: failed to export output"));
+			}
+		});
+	}
+
 	private void closeAllConsoleTabs() {
-		boolean hasRunningProcesses = consoleProcessMap.values().stream().anyMatch(Process::isAlive);
+		boolean hasRunningProcesses = consoleRunMap.values().stream().anyMatch(TaskExecutor.Run::isActive);
 		if (hasRunningProcesses) {
 			int option = JOptionPane.showConfirmDialog(this,
 					"There are running processes. Do you want to stop all and close?", "Confirm Close",
@@ -1053,18 +1622,18 @@ public class CodeEditor extends JFrame {
 				return;
 			}
 		}
-		consoleProcessMap.forEach((component, process) -> {
-			stopProcess(process);
+		consoleRunMap.forEach((component, run) -> {
+			stopRun(run);
 		});
 		consoleTabbedPane.removeAll();
-		consoleProcessMap.clear();
+		consoleRunMap.clear();
 	}
 
 	private void closeConsoleTabsToRight(int tabIndex) {
 		boolean hasRunningProcesses = false;
 		for (int i = consoleTabbedPane.getTabCount() - 1; i > tabIndex; i--) {
-			Process process = consoleProcessMap.get(consoleTabbedPane.getComponentAt(i));
-			if (process != null && process.isAlive()) {
+			TaskExecutor.Run run = consoleRunMap.get(consoleTabbedPane.getComponentAt(i));
+			if (run != null && run.isActive()) {
 				hasRunningProcesses = true;
 				break;
 			}
@@ -1079,18 +1648,18 @@ public class CodeEditor extends JFrame {
 		}
 		for (int i = consoleTabbedPane.getTabCount() - 1; i > tabIndex; i--) {
 			Component component = consoleTabbedPane.getComponentAt(i);
-			Process process = consoleProcessMap.get(component);
-			stopProcess(process);
+			TaskExecutor.Run run = consoleRunMap.get(component);
+			stopRun(run);
 			consoleTabbedPane.remove(i);
-			consoleProcessMap.remove(component);
+			consoleRunMap.remove(component);
 		}
 	}
 
 	private void closeConsoleTabsToLeft(int tabIndex) {
 		boolean hasRunningProcesses = false;
 		for (int i = tabIndex - 1; i >= 0; i--) {
-			Process process = consoleProcessMap.get(consoleTabbedPane.getComponentAt(i));
-			if (process != null && process.isAlive()) {
+			TaskExecutor.Run run = consoleRunMap.get(consoleTabbedPane.getComponentAt(i));
+			if (run != null && run.isActive()) {
 				hasRunningProcesses = true;
 				break;
 			}
@@ -1105,10 +1674,10 @@ public class CodeEditor extends JFrame {
 		}
 		for (int i = tabIndex - 1; i >= 0; i--) {
 			Component component = consoleTabbedPane.getComponentAt(i);
-			Process process = consoleProcessMap.get(component);
-			stopProcess(process);
+			TaskExecutor.Run run = consoleRunMap.get(component);
+			stopRun(run);
 			consoleTabbedPane.remove(i);
-			consoleProcessMap.remove(component);
+			consoleRunMap.remove(component);
 		}
 	}
 
@@ -1116,8 +1685,8 @@ public class CodeEditor extends JFrame {
 		boolean hasRunningProcesses = false;
 		for (int i = consoleTabbedPane.getTabCount() - 1; i >= 0; i--) {
 			if (i != tabIndex) {
-				Process process = consoleProcessMap.get(consoleTabbedPane.getComponentAt(i));
-				if (process != null && process.isAlive()) {
+				TaskExecutor.Run run = consoleRunMap.get(consoleTabbedPane.getComponentAt(i));
+				if (run != null && run.isActive()) {
 					hasRunningProcesses = true;
 					break;
 				}
@@ -1134,29 +1703,32 @@ public class CodeEditor extends JFrame {
 		for (int i = consoleTabbedPane.getTabCount() - 1; i >= 0; i--) {
 			if (i != tabIndex) {
 				Component component = consoleTabbedPane.getComponentAt(i);
-				Process process = consoleProcessMap.get(component);
-				stopProcess(process);
+				TaskExecutor.Run run = consoleRunMap.get(component);
+				stopRun(run);
 				consoleTabbedPane.remove(i);
-				consoleProcessMap.remove(component);
+				consoleRunMap.remove(component);
 			}
 		}
 	}
 
 	private void closeConsoleTabsWithSameFirstLine(int tabIndex, boolean includeCurrent) {
-		Component selectedComponent = consoleTabbedPane.getComponentAt(tabIndex);
-		JTextPane selectedTextPane = (JTextPane) ((JScrollPane) selectedComponent).getViewport().getView();
+		JTextPane selectedTextPane = consoleOutputAt(tabIndex);
+		if (selectedTextPane == null)
+			return;
 		String firstLine = getFirstLine(selectedTextPane);
 
 		boolean hasRunningProcesses = false;
 		for (int i = consoleTabbedPane.getTabCount() - 1; i >= 0; i--) {
 			if (i != tabIndex || includeCurrent) {
 				Component component = consoleTabbedPane.getComponentAt(i);
-				JTextPane textPane = (JTextPane) ((JScrollPane) component).getViewport().getView();
+				JTextPane textPane = consoleOutputAt(i);
+				if (textPane == null)
+					continue;
 				String line = getFirstLine(textPane);
 
 				if (line.equals(firstLine)) {
-					Process process = consoleProcessMap.get(component);
-					if (process != null && process.isAlive()) {
+					TaskExecutor.Run run = consoleRunMap.get(component);
+					if (run != null && run.isActive()) {
 						hasRunningProcesses = true;
 						break;
 					}
@@ -1174,19 +1746,60 @@ public class CodeEditor extends JFrame {
 		for (int i = consoleTabbedPane.getTabCount() - 1; i >= 0; i--) {
 			if (i != tabIndex || includeCurrent) {
 				Component component = consoleTabbedPane.getComponentAt(i);
-				JTextPane textPane = (JTextPane) ((JScrollPane) component).getViewport().getView();
+				JTextPane textPane = consoleOutputAt(i);
+				if (textPane == null)
+					continue;
 				String line = getFirstLine(textPane);
 
 				if (line.equals(firstLine)) {
-					Process process = consoleProcessMap.get(component);
-					stopProcess(process);
+					TaskExecutor.Run run = consoleRunMap.get(component);
+					stopRun(run);
 					consoleTabbedPane.remove(i);
-					consoleProcessMap.remove(component);
+					consoleRunMap.remove(component);
 				}
 			}
 		}
 	}
 
+	// the output of a console tab, or null for other tabs such as search results
+	private JTextPane consoleOutputAt(int tabIndex) {
+		Component component = consoleTabbedPane.getComponentAt(tabIndex);
+		if (component instanceof JScrollPane && ((JScrollPane) component).getViewport().getView() instanceof JTextPane)
+			return (JTextPane) ((JScrollPane) component).getViewport().getView();
+		return null;
+	}
+
+	/**
+	 * Shows a tab next to the consoles, e.g., with search results; onClose runs
+	 * when the tab is closed through its button.
+	 */
+	public void addResultsTab(String title, Component content, Runnable onClose) {
+		JPanel tabComponent = new JPanel(new BorderLayout());
+		tabComponent.setOpaque(false);
+		JLabel tabLabel = new JLabel(title);
+		JButton closeButton = new JButton(new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/close.png"))
+				.getImage().getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
+		closeButton.setPreferredSize(new Dimension(16, 16));
+		closeButton.setToolTipText("Close");
+		closeButton.addActionListener(e -> {
+			onClose.run();
+			consoleTabbedPane.remove(content);
+		});
+		JPanel buttonPanel = new JPanel();
+		buttonPanel.add(closeButton);
+		tabComponent.add(tabLabel, BorderLayout.WEST);
+		tabComponent.add(buttonPanel, BorderLayout.EAST);
+
+		if (!consoleTabbedPane.isVisible()) {
+			JSplitPane splitPane = (JSplitPane) getContentPane().getComponent(0);
+			consoleTabbedPane.setVisible(true);
+			splitPane.setDividerLocation(400);
+		}
+		consoleTabbedPane.addTab(title, content);
+		consoleTabbedPane.setTabComponentAt(consoleTabbedPane.getTabCount() - 1, tabComponent);
+		consoleTabbedPane.setSelectedComponent(content);
+	}
+
 	private String getFirstLine(JTextPane textPane) {
 		try {
 			return textPane.getDocument()
@@ -1215,57 +1828,43 @@ public class CodeEditor extends JFrame {
 
 	private void refreshContent(JTree tree) {
 		// Save expanded paths as file paths
-		ArrayList<String> expandedPaths = new ArrayList<String>();
+		Set<File> expandedPaths = new HashSet<File>();
 		Enumeration<TreePath> enumeration = tree.getExpandedDescendants(new TreePath(treeModel.getRoot()));
 		if (enumeration != null) {
 			while (enumeration.hasMoreElements()) {
-				TreePath treePath = enumeration.nextElement();
-				DefaultMutableTreeNode node = (DefaultMutableTreeNode) treePath.getLastPathComponent();
-				if (!(node.getUserObject() instanceof File))
-					continue;
-				File file = (File) node.getUserObject();
-				expandedPaths.add(file.getAbsolutePath());
+				File file = ProjectTreeModel.fileOf(enumeration.nextElement().getLastPathComponent());
+				if (file != null)
+					expandedPaths.add(file);
 			}
 		}
 
-		// Refresh the tree content
-		DefaultMutableTreeNode root = new DefaultMutableTreeNode(projectDir);
-		treeModel.setRoot(root);
-		root.add(new DefaultMutableTreeNode("Loading..."));
-		addFilesToNode(root, projectDir);
-		treeModel.reload();
-		Collections.sort(expandedPaths); // needed to have the correct hierarchical order when loading
-
-		// Restore expanded paths
-		for (String path : expandedPaths) {
-			TreePath treePath = findTreePath(root, path);
-			if (treePath != null) {
-				tree.expandPath(treePath);
-			}
-		}
+		// Refresh the tree content and restore expanded paths as their parents load
+		ProjectTreeModel.DirectoryNode root = treeModel.setRoot(projectDir);
+		addFilesToNode(root, () -> restoreExpansion(tree, root, expandedPaths));
 	}
 
-	private TreePath findTreePath(DefaultMutableTreeNode root, String path) {
-		Enumeration<TreeNode> enumeration = root.breadthFirstEnumeration();
-		while (enumeration.hasMoreElements()) {
-			DefaultMutableTreeNode node = (DefaultMutableTreeNode) enumeration.nextElement();
-			if (!(node.getUserObject() instanceof File))
-				continue;
-			File file = (File) node.getUserObject();
-			if (file.getAbsolutePath().equals(path)) {
-				return new TreePath(node.getPath());
-			}
+	private void restoreExpansion(JTree tree, ProjectTreeModel.DirectoryNode node, Set<File> expandedPaths) {
+		tree.expandPath(treeModel.pathTo(node));
+		for (int i = 0; i < node.getChildCount(); i++) {
+			Object child = node.getChild(i);
+			if (!(child instanceof ProjectTreeModel.DirectoryNode))
+				break; // directories come first
+			ProjectTreeModel.DirectoryNode directory = (ProjectTreeModel.DirectoryNode) child;
+			if (expandedPaths.contains(directory.getFile()))
+				addFilesToNode(directory, () -> restoreExpansion(tree, directory, expandedPaths));
 		}
-		return null;
 	}
 
 	public void openProject(File dir) {
 		this.projectDir = dir;
-		DefaultMutableTreeNode root = new DefaultMutableTreeNode(dir.getName());
-		treeModel.setRoot(root);
-		root.add(new DefaultMutableTreeNode("Loading..."));
-		addFilesToNode(root, dir);
-		treeModel.reload();
+		if (watcher != null)
+			watcher.close();
+		try {
+			watcher = new ProjectWatcher(this::applyFileChanges);
+		} catch (IOException e) {
+			watcher = null;
+			log(dir.getAbsolutePath() + ": cannot watch for changes");
+		}
 		setTitle("Mango - " + dir.getName());
 
 		// Read the YAML configuration
@@ -1291,7 +1890,59 @@ public class CodeEditor extends JFrame {
 				log(projectDir.getAbsolutePath() + ": failed to parse project configuration");
 			}
 		}
+		updateIgnoreRules();
+		if (taskCache != null)
+			taskCache.close();
+		taskCache = new TaskCache(dir.toPath(), this::getIgnoreRules, getSettings().getTaskCacheMB() * 1024L * 1024L);
+		addFilesToNode(treeModel.setRoot(dir));
 		log(projectDir.getAbsolutePath() + ": opened");
+		recoverJournals();
+	}
+
+	// returns whether the ignore list of the settings changed
+	private boolean updateIgnoreRules() {
+		List<String> patterns = new ArrayList<String>(getSettings().getIgnore());
+		if (ignoreRules != null && patterns.equals(ignorePatterns))
+			return false;
+		ignorePatterns = patterns;
+		ignoreRules = new IgnoreRules(projectDir, patterns);
+		FileIndex previous = fileIndex;
+		if (previous != null)
+			previous.close();
+		fileIndex = FileIndex.open(projectDir, ignoreRules, previous);
+		updateContentIndex(true);
+		return true;
+	}
+
+	// opens or closes the content index as the settings say, opening it anew on restart
+	private void updateContentIndex(boolean restart) {
+		boolean enabled = getSettings().isIndexContents();
+		if (contentIndex != null && (restart || !enabled)) {
+			contentIndex.close();
+			closedContentIndex = contentIndex;
+			contentIndex = null;
+		}
+		if (enabled && contentIndex == null) {
+			contentIndex = TrigramIndex.open(projectDir, fileIndex, closedContentIndex);
+			closedContentIndex = null;
+		}
+	}
+
+	// the index of file contents, or null unless enabled in the settings
+	public TrigramIndex getContentIndex() {
+		return contentIndex;
+	}
+
+	/**
+	 * The ignore rules of the open project, shared by the tree and every
+	 * project-wide scan so that ignored subtrees are never visited.
+	 */
+	public IgnoreRules getIgnoreRules() {
+		return ignoreRules;
+	}
+
+	private Tasks getSettings() {
+		return languageConfig != null ? languageConfig : new Tasks();
 	}
 
 	public Tasks reloadTasks() {
@@ -1308,37 +1959,139 @@ public class CodeEditor extends JFrame {
 				log(projectDir.getAbsolutePath() + ": failed to parse project configuration");
 			}
 		}
+		if (projectDir != null && updateIgnoreRules())
+			refreshContent(projectTree);
+		else if (projectDir != null)
+			updateContentIndex(false);
 		return languageConfig;
 	}
 
-	private void addFilesToNode(DefaultMutableTreeNode node, File file) {
-		if (file.isDirectory() && node.getChildCount() == 1 && node.getChildAt(0).toString().equals("Loading...")) {
-			File[] files = file.listFiles();
-			node.removeAllChildren();
-			if (files != null) {
-				// Add directories first
-				for (File child : files) {
-					if (child.isDirectory() && !child.getName().startsWith(".") && !child.getName().startsWith("__")) {
-						DefaultMutableTreeNode childNode = new DefaultMutableTreeNode(child.getName());
-						childNode.setUserObject(child);
-						node.add(childNode);
-						childNode.add(new DefaultMutableTreeNode("Loading..."));
-						// addFilesToNode(childNode, child);
-					}
-				}
-				// Add files after directories
-				for (File child : files) {
-					if (!child.isDirectory()) {
-						DefaultMutableTreeNode childNode = new DefaultMutableTreeNode(child.getName());
-						childNode.setUserObject(child);
-						node.add(childNode);
-					}
-				}
-			}
-			treeModel.reload(node);
-			// SwingUtilities.invokeLater(() -> {treeModel.reload();});
+	private void addFilesToNode(ProjectTreeModel.DirectoryNode node) {
+		addFilesToNode(node, null);
+	}
 
+	/**
+	 * Lists the directory in the background and streams its sorted entries into
+	 * the node in batches, replacing the "Loading..." placeholder when the first
+	 * batch arrives. The callback runs on the EDT once the node is complete.
+	 */
+	private void addFilesToNode(ProjectTreeModel.DirectoryNode node, Runnable onLoaded) {
+		if (node.isLoaded()) {
+			if (onLoaded != null)
+				onLoaded.run();
+			return;
+		}
+		List<Runnable> callbacks = pendingListings.get(node);
+		if (callbacks == null) {
+			callbacks = new ArrayList<Runnable>();
+			pendingListings.put(node, callbacks);
+			Path dir = node.getFile().toPath();
+			if (watcher != null)
+				watcher.watch(dir);
+			listExecutor.submit(() -> {
+				List<DirectoryLister.Entry> entries = listTreeEntries(dir);
+				int start = 0;
+				do {
+					List<DirectoryLister.Entry> batch = entries.subList(start,
+							Math.min(entries.size(), start + LISTING_BATCH));
+					start += batch.size();
+					boolean last = start == entries.size();
+					SwingUtilities.invokeLater(() -> addListingBatch(node, batch, last));
+				} while (start < entries.size());
+			});
 		}
+		if (onLoaded != null)
+			callbacks.add(onLoaded);
+	}
+
+	// lists the entries shown in the tree, directories first, then files, each by name
+	private List<DirectoryLister.Entry> listTreeEntries(Path dir) {
+		List<DirectoryLister.Entry> entries = new ArrayList<DirectoryLister.Entry>();
+		IgnoreRules.Filter ignored = ignoreRules.forDirectory(dir);
+		try {
+			for (DirectoryLister.Entry entry : directoryLister.list(dir))
+				if (!ignored.isIgnored(entry.file.getName(), entry.directory))
+					entries.add(entry);
+		} catch (IOException e) {
+			// unreadable or deleted; show it as empty
+		}
+		entries.sort((a, b) -> ProjectTreeModel.compareEntries(a.directory, a.file.getName(), b.directory,
+				b.file.getName()));
+		return entries;
+	}
+
+	private void addListingBatch(ProjectTreeModel.DirectoryNode node, List<DirectoryLister.Entry> batch,
+			boolean last) {
+		if (!treeModel.contains(node)) {
+			// the tree was rebuilt meanwhile
+			pendingListings.remove(node);
+			staleListings.remove(node);
+			return;
+		}
+		treeModel.appendEntries(node, batch);
+		if (last) {
+			if (staleListings.remove(node))
+				rescanNode(node);
+			for (Runnable callback : pendingListings.remove(node))
+				callback.run();
+		}
+	}
+
+	// applies the changes reported by the watcher to the loaded part of the tree
+	private void applyFileChanges(Map<Path, Set<Path>> changes) {
+		if (projectDir == null)
+			return;
+		for (Map.Entry<Path, Set<Path>> change : changes.entrySet()) {
+			directoryLister.invalidate(change.getKey());
+			if (fileIndex != null)
+				fileIndex.refresh(change.getKey().toFile());
+			if (contentIndex != null)
+				for (Path entry : change.getValue())
+					contentIndex.update(entry.toFile());
+			boolean rulesChanged = change.getValue().stream().anyMatch(IgnoreRules::isIgnoreFile);
+			if (rulesChanged)
+				ignoreRules.invalidate(change.getKey());
+			ProjectTreeModel.DirectoryNode node = treeModel.findDirectory(change.getKey().toFile());
+			if (node == null)
+				continue;
+			if (pendingListings.containsKey(node))
+				staleListings.add(node);
+			else if (!node.isLoaded())
+				continue;
+			else if (rulesChanged || change.getValue().contains(change.getKey()))
+				rescanNode(node);
+			else
+				for (Path entry : change.getValue())
+					refreshEntry(node, entry.toFile());
+		}
+	}
+
+	// lists the directory again in the background and applies the differences to its node
+	private void rescanNode(ProjectTreeModel.DirectoryNode node) {
+		Path path = node.getFile().toPath();
+		directoryLister.invalidate(path);
+		listExecutor.submit(() -> {
+			List<DirectoryLister.Entry> entries = listTreeEntries(path);
+			SwingUtilities.invokeLater(() -> {
+				if (treeModel.contains(node) && !pendingListings.containsKey(node))
+					treeModel.applyListing(node, entries);
+			});
+		});
+	}
+
+	// brings the entry of a loaded directory in line with the file on disk
+	private void refreshEntry(ProjectTreeModel.DirectoryNode parent, File file) {
+		boolean directory = file.isDirectory();
+		boolean shown = file.exists() && !ignoreRules.isIgnored(file.toPath(), directory);
+		treeModel.updateEntry(parent, file.getName(), shown, directory);
+	}
+
+	private void refreshEntry(File file) {
+		if (fileIndex != null)
+			fileIndex.refresh(file.getParentFile());
+		ProjectTreeModel.DirectoryNode parent = treeModel.findDirectory(file.getParentFile());
+		if (parent != null && parent.isLoaded() && !pendingListings.containsKey(parent))
+			refreshEntry(parent, file);
 	}
 
 	private void showFileContextMenu(int x, int y, File file) {
@@ -1352,13 +2105,7 @@ public class CodeEditor extends JFrame {
 					File newFile = new File(file.isDirectory() ? file.getAbsolutePath() : file.getParent(), fileName);
 					try {
 						if (newFile.createNewFile()) {
-							DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) projectTree
-									.getSelectionPath().getLastPathComponent();
-							DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(newFile);
-							if (!file.isDirectory())
-								selectedNode = (DefaultMutableTreeNode) selectedNode.getParent();
-							selectedNode.add(newNode);
-							treeModel.reload(selectedNode);
+							refreshEntry(newFile);
 							log(file.toString() + ": created");
 							openFile(newFile); // Open the newly created file
 						} else {
@@ -1383,13 +2130,7 @@ public class CodeEditor extends JFrame {
 							folderName);
 					if (newFolder.mkdir()) {
 						log(file.toString() + ": created");
-						DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) projectTree.getSelectionPath()
-								.getLastPathComponent();
-						if (!file.isDirectory())
-							selectedNode = (DefaultMutableTreeNode) selectedNode.getParent();
-						DefaultMutableTreeNode newNode = new DefaultMutableTreeNode(newFolder);
-						selectedNode.add(newNode);
-						treeModel.reload(selectedNode);
+						refreshEntry(newFolder);
 					} else {
 						JOptionPane.showMessageDialog(this, "Directory creation failed.", "Error",
 								JOptionPane.ERROR_MESSAGE);
@@ -1403,6 +2144,13 @@ public class CodeEditor extends JFrame {
 			contextMenu.addSeparator();
 		}
 
+		if (projectTree.getSelectionCount() > 1) {
+			JMenuItem openSelectedItem = new JMenuItem("Open selected files");
+			openSelectedItem.addActionListener(e -> openSelectedFiles());
+			contextMenu.add(openSelectedItem);
+			contextMenu.addSeparator();
+		}
+
 		JMenuItem openExplorerItem = new JMenuItem("Show in explorer");
 		openExplorerItem.addActionListener(e -> {
 			try {
@@ -1453,13 +2201,9 @@ public class CodeEditor extends JFrame {
 						Files.delete(file.toPath());
 						if (openFilesMap.get(file) != null)
 							tabbedPane.remove(getParentInPane(openFilesMap.get(file)));
-						openFilesMap.remove(file);
-						dirtyMap.remove(file);
+						forgetFile(file);
 					}
-					DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) projectTree.getSelectionPath()
-							.getLastPathComponent();
-					selectedNode.removeFromParent();
-					treeModel.reload();
+					refreshEntry(file);
 					log(file.toString() + ": deleted");
 				} catch (IOException ex) {
 					log(file.toString() + ": failed to delete");
@@ -1497,6 +2241,9 @@ public class CodeEditor extends JFrame {
 		inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_F, KeyEvent.CTRL_DOWN_MASK), "search");
 		inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_R, KeyEvent.CTRL_DOWN_MASK), "run");
 		inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_H, KeyEvent.CTRL_DOWN_MASK), "replace");
+		inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_P, KeyEvent.CTRL_DOWN_MASK), "quickOpen");
+		inputMap.put(KeyStroke.getKeyStroke(KeyEvent.VK_F, KeyEvent.CTRL_DOWN_MASK | KeyEvent.SHIFT_DOWN_MASK),
+				"findInFiles");
 		CodeEditor thisObj = this;
 		actionMap.put("closeFile", new AbstractAction() {
 			private static final long serialVersionUID = 9209165124982821882L;
@@ -1570,6 +2317,22 @@ public class CodeEditor extends JFrame {
 				Search.getInstance().showSearchDialog(thisObj);
 			}
 		});
+		actionMap.put("quickOpen", new AbstractAction() {
+			private static final long serialVersionUID = -2231486705473357614L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				QuickOpen.getInstance().showQuickOpenDialog(thisObj, fileIndex);
+			}
+		});
+		actionMap.put("findInFiles", new AbstractAction() {
+			private static final long serialVersionUID = 6913573080385245530L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				FindInFiles.showFindDialog(thisObj);
+			}
+		});
 		actionMap.put("replace", new AbstractAction() {
 			private static final long serialVersionUID = 5959636973284522325L;
 
@@ -1583,7 +2346,9 @@ public class CodeEditor extends JFrame {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				rename((File) projectTree.getLastSelectedPathComponent());
+				File file = ProjectTreeModel.fileOf(projectTree.getLastSelectedPathComponent());
+				if (file != null)
+					rename(file);
 			}
 		});
 		actionMap.put("fileuidelete", new AbstractAction() {
@@ -1591,7 +2356,9 @@ public class CodeEditor extends JFrame {
 
 			@Override
 			public void actionPerformed(ActionEvent e) {
-				deleteFile((File) projectTree.getLastSelectedPathComponent());
+				File file = ProjectTreeModel.fileOf(projectTree.getLastSelectedPathComponent());
+				if (file != null)
+					deleteFile(file);
 			}
 		});
 	}
@@ -1646,29 +2413,12 @@ public class CodeEditor extends JFrame {
 	}
 
 	private void updateTreeSelection(File file) {
-		TreePath path = findPath(projectTree, new TreePath(treeModel.getRoot()), file);
-		if (path != null) {
-			projectTree.setSelectionPath(path);
+		Object node = treeModel.findNode(file);
+		if (node != null) {
+			projectTree.setSelectionPath(treeModel.pathTo(node));
 		}
 	}
 
-	private TreePath findPath(JTree tree, TreePath parent, File file) {
-		DefaultMutableTreeNode node = (DefaultMutableTreeNode) parent.getLastPathComponent();
-		if (file.equals(node.getUserObject())) {
-			return parent;
-		}
-		if (node.getChildCount() >= 0) {
-			for (int i = 0; i < node.getChildCount(); i++) {
-				TreePath path = parent.pathByAddingChild(node.getChildAt(i));
-				TreePath result = findPath(tree, path, file);
-				if (result != null) {
-					return result;
-				}
-			}
-		}
-		return null;
-	}
-
 	private void rename(File file) {
 		{
 			String newName = (String) JOptionPane.showInputDialog(null, "Enter new name for " + file.getName() + ":",
@@ -1684,9 +2434,9 @@ public class CodeEditor extends JFrame {
 					}
 
 					// Update the tree node
-					DefaultMutableTreeNode selectedNode = (DefaultMutableTreeNode) projectTree.getSelectionPath()
-							.getLastPathComponent();
-					treeModel.reload(selectedNode);
+					refreshEntry(file);
+					refreshEntry(newFile);
+					updateTreeSelection(newFile);
 
 					log(file.toString() + ": renamed to " + newFile.toString());
 				} else {
@@ -1709,8 +2459,7 @@ public class CodeEditor extends JFrame {
 	}
 
 	private void showReplaceDialog() {
-		JOptionPane.showMessageDialog(this, "Replace functionality not implemented yet.", "Replace",
-				JOptionPane.INFORMATION_MESSAGE);
+		Search.getInstance().showReplaceDialog(this);
 	}
 
 	public static void main(String[] args) {
@@ -1745,19 +2494,8 @@ public class CodeEditor extends JFrame {
 		public Component getTreeCellRendererComponent(JTree tree, Object value, boolean sel, boolean expanded,
 				boolean leaf, int row, boolean hasFocus) {
 			Component c = super.getTreeCellRendererComponent(tree, value, sel, expanded, leaf, row, hasFocus);
-			DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
-			Object userObject = node.getUserObject();
-			if (userObject instanceof File) {
-				File file = (File) userObject;
-				// Customize the file name display
-				setText(file.getName());
-				setToolTipText(file.getAbsolutePath());
-			} else {
-				// Handle non-file nodes, like the root node
-				setText(userObject.toString());
-				setToolTipText(null);
-			}
-
+			// nodes render as their bare names; the tree builds paths for tooltips
+			setText(value.toString());
 			return c;
 		}
 	}
@@ -0,0 +1,123 @@
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Collects the output of a process from the {@link ProcessPump} and hands it
+ * to a console at most once per frame, so that a chatty process costs the
+ * event dispatch thread one bounded piece of work per frame instead of a task
+ * per read. How much a frame shows adapts to how long the console takes to
+ * show it. The buffer is bounded: while it is full the pump leaves the process
+ * waiting, and if the console still lags behind, output is dropped until the
+ * buffer drains, leaving a note of how many lines were elided. Standard error
+ * is shown in its own style.
+ */
+public class ConsoleBuffer implements ProcessPump.Sink {
+	private static final int FRAME = 16;
+	private static final int MIN_FRAME_CHARS = 1 << 10;
+	private static final int MAX_FRAME_CHARS = 1 << 16;
+	private static final long FRAME_BUDGET = 8_000_000;
+	private static final int CAPACITY = 1 << 20;
+	private final ANSI console;
+	private final StringBuilder buffer = new StringBuilder();
+	private final Timer timer;
+	private boolean scheduled = false;
+	// how much output a frame shows, adapted to how long showing it takes
+	private int frameChars = MIN_FRAME_CHARS;
+	// output is dropped while lines are elided, until the buffered part is shown
+	private long elidedLines = 0;
+	// where the buffer switches between standard output and error, and which the last text came from
+	private int[] switches = new int[8];
+	private int switchCount = 0;
+	private boolean error = false;
+	// written on the event dispatch thread and read by the pump
+	private volatile Runnable onClosed = null;
+
+	public ConsoleBuffer(ANSI console) {
+		this.console = console;
+		timer = new Timer(FRAME, e -> drain());
+		timer.setCoalesce(true);
+	}
+
+	// runs on the event dispatch thread once the process output has ended
+	public void setOnClosed(Runnable onClosed) {
+		this.onClosed = onClosed;
+	}
+
+	// full once another whole read would not fit, so that the pump waits before anything is elided
+	@Override
+	public synchronized boolean isFull() {
+		return buffer.length() > CAPACITY - ProcessPump.CHUNK;
+	}
+
+	@Override
+	public synchronized void output(boolean error, long nanos, char[] chars, int offset, int count) {
+		// only reached while full when the pump has waited long enough and reads anyway
+		if (elidedLines > 0 || isFull()) {
+			elidedLines += Math.max(1, lines(chars, offset, count));
+			return;
+		}
+		if (error != this.error) {
+			if (switchCount == switches.length)
+				switches = Arrays.copyOf(switches, switchCount * 2);
+			switches[switchCount++] = buffer.length();
+			this.error = error;
+		}
+		buffer.append(chars, offset, count);
+		if (!scheduled) {
+			scheduled = true;
+			timer.start();
+		}
+	}
+
+	@Override
+	public void closed() {
+		if (onClosed != null)
+			SwingUtilities.invokeLater(onClosed);
+	}
+
+	private static int lines(char[] chars, int offset, int count) {
+		int lines = 0;
+		for (int i = offset; i < offset + count; i++)
+			if (chars[i] == '\n')
+				lines++;
+		return lines;
+	}
+
+	// shows up to a frame's worth of output, on the event dispatch thread
+	private void drain() {
+		long started = System.nanoTime();
+		int count;
+		synchronized (this) {
+			count = Math.min(buffer.length(), frameChars);
+			int from = 0;
+			int passed = 0;
+			for (; passed < switchCount && switches[passed] <= count; passed++) {
+				console.parse(CharBuffer.wrap(buffer, from, switches[passed]));
+				console.setError(!console.isError());
+				from = switches[passed];
+			}
+			console.parse(CharBuffer.wrap(buffer, from, count));
+			buffer.delete(0, count);
+			for (int i = passed; i < switchCount; i++)
+				switches[i - passed] = switches[i] - count;
+			switchCount -= passed;
+			if (buffer.length() == 0 && elidedLines > 0) {
+				console.note("[" + elidedLines + (elidedLines == 1 ? " line" : " lines") + " elided]");
+				elidedLines = 0;
+			}
+			if (buffer.length() == 0) {
+				scheduled = false;
+				timer.stop();
+			}
+		}
+		console.flush();
+		long nanos = System.nanoTime() - started;
+		if (nanos > FRAME_BUDGET)
+			frameChars = Math.max(MIN_FRAME_CHARS, frameChars / 2);
+		else if (nanos < FRAME_BUDGET / 2 && count == frameChars)
+			frameChars = Math.min(MAX_FRAME_CHARS, frameChars * 2);
+	}
+}
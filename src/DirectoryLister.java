@@ -0,0 +1,88 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lists directories with a {@link DirectoryStream}, reading each entry's
+ * attributes in one call (served from the stream itself on file systems that
+ * return them with the listing). Listings are cached for a bounded number of
+ * directories and reused while the directory's modification time is
+ * unchanged. Safe to call from any thread.
+ */
+public class DirectoryLister {
+	public static class Entry {
+		public final File file;
+		public final boolean directory;
+
+		Entry(File file, boolean directory) {
+			this.file = file;
+			this.directory = directory;
+		}
+	}
+
+	private static class Listing {
+		final FileTime modified;
+		final List<Entry> entries;
+
+		Listing(FileTime modified, List<Entry> entries) {
+			this.modified = modified;
+			this.entries = entries;
+		}
+	}
+
+	private final Map<Path, Listing> cache;
+
+	public DirectoryLister(int cachedDirectories) {
+		cache = new LinkedHashMap<Path, Listing>(16, 0.75f, true) {
+			private static final long serialVersionUID = 6504093180405581412L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+				return size() > cachedDirectories;
+			}
+		};
+	}
+
+	// returns the directory's entries in no particular order
+	public List<Entry> list(Path dir) throws IOException {
+		FileTime modified = Files.getLastModifiedTime(dir);
+		synchronized (cache) {
+			Listing listing = cache.get(dir);
+			if (listing != null && listing.modified.equals(modified))
+				return listing.entries;
+		}
+		List<Entry> entries = new ArrayList<Entry>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				boolean directory;
+				try {
+					directory = Files.readAttributes(path, BasicFileAttributes.class).isDirectory();
+				} catch (IOException e) {
+					// e.g., a dangling link
+					directory = false;
+				}
+				entries.add(new Entry(path.toFile(), directory));
+			}
+		}
+		entries = Collections.unmodifiableList(entries);
+		synchronized (cache) {
+			cache.put(dir, new Listing(modified, entries));
+		}
+		return entries;
+	}
+
+	public void invalidate(Path dir) {
+		synchronized (cache) {
+			cache.remove(dir);
+		}
+	}
+}
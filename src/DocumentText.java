@@ -0,0 +1,81 @@
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Read-only {@link CharSequence} view of a document that reads the
+ * document's own storage through partial-return {@link Segment}s instead of
+ * copying its text. Callers off the EDT should hold the document's read lock,
+ * e.g., through {@link javax.swing.text.AbstractDocument#render(Runnable)},
+ * and the view must not be used after the document changes.
+ */
+public class DocumentText implements CharSequence {
+	// how far back a segment is fetched, so that backward scans do not refetch every char
+	private static final int BACKWARD_WINDOW = 1 << 12;
+	private final Document doc;
+	private final int start;
+	private final int length;
+	private final Segment segment = new Segment();
+	private int segmentStart = 0;
+	private int segmentEnd = 0;
+
+	public DocumentText(Document doc) {
+		this(doc, 0, doc.getLength());
+	}
+
+	private DocumentText(Document doc, int start, int length) {
+		this.doc = doc;
+		this.start = start;
+		this.length = length;
+		segment.setPartialReturn(true);
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public char charAt(int index) {
+		int offset = start + index;
+		if (offset < segmentStart || offset >= segmentEnd) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException(index);
+			load(offset);
+		}
+		return segment.array[segment.offset + offset - segmentStart];
+	}
+
+	private void load(int offset) {
+		int end = start + length;
+		int from = offset < segmentStart ? Math.max(start, offset - BACKWARD_WINDOW) : offset;
+		try {
+			doc.getText(from, end - from, segment);
+			if (from + segment.count <= offset) {
+				// the window ended at the document's gap; start at the requested char instead
+				from = offset;
+				doc.getText(from, end - from, segment);
+			}
+		} catch (BadLocationException e) {
+			throw new IndexOutOfBoundsException(offset);
+		}
+		segmentStart = from;
+		segmentEnd = from + segment.count;
+	}
+
+	@Override
+	public CharSequence subSequence(int from, int to) {
+		if (from < 0 || to > length || from > to)
+			throw new IndexOutOfBoundsException(from);
+		return new DocumentText(doc, start + from, to - from);
+	}
+
+	@Override
+	public String toString() {
+		try {
+			return doc.getText(start, length);
+		} catch (BadLocationException e) {
+			throw new IndexOutOfBoundsException(start);
+		}
+	}
+}
@@ -0,0 +1,315 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+
+/**
+ * Append-only write-ahead log of the edits made to an open file. Records are
+ * buffered in memory and written and fsynced in batches on a background
+ * thread. After a crash, replaying the journal over the unchanged file on disk
+ * restores the unsaved edits. Saving compacts the journal back to its header.
+ * All file access happens in order on that thread, so the EDT never waits
+ * for the disk.
+ */
+public class EditJournal {
+	private static final int MAGIC = 0x4D4A4E4C;
+	private static final byte INSERT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte SNAPSHOT = 3;
+	private static final long FLUSH_DELAY_MS = 500;
+	private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "Mango journal");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final File file;
+	private final Path path;
+	// opened, written and closed on the flusher thread only
+	private FileChannel channel;
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private DataOutputStream out = new DataOutputStream(pending);
+	private boolean flushScheduled = false;
+
+	private EditJournal(File file, Path path) {
+		this.file = file;
+		this.path = path;
+	}
+
+	public static Path journalDir(File projectDir) {
+		return projectDir.toPath().resolve(".mango").resolve("journal");
+	}
+
+	private static Path pathFor(File projectDir, File file) {
+		String absolute = file.getAbsolutePath();
+		return journalDir(projectDir).resolve(Integer.toHexString(absolute.hashCode()) + "-" + file.getName() + ".wal");
+	}
+
+	/**
+	 * Starts journaling the file. When appending, the records of a recovered
+	 * journal are kept and new edits follow them.
+	 */
+	public static EditJournal open(File projectDir, File file, boolean append) throws IOException {
+		Path path = pathFor(projectDir, file);
+		Files.createDirectories(path.getParent());
+		EditJournal journal = new EditJournal(file, path);
+		flusher.execute(() -> {
+			try {
+				journal.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				if (append && journal.channel.size() > 0)
+					journal.channel.position(journal.channel.size());
+				else
+					journal.rewrite(null);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		return journal;
+	}
+
+	/**
+	 * Waits for the journal writes queued so far, e.g., before exiting.
+	 * Returns false if they did not finish in time.
+	 */
+	public static boolean awaitWrites(long millis) {
+		try {
+			flusher.submit(() -> {}).get(millis, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException | TimeoutException e) {
+			return false;
+		}
+	}
+
+	public synchronized void recordInsert(int offset, String text) {
+		try {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(INSERT);
+			out.writeInt(offset);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} catch (IOException e) {
+			// writing to memory does not fail
+		}
+		scheduleFlush();
+	}
+
+	public synchronized void recordRemove(int offset, int length) {
+		try {
+			out.writeByte(REMOVE);
+			out.writeInt(offset);
+			out.writeInt(length);
+		} catch (IOException e) {
+			// writing to memory does not fail
+		}
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (!flushScheduled) {
+			flushScheduled = true;
+			flusher.schedule(this::flush, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flush() {
+		byte[] bytes;
+		synchronized (this) {
+			flushScheduled = false;
+			bytes = pending.toByteArray();
+			pending.reset();
+		}
+		if (bytes.length == 0 || channel == null || !channel.isOpen())
+			return;
+		try {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			channel.force(false);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Called after the file has been saved. The journal restarts from the new
+	 * file on disk; if the document was edited while saving, its text is kept
+	 * as a snapshot so that those edits are not lost. The journal is rewritten
+	 * in the background, ahead of any edits recorded after this call.
+	 */
+	public void compact(Document unsaved) throws IOException {
+		String snapshot;
+		try {
+			snapshot = unsaved == null ? null : unsaved.getText(0, unsaved.getLength());
+		} catch (BadLocationException e) {
+			throw new IOException(e);
+		}
+		// the edits so far are in the saved file or the snapshot
+		synchronized (this) {
+			pending.reset();
+		}
+		flusher.execute(() -> {
+			try {
+				rewrite(snapshot);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	// on the flusher thread
+	private void rewrite(String snapshot) throws IOException {
+		if (channel == null || !channel.isOpen())
+			return;
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(header);
+		data.writeInt(MAGIC);
+		data.writeUTF(file.getAbsolutePath());
+		data.writeLong(file.length());
+		data.writeLong(file.lastModified());
+		if (snapshot != null) {
+			byte[] bytes = snapshot.getBytes(StandardCharsets.UTF_8);
+			data.writeByte(SNAPSHOT);
+			data.writeInt(bytes.length);
+			data.write(bytes);
+		}
+		channel.truncate(0);
+		channel.position(0);
+		ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		channel.force(false);
+	}
+
+	public void close() {
+		flusher.execute(this::closeChannel);
+	}
+
+	// stops journaling and removes the journal, e.g., when changes are saved or abandoned on close
+	public void discard() {
+		synchronized (this) {
+			pending.reset();
+		}
+		flusher.execute(() -> {
+			closeChannel();
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	private void closeChannel() {
+		flush();
+		if (channel == null)
+			return;
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Lists the files with journaled edits that still apply to the unchanged
+	 * file on disk. Stale or unreadable journals are deleted.
+	 */
+	public static List<File> findRecoverable(File projectDir) {
+		List<File> files = new ArrayList<File>();
+		Path dir = journalDir(projectDir);
+		if (!Files.isDirectory(dir))
+			return files;
+		try (DirectoryStream<Path> journals = Files.newDirectoryStream(dir, "*.wal")) {
+			for (Path journal : journals) {
+				File file = null;
+				boolean hasEdits = false;
+				try (DataInputStream in = new DataInputStream(Files.newInputStream(journal))) {
+					file = readHeader(in);
+					hasEdits = file != null && in.read() != -1;
+				} catch (IOException e) {
+					file = null;
+				}
+				if (file != null && hasEdits)
+					files.add(file);
+				else
+					Files.deleteIfExists(journal);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return files;
+	}
+
+	// returns the journaled file if it is unchanged since the journal started, null otherwise
+	private static File readHeader(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC)
+			return null;
+		File file = new File(in.readUTF());
+		long length = in.readLong();
+		long lastModified = in.readLong();
+		if (!file.isFile() || file.length() != length || file.lastModified() != lastModified)
+			return null;
+		return file;
+	}
+
+	/**
+	 * Applies the journaled edits to a document that holds the file's contents
+	 * from disk. A record torn by the crash ends the replay.
+	 */
+	public static void replay(File projectDir, File file, Document doc) throws IOException {
+		try (InputStream stream = Files.newInputStream(pathFor(projectDir, file));
+				DataInputStream in = new DataInputStream(stream)) {
+			if (readHeader(in) == null)
+				throw new IOException("The journal does not match " + file.getName());
+			while (true) {
+				int type = in.read();
+				if (type == -1)
+					break;
+				try {
+					if (type == INSERT) {
+						int offset = in.readInt();
+						byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						doc.insertString(offset, new String(bytes, StandardCharsets.UTF_8), null);
+					} else if (type == REMOVE) {
+						int offset = in.readInt();
+						doc.remove(offset, in.readInt());
+					} else if (type == SNAPSHOT) {
+						byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						doc.remove(0, doc.getLength());
+						doc.insertString(0, new String(bytes, StandardCharsets.UTF_8), null);
+					} else
+						break;
+				} catch (EOFException e) {
+					break;
+				} catch (BadLocationException e) {
+					throw new IOException("The journal does not match " + file.getName(), e);
+				}
+			}
+		}
+	}
+}
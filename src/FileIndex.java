@@ -0,0 +1,541 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Index of the project's file paths for quick open. The directory listings
+ * are kept under .mango and revalidated by directory modification time, so
+ * reopening a project only lists the directories that changed. Queries run
+ * against an immutable snapshot that packs all paths into one byte array
+ * with a bitmask of the characters of each path, which rules out most paths
+ * before any fuzzy scoring. All maintenance runs on one background thread.
+ */
+public class FileIndex {
+	private static final int MAGIC = 0x4D464958;
+	private static final int VERSION = 1;
+	private static final long REBUILD_DELAY_MS = 300;
+	private static final long SAVE_DELAY_MS = 5000;
+	private static final long PREVIOUS_WAIT_MS = 60000;
+	private static final int CHUNK = 1 << 14;
+	private static final byte[] FOLD = new byte[256];
+	static {
+		for (int i = 0; i < 256; i++)
+			FOLD[i] = (byte) (i >= 'A' && i <= 'Z' ? i + ('a' - 'A') : i);
+	}
+
+	private static class Directory {
+		final long modified;
+		final String[] files;
+		final String[] directories;
+
+		Directory(long modified, String[] files, String[] directories) {
+			this.modified = modified;
+			this.files = files;
+			this.directories = directories;
+		}
+	}
+
+	private static class Snapshot {
+		final byte[] data;
+		final int[] offsets;
+		final long[] masks;
+		final int count;
+
+		Snapshot(byte[] data, int[] offsets, long[] masks, int count) {
+			this.data = data;
+			this.offsets = offsets;
+			this.masks = masks;
+			this.count = count;
+		}
+
+		String path(int i) {
+			return new String(data, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+		}
+	}
+
+	// best matches of one chunk, kept sorted by descending score, along with all of its matches
+	private static class Ranking {
+		final int[] paths;
+		final int[] scores;
+		int size = 0;
+		int[] matches;
+		int matched = 0;
+
+		Ranking(int limit) {
+			paths = new int[limit];
+			scores = new int[limit];
+		}
+
+		void offer(int path, int score) {
+			if (size == paths.length && score <= scores[size - 1])
+				return;
+			int i = size == paths.length ? size - 1 : size++;
+			while (i > 0 && scores[i - 1] < score) {
+				paths[i] = paths[i - 1];
+				scores[i] = scores[i - 1];
+				i--;
+			}
+			paths[i] = path;
+			scores[i] = score;
+		}
+
+		Ranking merge(Ranking other) {
+			for (int i = 0; i < other.size; i++)
+				offer(other.paths[i], other.scores[i]);
+			if (matched + other.matched > matches.length)
+				matches = Arrays.copyOf(matches, matched + other.matched);
+			System.arraycopy(other.matches, 0, matches, matched, other.matched);
+			matched += other.matched;
+			return this;
+		}
+	}
+
+	private static class Search {
+		final Snapshot snapshot;
+		final byte[] pattern;
+		final int[] matches;
+
+		Search(Snapshot snapshot, byte[] pattern, int[] matches) {
+			this.snapshot = snapshot;
+			this.pattern = pattern;
+			this.matches = matches;
+		}
+	}
+
+	private final Path root;
+	private final Path store;
+	private final IgnoreRules ignoreRules;
+	private final ScheduledExecutorService executor;
+	// by path relative to the project, with / separators and "" for the project itself; background thread only
+	private final Map<String, Directory> directories = new HashMap<>();
+	private boolean rebuildScheduled = false;
+	private boolean saveScheduled = false;
+	private volatile Snapshot snapshot = new Snapshot(new byte[0], new int[1], new long[0], 0);
+	private volatile boolean ready = false;
+	private volatile int version = 0;
+	private volatile Search lastSearch = null;
+
+	private FileIndex(File projectDir, IgnoreRules ignoreRules) {
+		this.root = projectDir.toPath().toAbsolutePath().normalize();
+		this.store = root.resolve(".mango").resolve("file-index.bin");
+		this.ignoreRules = ignoreRules;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Mango file index");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Starts loading the saved index of the project in the background,
+	 * revalidating it against the file system. A closed index it replaces, if
+	 * any, first finishes saving, so that its save cannot overwrite this one's.
+	 */
+	public static FileIndex open(File projectDir, IgnoreRules ignoreRules, FileIndex previous) {
+		FileIndex index = new FileIndex(projectDir, ignoreRules);
+		index.executor.execute(() -> {
+			if (previous != null)
+				previous.awaitClose(PREVIOUS_WAIT_MS);
+			boolean loaded = index.load();
+			boolean changed = index.validate("");
+			index.rebuild();
+			index.ready = true;
+			if (changed || !loaded)
+				index.save();
+		});
+		return index;
+	}
+
+	// whether the first scan of the project is complete
+	public boolean isReady() {
+		return ready;
+	}
+
+	// increases whenever the indexed paths change
+	public int getVersion() {
+		return version;
+	}
+
+	public int size() {
+		return snapshot.count;
+	}
+
+	// all indexed paths, relative to the project
+	public List<String> paths() {
+		Snapshot current = snapshot;
+		List<String> paths = new ArrayList<String>(current.count);
+		for (int i = 0; i < current.count; i++)
+			paths.add(current.path(i));
+		return paths;
+	}
+
+	// checks every indexed directory against its modification time
+	public void revalidate() {
+		executor.execute(() -> {
+			if (validate(""))
+				scheduleRebuild();
+		});
+	}
+
+	// lists the directory again, e.g., after one of its entries was created, renamed, deleted or saved
+	public void refresh(File dir) {
+		String relative = relative(dir.toPath());
+		if (relative == null)
+			return;
+		executor.execute(() -> {
+			if (relative.isEmpty() || directories.containsKey(parentOf(relative))) {
+				relist(relative);
+				scheduleRebuild();
+			}
+		});
+	}
+
+	// stops the index after saving it in the background, without waiting for the save
+	public void close() {
+		executor.execute(() -> {
+			if (saveScheduled)
+				save();
+		});
+		executor.shutdown();
+	}
+
+	// waits up to the time for a closed index to finish saving, and returns whether it did
+	public boolean awaitClose(long millis) {
+		try {
+			return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the project-relative paths that best match the query, best first.
+	 * Query characters must appear in order; matches in the file name, at word
+	 * boundaries and in runs rank higher, then shorter paths. When the query
+	 * extends the previous one, only the previous matches are scanned again.
+	 */
+	public List<String> search(String query, int limit) {
+		if (limit <= 0)
+			return new ArrayList<String>();
+		Snapshot current = snapshot;
+		byte[] pattern = query.replace(" ", "").replace('\\', '/').getBytes(StandardCharsets.UTF_8);
+		long mask = 0;
+		for (int i = 0; i < pattern.length; i++) {
+			pattern[i] = FOLD[pattern[i] & 0xFF];
+			mask |= 1L << (pattern[i] & 63);
+		}
+		long required = mask;
+		Search previous = lastSearch;
+		int[] candidates = previous != null && previous.snapshot == current && startsWith(pattern, previous.pattern)
+				? previous.matches
+				: null;
+		int total = candidates != null ? candidates.length : current.count;
+		int chunks = (total + CHUNK - 1) / CHUNK;
+		Ranking ranking = IntStream.range(0, chunks).parallel().mapToObj(chunk -> {
+			Ranking best = new Ranking(limit);
+			int end = Math.min(total, (chunk + 1) * CHUNK);
+			int[] matches = new int[end - chunk * CHUNK];
+			for (int k = chunk * CHUNK; k < end; k++) {
+				int i = candidates != null ? candidates[k] : k;
+				if ((current.masks[i] & required) != required)
+					continue;
+				int score = score(current.data, current.offsets[i], current.offsets[i + 1], pattern);
+				if (score != Integer.MIN_VALUE) {
+					best.offer(i, score);
+					matches[best.matched++] = i;
+				}
+			}
+			best.matches = matches;
+			return best;
+		}).reduce(Ranking::merge).orElseGet(() -> new Ranking(limit));
+		lastSearch = new Search(current, pattern, ranking.matches != null
+				? Arrays.copyOf(ranking.matches, ranking.matched)
+				: new int[0]);
+		List<String> paths = new ArrayList<String>(ranking.size);
+		for (int i = 0; i < ranking.size; i++)
+			paths.add(current.path(ranking.paths[i]));
+		return paths;
+	}
+
+	private static boolean startsWith(byte[] pattern, byte[] prefix) {
+		return pattern.length >= prefix.length && Arrays.equals(pattern, 0, prefix.length, prefix, 0, prefix.length);
+	}
+
+	private static int score(byte[] data, int start, int end, byte[] pattern) {
+		int score = match(data, start, end, pattern);
+		if (score < 0)
+			return Integer.MIN_VALUE;
+		int name = end;
+		while (name > start && data[name - 1] != '/')
+			name--;
+		int inName = name == start ? -1 : match(data, name, end, pattern);
+		if (inName >= 0 || name == start)
+			score = Math.max(score, inName) + 1000;
+		return score - (end - start);
+	}
+
+	// greedy in-order match of the pattern, or -1
+	private static int match(byte[] data, int start, int end, byte[] pattern) {
+		int score = 0;
+		int next = 0;
+		int previous = -2;
+		for (int i = start; i < end && next < pattern.length; i++) {
+			if (FOLD[data[i] & 0xFF] != pattern[next])
+				continue;
+			score += 10;
+			if (i == previous + 1)
+				score += 15;
+			if (i == start || isBoundary(data[i - 1], data[i]))
+				score += 20;
+			previous = i;
+			next++;
+		}
+		return next == pattern.length ? score : -1;
+	}
+
+	private static boolean isBoundary(byte before, byte current) {
+		return before == '/' || before == '_' || before == '-' || before == '.' || before == ' '
+				|| before >= 'a' && before <= 'z' && current >= 'A' && current <= 'Z';
+	}
+
+	private String relative(Path path) {
+		path = path.toAbsolutePath().normalize();
+		if (!path.startsWith(root))
+			return null;
+		return root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	private static String parentOf(String relative) {
+		int slash = relative.lastIndexOf('/');
+		return slash < 0 ? "" : relative.substring(0, slash);
+	}
+
+	private static String child(String relative, String name) {
+		return relative.isEmpty() ? name : relative + "/" + name;
+	}
+
+	/**
+	 * Walks the indexed directories below the given one, listing only those
+	 * that are new or whose modification time changed. Returns whether
+	 * anything changed.
+	 */
+	private boolean validate(String start) {
+		boolean changed = false;
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.push(start);
+		while (!pending.isEmpty()) {
+			String relative = pending.pop();
+			Directory directory = directories.get(relative);
+			long modified;
+			try {
+				modified = Files.getLastModifiedTime(root.resolve(relative)).toMillis();
+			} catch (IOException e) {
+				changed |= removeTree(relative);
+				continue;
+			}
+			if (directory == null || directory.modified != modified) {
+				directory = list(relative);
+				changed = true;
+			}
+			for (String name : directory.directories)
+				pending.push(child(relative, name));
+		}
+		return changed;
+	}
+
+	// lists the directory again, indexing new subdirectories and dropping removed ones
+	private void relist(String relative) {
+		Directory previous = directories.get(relative);
+		Directory directory = list(relative);
+		if (directory.modified < 0)
+			return;
+		Set<String> names = new HashSet<String>(Arrays.asList(directory.directories));
+		if (previous != null)
+			for (String name : previous.directories)
+				if (!names.contains(name))
+					removeTree(child(relative, name));
+		for (String name : directory.directories)
+			if (!directories.containsKey(child(relative, name)))
+				validate(child(relative, name));
+	}
+
+	private Directory list(String relative) {
+		Path dir = root.resolve(relative);
+		List<String> files = new ArrayList<String>();
+		List<String> subdirectories = new ArrayList<String>();
+		long modified;
+		try {
+			modified = Files.getLastModifiedTime(dir).toMillis();
+			IgnoreRules.Filter ignored = ignoreRules.forDirectory(dir);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path path : stream) {
+					boolean isDirectory;
+					try {
+						BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class,
+								LinkOption.NOFOLLOW_LINKS);
+						// links to directories are left out, as they may lead back up the tree
+						if (attributes.isSymbolicLink() && Files.isDirectory(path))
+							continue;
+						isDirectory = attributes.isDirectory();
+					} catch (IOException e) {
+						isDirectory = false;
+					}
+					String name = path.getFileName().toString();
+					if (!ignored.isIgnored(name, isDirectory))
+						(isDirectory ? subdirectories : files).add(name);
+				}
+			}
+		} catch (IOException e) {
+			removeTree(relative);
+			return new Directory(-1, new String[0], new String[0]);
+		}
+		Directory directory = new Directory(modified, files.toArray(new String[0]),
+				subdirectories.toArray(new String[0]));
+		directories.put(relative, directory);
+		return directory;
+	}
+
+	private boolean removeTree(String relative) {
+		boolean removed = false;
+		String prefix = relative + "/";
+		for (Iterator<String> keys = directories.keySet().iterator(); keys.hasNext();) {
+			String key = keys.next();
+			if (key.equals(relative) || relative.isEmpty() || key.startsWith(prefix)) {
+				keys.remove();
+				removed = true;
+			}
+		}
+		return removed;
+	}
+
+	private void scheduleRebuild() {
+		if (rebuildScheduled)
+			return;
+		rebuildScheduled = true;
+		executor.schedule(() -> {
+			rebuildScheduled = false;
+			rebuild();
+			if (!saveScheduled) {
+				saveScheduled = true;
+				executor.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+			}
+		}, REBUILD_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void rebuild() {
+		int count = 0;
+		for (Directory directory : directories.values())
+			count += directory.files.length;
+		byte[] data = new byte[Math.max(16, count * 32)];
+		int[] offsets = new int[count + 1];
+		long[] masks = new long[count];
+		int size = 0;
+		int i = 0;
+		for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+			for (String name : entry.getValue().files) {
+				byte[] path = child(entry.getKey(), name).getBytes(StandardCharsets.UTF_8);
+				if (size + path.length > data.length)
+					data = Arrays.copyOf(data, Math.max(data.length * 2, size + path.length));
+				System.arraycopy(path, 0, data, size, path.length);
+				long mask = 0;
+				for (byte b : path)
+					mask |= 1L << (FOLD[b & 0xFF] & 63);
+				masks[i] = mask;
+				offsets[i] = size;
+				size += path.length;
+				offsets[++i] = size;
+			}
+		}
+		snapshot = new Snapshot(data, offsets, masks, count);
+		version++;
+	}
+
+	private boolean load() {
+		if (!Files.isRegularFile(store))
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(store)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(root.toString())
+					|| in.readInt() != ignoreRules.getFingerprint())
+				return false;
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String relative = in.readUTF();
+				long modified = in.readLong();
+				String[] files = new String[in.readInt()];
+				for (int j = 0; j < files.length; j++)
+					files[j] = in.readUTF();
+				String[] subdirectories = new String[in.readInt()];
+				for (int j = 0; j < subdirectories.length; j++)
+					subdirectories[j] = in.readUTF();
+				directories.put(relative, new Directory(modified, files, subdirectories));
+			}
+			return true;
+		} catch (IOException e) {
+			directories.clear();
+			return false;
+		}
+	}
+
+	private void save() {
+		saveScheduled = false;
+		try {
+			Files.createDirectories(store.getParent());
+			Path temp = Files.createTempFile(store.getParent(), "file-index", ".tmp");
+			try {
+				try (DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(Files.newOutputStream(temp)))) {
+					out.writeInt(MAGIC);
+					out.writeInt(VERSION);
+					out.writeUTF(root.toString());
+					out.writeInt(ignoreRules.getFingerprint());
+					out.writeInt(directories.size());
+					for (Map.Entry<String, Directory> entry : directories.entrySet()) {
+						out.writeUTF(entry.getKey());
+						out.writeLong(entry.getValue().modified);
+						out.writeInt(entry.getValue().files.length);
+						for (String name : entry.getValue().files)
+							out.writeUTF(name);
+						out.writeInt(entry.getValue().directories.length);
+						for (String name : entry.getValue().directories)
+							out.writeUTF(name);
+					}
+				}
+				try {
+					Files.move(temp, store, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temp, store, StandardCopyOption.REPLACE_EXISTING);
+				}
+			} finally {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+
+/**
+ * Streams a file into a document through a {@link CharsetDecoder} without
+ * building an intermediate copy of the whole text. Line endings are normalized
+ * to \n, and the detected separator, charset and byte order mark are kept as
+ * document properties so that saving can restore them. Text that does not
+ * decode in the detected charset is reloaded in a fallback charset that maps
+ * every byte, so that saving never replaces what could not be decoded.
+ */
+public class FileLoader {
+	public static final String CHARSET_PROPERTY = "mango.charset";
+	public static final String BOM_PROPERTY = "mango.bom";
+	private static final int CHUNK = 1 << 16;
+
+	public static Charset detectCharset(ByteBuffer head) {
+		int p = head.position();
+		if (head.remaining() >= 3 && (head.get(p) & 0xFF) == 0xEF && (head.get(p + 1) & 0xFF) == 0xBB
+				&& (head.get(p + 2) & 0xFF) == 0xBF) {
+			head.position(p + 3);
+			return StandardCharsets.UTF_8;
+		}
+		if (head.remaining() >= 2 && (head.get(p) & 0xFF) == 0xFE && (head.get(p + 1) & 0xFF) == 0xFF) {
+			head.position(p + 2);
+			return StandardCharsets.UTF_16BE;
+		}
+		if (head.remaining() >= 2 && (head.get(p) & 0xFF) == 0xFF && (head.get(p + 1) & 0xFF) == 0xFE) {
+			head.position(p + 2);
+			return StandardCharsets.UTF_16LE;
+		}
+		CoderResult result = StandardCharsets.UTF_8.newDecoder().decode(head.duplicate(),
+				CharBuffer.allocate(head.remaining()), false);
+		if (!result.isError())
+			return StandardCharsets.UTF_8;
+		return fallbackCharset();
+	}
+
+	// not valid UTF-8; fall back to a charset that accepts any byte
+	private static Charset fallbackCharset() {
+		Charset fallback = Charset.defaultCharset();
+		return fallback.equals(StandardCharsets.UTF_8) || fallback.equals(StandardCharsets.US_ASCII)
+				? StandardCharsets.ISO_8859_1
+				: fallback;
+	}
+
+	/**
+	 * Appends the file's text to the (not yet displayed) document. Returns false
+	 * if loading was cancelled midway.
+	 */
+	public static boolean load(File file, Document doc, IntConsumer progress, BooleanSupplier cancelled)
+			throws IOException, BadLocationException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			Charset charset = null;
+			while (true) {
+				try {
+					return load(channel, charset, doc, progress, cancelled);
+				} catch (CharacterCodingException e) {
+					// starts over in a charset that decodes more, down to one that decodes every byte
+					Object failed = doc.getProperty(CHARSET_PROPERTY);
+					if (StandardCharsets.ISO_8859_1.equals(failed))
+						throw e;
+					charset = fallbackCharset().equals(failed) ? StandardCharsets.ISO_8859_1 : fallbackCharset();
+					doc.remove(0, doc.getLength());
+					channel.position(0);
+				}
+			}
+		}
+	}
+
+	// decodes in the given charset, or the detected one if null, and fails on bytes that do not decode
+	private static boolean load(FileChannel channel, Charset charset, Document doc, IntConsumer progress,
+			BooleanSupplier cancelled) throws IOException, BadLocationException {
+		long size = Math.max(1, channel.size());
+		ByteBuffer bytes = ByteBuffer.allocate(CHUNK);
+		boolean eof = channel.read(bytes) < 0;
+		long read = bytes.position();
+		bytes.flip();
+		int head = bytes.position();
+		if (charset == null)
+			charset = detectCharset(bytes);
+		doc.putProperty(CHARSET_PROPERTY, charset);
+		doc.putProperty(BOM_PROPERTY, bytes.position() != head);
+		CharsetDecoder decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+				.onUnmappableCharacter(CodingErrorAction.REPORT);
+		CharBuffer chars = CharBuffer.allocate(CHUNK);
+		StringBuilder text = new StringBuilder(CHUNK);
+		boolean pendingCR = false;
+		String eol = null;
+		int lastPercent = -1;
+		while (true) {
+			if (cancelled.getAsBoolean())
+				return false;
+			CoderResult result = decoder.decode(bytes, chars, eof);
+			if (result.isError())
+				result.throwException();
+			boolean done = eof && result.isUnderflow();
+			if (done)
+				decoder.flush(chars);
+			chars.flip();
+			text.setLength(0);
+			while (chars.hasRemaining()) {
+				char c = chars.get();
+				if (pendingCR) {
+					pendingCR = false;
+					if (eol == null)
+						eol = c == '\n' ? "\r\n" : "\r";
+					text.append('\n');
+					if (c == '\n')
+						continue;
+				}
+				if (c == '\r')
+					pendingCR = true;
+				else {
+					if (c == '\n' && eol == null)
+						eol = "\n";
+					text.append(c);
+				}
+			}
+			chars.clear();
+			if (done && pendingCR) {
+				if (eol == null)
+					eol = "\r";
+				text.append('\n');
+			}
+			if (text.length() > 0)
+				doc.insertString(doc.getLength(), text.toString(), null);
+			if (done)
+				break;
+			if (result.isOverflow())
+				continue;
+			bytes.compact();
+			int n = channel.read(bytes);
+			bytes.flip();
+			if (n < 0)
+				eof = true;
+			else
+				read += n;
+			int percent = (int) Math.min(100, 100 * read / size);
+			if (percent != lastPercent) {
+				progress.accept(percent);
+				lastPercent = percent;
+			}
+		}
+		doc.putProperty(DefaultEditorKit.EndOfLineStringProperty, eol != null ? eol : "\n");
+		return true;
+	}
+}
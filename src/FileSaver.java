@@ -0,0 +1,231 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntConsumer;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultEditorKit;
+import javax.swing.text.Document;
+import javax.swing.text.Segment;
+
+/**
+ * Writes documents to disk off the EDT. The text is encoded chunk by chunk
+ * into a temporary file next to the target, which then atomically replaces
+ * it, so that a crash never leaves a truncated file behind.
+ */
+public class FileSaver {
+	public static final String REVISION_PROPERTY = "mango.revision";
+	private static final int CHUNK = 1 << 16;
+
+	// call on every edit, from the document listener, to tell saved from newer content apart
+	public static void markEdited(Document doc) {
+		doc.putProperty(REVISION_PROPERTY, getRevision(doc) + 1);
+	}
+
+	public static int getRevision(Document doc) {
+		Object revision = doc.getProperty(REVISION_PROPERTY);
+		return revision instanceof Integer ? (Integer) revision : 0;
+	}
+
+	/**
+	 * Saves the document with the charset, byte order mark and line separator
+	 * recorded by {@link FileLoader}. Returns the revision that was written.
+	 * Edits wait only while a chunk is copied, unless the document is edited
+	 * during the save, which then starts over from a copy of the whole text.
+	 */
+	public static int save(Document doc, File file, IntConsumer progress) throws IOException {
+		Path target = file.toPath().toAbsolutePath();
+		// saves into the file a link points to rather than replacing the link
+		if (Files.exists(target))
+			target = target.toRealPath();
+		Object charsetProperty = doc.getProperty(FileLoader.CHARSET_PROPERTY);
+		Charset charset = charsetProperty instanceof Charset ? (Charset) charsetProperty : Charset.defaultCharset();
+		Object eolProperty = doc.getProperty(DefaultEditorKit.EndOfLineStringProperty);
+		String eol = eolProperty == null ? "\n" : eolProperty.toString();
+		boolean bom = Boolean.TRUE.equals(doc.getProperty(FileLoader.BOM_PROPERTY));
+
+		Path temp = Files.createTempFile(target.getParent(), "." + target.getFileName() + ".", ".tmp");
+		try {
+			int revision;
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				revision = writeChunks(doc, new Writer(channel, charset, eol, bom), progress);
+				if (revision < 0) {
+					channel.truncate(0);
+					channel.position(0);
+					revision = writeCopy(doc, new Writer(channel, charset, eol, bom), progress);
+				}
+				channel.force(true);
+			}
+			copyPermissions(target, temp);
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			return revision;
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Writes the text a chunk at a time, each copied out under the read lock.
+	 * Returns the revision written, or -1 if the document was edited meanwhile.
+	 */
+	private static int writeChunks(Document doc, Writer writer, IntConsumer progress) throws IOException {
+		char[] chunk = new char[CHUNK];
+		Segment segment = new Segment();
+		segment.setPartialReturn(true);
+		int revision = -1;
+		for (int offset = 0;;) {
+			int count;
+			readLock(doc);
+			try {
+				if (revision < 0)
+					revision = getRevision(doc);
+				else if (getRevision(doc) != revision)
+					return -1;
+				int length = doc.getLength();
+				if (offset >= length)
+					break;
+				doc.getText(offset, Math.min(CHUNK, length - offset), segment);
+				count = segment.count;
+				System.arraycopy(segment.array, segment.offset, chunk, 0, count);
+				// keep surrogate pairs within one chunk
+				if (count > 1 && offset + count < length && Character.isHighSurrogate(chunk[count - 1]))
+					count--;
+			} catch (BadLocationException e) {
+				throw new IOException(e);
+			} finally {
+				readUnlock(doc);
+			}
+			writer.writeText(chunk, 0, count);
+			offset += count;
+			progress.accept(count);
+		}
+		writer.finish();
+		return revision;
+	}
+
+	// writes a copy of the whole text, taken under one read lock so that edits cannot interleave
+	private static int writeCopy(Document doc, Writer writer, IntConsumer progress) throws IOException {
+		int revision;
+		char[] text;
+		readLock(doc);
+		try {
+			revision = getRevision(doc);
+			text = new char[doc.getLength()];
+			Segment segment = new Segment();
+			segment.setPartialReturn(true);
+			for (int offset = 0; offset < text.length; offset += segment.count) {
+				doc.getText(offset, text.length - offset, segment);
+				System.arraycopy(segment.array, segment.offset, text, offset, segment.count);
+			}
+		} catch (BadLocationException e) {
+			throw new IOException(e);
+		} finally {
+			readUnlock(doc);
+		}
+		for (int offset = 0; offset < text.length;) {
+			int count = Math.min(CHUNK, text.length - offset);
+			if (count > 1 && offset + count < text.length && Character.isHighSurrogate(text[offset + count - 1]))
+				count--;
+			writer.writeText(text, offset, count);
+			offset += count;
+			progress.accept(count);
+		}
+		writer.finish();
+		return revision;
+	}
+
+	private static void readLock(Document doc) {
+		if (doc instanceof AbstractDocument)
+			((AbstractDocument) doc).readLock();
+	}
+
+	private static void readUnlock(Document doc) {
+		if (doc instanceof AbstractDocument)
+			((AbstractDocument) doc).readUnlock();
+	}
+
+	private static void copyPermissions(Path from, Path to) {
+		try {
+			if (Files.exists(from))
+				Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+		} catch (UnsupportedOperationException | IOException e) {
+			// not a POSIX file system; keep the defaults
+		}
+	}
+
+	private static class Writer {
+		private final FileChannel channel;
+		private final CharsetEncoder encoder;
+		private final CharBuffer eol;
+		private final ByteBuffer bytes = ByteBuffer.allocate(CHUNK);
+
+		Writer(FileChannel channel, Charset charset, String eol, boolean bom) throws IOException {
+			this.channel = channel;
+			this.encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			this.eol = CharBuffer.wrap(eol);
+			if (bom)
+				write(CharBuffer.wrap("\uFEFF"));
+		}
+
+		// the chars must not end in the first half of a surrogate pair, which the encoder would drop
+		void writeText(char[] text, int offset, int count) throws IOException {
+			if ("\n".contentEquals(eol)) {
+				write(CharBuffer.wrap(text, offset, count));
+				return;
+			}
+			int start = offset;
+			int end = offset + count;
+			for (int i = start; i < end; i++)
+				if (text[i] == '\n') {
+					write(CharBuffer.wrap(text, start, i - start));
+					write(eol.duplicate());
+					start = i + 1;
+				}
+			write(CharBuffer.wrap(text, start, end - start));
+		}
+
+		void write(CharBuffer chars) throws IOException {
+			while (true) {
+				CoderResult result = encoder.encode(chars, bytes, false);
+				if (result.isOverflow())
+					drain();
+				else
+					break;
+			}
+		}
+
+		void finish() throws IOException {
+			CharBuffer empty = CharBuffer.allocate(0);
+			while (encoder.encode(empty, bytes, true).isOverflow())
+				drain();
+			while (encoder.flush(bytes).isOverflow())
+				drain();
+			drain();
+		}
+
+		private void drain() throws IOException {
+			bytes.flip();
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+			bytes.clear();
+		}
+	}
+}
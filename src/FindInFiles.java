@@ -0,0 +1,562 @@
+import java.awt.BorderLayout;
+import java.awt.Component;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.BoxLayout;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.JTree;
+import javax.swing.Timer;
+import javax.swing.event.AncestorEvent;
+import javax.swing.event.AncestorListener;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.tree.DefaultMutableTreeNode;
+import javax.swing.tree.DefaultTreeCellRenderer;
+import javax.swing.tree.DefaultTreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * Searches all files of the project for a {@link SearchQuery}. Directories and files
+ * are searched in parallel on a fork-join pool. Small files are read into
+ * per-thread buffers and large ones streamed through a per-thread window;
+ * they are not mapped, as Windows keeps a mapped file from being replaced or
+ * deleted until the mapping is collected. Binary files are skipped and open
+ * files with unsaved edits are searched in their documents. Hits stream
+ * into a results tab, grouped by file. A file whose regular expression search
+ * runs out of its time budget is left out.
+ */
+public class FindInFiles {
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+	private static final long STREAM_THRESHOLD = 1 << 20;
+	private static final int BINARY_CHECK = 8000;
+	private static final int DETECT_BYTES = 1 << 16;
+	private static final int CHARS = 1 << 16;
+	private static final int PREVIEW_BEFORE = 60;
+	private static final int PREVIEW_AFTER = 120;
+	private static final int MAX_HITS = 10000;
+	private static final long FILE_BUDGET = 2000;
+	private static String previousQuery = "";
+	private static boolean previousRegex = false;
+
+	public static class Hit {
+		public final int line;
+		public final int column;
+		public final int length;
+		public final String preview;
+
+		Hit(int line, int column, int length, String preview) {
+			this.line = line;
+			this.column = column;
+			this.length = length;
+			this.preview = preview;
+		}
+
+		@Override
+		public String toString() {
+			return (line + 1) + ": " + preview;
+		}
+	}
+
+	/** The hits of one file, as they are delivered. */
+	public static class FileHits {
+		public final File file;
+		public final List<Hit> hits;
+
+		FileHits(File file, List<Hit> hits) {
+			this.file = file;
+			this.hits = hits;
+		}
+	}
+
+	private final Path root;
+	private final IgnoreRules ignoreRules;
+	private final SearchQuery query;
+	private final Map<File, Document> unsaved;
+	private final TrigramIndex contentIndex;
+	// project-relative paths of the only files to search, or null to search all; picked as the search starts
+	private volatile Collection<String> candidates;
+	private final Queue<FileHits> results = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger files = new AtomicInteger();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger timedOut = new AtomicInteger();
+	private final AtomicLong bytes = new AtomicLong();
+	private final ThreadLocal<Searcher> searchers = ThreadLocal.withInitial(Searcher::new);
+	private volatile boolean cancelled = false;
+	private volatile boolean done = false;
+
+	public FindInFiles(File projectDir, IgnoreRules ignoreRules, SearchQuery query, Map<File, Document> unsaved,
+			TrigramIndex contentIndex) {
+		this.root = projectDir.toPath().toAbsolutePath().normalize();
+		this.ignoreRules = ignoreRules;
+		this.query = query;
+		this.unsaved = unsaved;
+		this.contentIndex = contentIndex;
+	}
+
+	public void start() {
+		POOL.execute(() -> {
+			try {
+				candidates = candidates();
+				if (candidates == null)
+					new DirectoryTask(root).invoke();
+				else {
+					List<FileTask> tasks = new ArrayList<>(candidates.size());
+					for (String candidate : candidates)
+						tasks.add(new FileTask(root.resolve(candidate), -1));
+					ForkJoinTask.invokeAll(tasks);
+				}
+			} finally {
+				done = true;
+			}
+		});
+	}
+
+	public void cancel() {
+		cancelled = true;
+	}
+
+	// the files the content index cannot rule out, or null to search all
+	private Collection<String> candidates() {
+		// regular expressions are narrowed down by the literal text they require, if any
+		List<String> indexed = contentIndex != null
+				? contentIndex.candidates(query.requiredTexts(), query.isCaseSensitive())
+				: null;
+		if (indexed == null)
+			return null;
+		// unsaved edits may hold the text even where the file does not
+		Set<String> candidates = new LinkedHashSet<>(indexed);
+		for (File file : unsaved.keySet()) {
+			Path path = file.toPath().toAbsolutePath().normalize();
+			if (path.startsWith(root))
+				candidates.add(root.relativize(path).toString().replace(File.separatorChar, '/'));
+		}
+		return candidates;
+	}
+
+	public boolean isDone() {
+		return done;
+	}
+
+	// hits were dropped after reaching the limit
+	public boolean isTruncated() {
+		return hits.get() >= MAX_HITS;
+	}
+
+	// whether a content index picked the files to search
+	public boolean isNarrowed() {
+		return candidates != null;
+	}
+
+	public int getFiles() {
+		return files.get();
+	}
+
+	public int getHits() {
+		return Math.min(hits.get(), MAX_HITS);
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	// files left out because matching them took too long
+	public int getTimedOut() {
+		return timedOut.get();
+	}
+
+	// the files with hits found since the last call
+	public List<FileHits> poll() {
+		List<FileHits> polled = new ArrayList<>();
+		for (FileHits fileHits = results.poll(); fileHits != null; fileHits = results.poll())
+			polled.add(fileHits);
+		return polled;
+	}
+
+	private class DirectoryTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+
+		DirectoryTask(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled)
+				return;
+			IgnoreRules.Filter filter = ignoreRules.forDirectory(dir);
+			List<RecursiveAction> tasks = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+				for (Path path : stream) {
+					BasicFileAttributes attributes;
+					try {
+						attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					} catch (IOException e) {
+						continue;
+					}
+					String name = path.getFileName().toString();
+					if (filter.isIgnored(name, attributes.isDirectory()))
+						continue;
+					if (attributes.isDirectory())
+						tasks.add(new DirectoryTask(path));
+					else if (attributes.isRegularFile())
+						tasks.add(new FileTask(path, attributes.size()));
+				}
+			} catch (IOException e) {
+				return;
+			}
+			invokeAll(tasks);
+		}
+	}
+
+	private class FileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path path;
+		private final long size;
+
+		FileTask(Path path, long size) {
+			this.path = path;
+			this.size = size;
+		}
+
+		@Override
+		protected void compute() {
+			if (cancelled)
+				return;
+			File file = path.toFile();
+			List<Hit> found;
+			try {
+				Document doc = unsaved.get(file);
+				found = doc != null ? searchDocument(doc)
+						: searchers.get().search(path, size >= 0 ? size : Files.size(path));
+			} catch (SearchQuery.TimeoutException e) {
+				timedOut.incrementAndGet();
+				return;
+			} catch (IOException | RuntimeException e) {
+				// a file that cannot be read is skipped, without ending the search
+				return;
+			}
+			files.incrementAndGet();
+			if (found.isEmpty())
+				return;
+			int total = hits.addAndGet(found.size());
+			if (total >= MAX_HITS) {
+				cancelled = true;
+				found = found.subList(0, Math.max(0, found.size() - (total - MAX_HITS)));
+				if (found.isEmpty())
+					return;
+			}
+			results.add(new FileHits(file, found));
+		}
+	}
+
+	private List<Hit> searchDocument(Document doc) {
+		List<Hit> found = new ArrayList<>();
+		doc.render(() -> {
+			CharSequence text = query.limit(new DocumentText(doc), FILE_BUDGET);
+			Element lines = doc.getDefaultRootElement();
+			for (long match = query.find(text, 0, text.length() + 1); match >= 0
+					&& !cancelled; match = query.find(text, after(match), text.length() + 1)) {
+				int s = SearchQuery.start(match);
+				int e = SearchQuery.end(match);
+				Element line = lines.getElement(lines.getElementIndex(s));
+				int end = Math.max(s, Math.min(line.getEndOffset() - 1, e + PREVIEW_AFTER));
+				int start = Math.max(line.getStartOffset(), s - PREVIEW_BEFORE);
+				found.add(new Hit(lines.getElementIndex(s), s - line.getStartOffset(), e - s, preview(text, start, end)));
+			}
+		});
+		return found;
+	}
+
+	// where the next match may start, past empty ones
+	private static int after(long match) {
+		int end = SearchQuery.end(match);
+		return end > SearchQuery.start(match) ? end : end + 1;
+	}
+
+	private static String preview(CharSequence text, int start, int end) {
+		StringBuilder preview = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			preview.append(c == '\t' || c == '\n' ? ' ' : c);
+		}
+		return preview.toString().strip();
+	}
+
+	/** Buffers of one pool thread, reused across files. */
+	private class Searcher {
+		private final Map<Charset, CharsetDecoder> decoders = new HashMap<>();
+		private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		// large files are read through this a piece at a time
+		private final ByteBuffer window = ByteBuffer.allocate(1 << 16);
+		private CharBuffer chars = CharBuffer.allocate(Math.max(CHARS, 4 * (query.maxLength() + PREVIEW_BEFORE + PREVIEW_AFTER)));
+
+		List<Hit> search(Path path, long size) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				ByteBuffer in;
+				FileChannel rest = null;
+				if (size > STREAM_THRESHOLD) {
+					in = window.clear();
+					while (in.hasRemaining() && channel.read(in) > 0)
+						;
+					in.flip();
+					rest = channel;
+				} else {
+					if (buffer.capacity() < size)
+						buffer = ByteBuffer.allocate(Integer.highestOneBit((int) size) << 1);
+					buffer.clear();
+					while (buffer.position() < size && channel.read(buffer) > 0)
+						;
+					buffer.flip();
+					in = buffer;
+				}
+				bytes.addAndGet(rest != null ? size : in.remaining());
+				int head = in.position();
+				ByteBuffer start = in.duplicate();
+				start.limit(Math.min(in.limit(), head + DETECT_BYTES));
+				Charset charset = FileLoader.detectCharset(start);
+				in.position(start.position());
+				boolean wide = charset.equals(StandardCharsets.UTF_16BE) || charset.equals(StandardCharsets.UTF_16LE);
+				if (!wide && isBinary(in, head))
+					return List.of();
+				CharsetDecoder decoder = decoders.computeIfAbsent(charset, c -> c.newDecoder()
+						.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE));
+				return search(decoder.reset(), in, rest);
+			}
+		}
+
+		private boolean isBinary(ByteBuffer in, int head) {
+			int end = Math.min(in.limit(), head + BINARY_CHECK);
+			for (int i = head; i < end; i++)
+				if (in.get(i) == 0)
+					return true;
+			return false;
+		}
+
+		// decodes chunk by chunk, keeping enough of each chunk to continue lines and previews in the next
+		// rest, if given, holds the bytes that follow those of in, which is then the window
+		private List<Hit> search(CharsetDecoder decoder, ByteBuffer in, FileChannel rest) throws IOException {
+			List<Hit> found = new ArrayList<>();
+			int m = query.maxLength();
+			CharSequence text = query.limit(chars, FILE_BUDGET);
+			int line = 0;
+			// newlines before counted are counted, and lineStart is where the line at counted starts
+			int counted = 0;
+			int lineStart = 0;
+			int from = 0;
+			chars.clear();
+			boolean eof = rest == null;
+			while (!cancelled) {
+				CoderResult result = decoder.decode(in, chars, eof);
+				if (result.isUnderflow() && !eof) {
+					in.compact();
+					eof = rest.read(in) < 0;
+					in.flip();
+					continue;
+				}
+				boolean last = result.isUnderflow();
+				if (last)
+					decoder.flush(chars);
+				chars.flip();
+				int limit = chars.limit();
+				// matches starting before cut are whole, and so is their preview
+				int cut = last ? limit + 1 : Math.max(from, limit - m - PREVIEW_AFTER);
+				char[] array = chars.array();
+				for (long match = query.find(text, from, cut); match >= 0; match = query.find(text, from, cut)) {
+					int s = SearchQuery.start(match);
+					for (; counted < s; counted++)
+						if (array[counted] == '\n') {
+							line++;
+							lineStart = counted + 1;
+						}
+					int e = SearchQuery.end(match);
+					int end = e;
+					while (end < limit && end < e + PREVIEW_AFTER && array[end] != '\n')
+						end++;
+					found.add(new Hit(line, s - lineStart, e - s,
+							preview(chars, Math.max(lineStart, s - PREVIEW_BEFORE), end).replace('\r', ' ')));
+					from = after(match);
+				}
+				if (last)
+					break;
+				int resume = Math.max(from, cut);
+				int keep = Math.max(0, resume - PREVIEW_BEFORE);
+				for (; counted < keep; counted++)
+					if (array[counted] == '\n') {
+						line++;
+						lineStart = counted + 1;
+					}
+				chars.position(keep);
+				chars.compact();
+				from = resume - keep;
+				counted -= keep;
+				lineStart -= keep;
+			}
+			return found;
+		}
+	}
+
+	public static void showFindDialog(CodeEditor parent) {
+		if (parent.projectDir == null)
+			return;
+		JTextField queryField = new JTextField(previousQuery, 30);
+		String selected = parent.getSelectedText();
+		if (selected != null && !selected.isEmpty() && selected.indexOf('\n') < 0)
+			queryField.setText(selected);
+		queryField.selectAll();
+		JCheckBox caseSensitiveCheckBox = new JCheckBox("Case Sensitive");
+		JCheckBox regexCheckBox = new JCheckBox("Regular Expression", previousRegex);
+		JPanel panel = new JPanel();
+		panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+		panel.add(queryField);
+		panel.add(caseSensitiveCheckBox);
+		panel.add(regexCheckBox);
+		queryField.addAncestorListener(new AncestorListener() {
+			@Override
+			public void ancestorAdded(AncestorEvent event) {
+				queryField.requestFocusInWindow();
+			}
+
+			@Override
+			public void ancestorRemoved(AncestorEvent event) {
+			}
+
+			@Override
+			public void ancestorMoved(AncestorEvent event) {
+			}
+		});
+		int option = JOptionPane.showConfirmDialog(parent, panel, "Find in files", JOptionPane.OK_CANCEL_OPTION,
+				JOptionPane.PLAIN_MESSAGE);
+		String text = queryField.getText();
+		if (option != JOptionPane.OK_OPTION || text.isEmpty())
+			return;
+		previousQuery = text;
+		previousRegex = regexCheckBox.isSelected();
+		SearchQuery query = Search.query(parent, text, caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected());
+		if (query == null)
+			return;
+		FindInFiles search = new FindInFiles(parent.projectDir, parent.getIgnoreRules(), query,
+				parent.getUnsavedDocuments(), parent.getContentIndex());
+		showResults(parent, search, text);
+		search.start();
+	}
+
+	private static void showResults(CodeEditor parent, FindInFiles search, String query) {
+		DefaultMutableTreeNode rootNode = new DefaultMutableTreeNode(query);
+		DefaultTreeModel model = new DefaultTreeModel(rootNode);
+		JTree tree = new JTree(model);
+		tree.setRootVisible(false);
+		tree.setShowsRootHandles(true);
+		JLabel status = new JLabel("Searching...");
+		JPanel panel = new JPanel(new BorderLayout());
+		panel.add(status, BorderLayout.NORTH);
+		panel.add(new JScrollPane(tree), BorderLayout.CENTER);
+
+		tree.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				TreePath path = tree.getPathForLocation(e.getX(), e.getY());
+				if (path == null)
+					return;
+				DefaultMutableTreeNode node = (DefaultMutableTreeNode) path.getLastPathComponent();
+				if (node.getUserObject() instanceof Hit) {
+					Hit hit = (Hit) node.getUserObject();
+					File file = (File) ((DefaultMutableTreeNode) node.getParent()).getUserObject();
+					parent.openFileAt(file, hit.line, hit.column, hit.length);
+				}
+			}
+		});
+		tree.setCellRenderer(new DefaultTreeCellRenderer() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public Component getTreeCellRendererComponent(JTree tree, Object value, boolean selected,
+					boolean expanded, boolean leaf, int row, boolean hasFocus) {
+				super.getTreeCellRendererComponent(tree, value, selected, expanded, leaf, row, hasFocus);
+				Object object = ((DefaultMutableTreeNode) value).getUserObject();
+				if (object instanceof File) {
+					DefaultMutableTreeNode node = (DefaultMutableTreeNode) value;
+					setText(parent.projectDir.toPath().relativize(((File) object).toPath()) + " ("
+							+ node.getChildCount() + ")");
+					setIcon(getDefaultClosedIcon());
+				} else
+					setIcon(null);
+				return this;
+			}
+		});
+
+		long started = System.nanoTime();
+		Timer drain = new Timer(100, null);
+		drain.addActionListener(e -> {
+			for (FileHits fileHits : search.poll()) {
+				DefaultMutableTreeNode fileNode = new DefaultMutableTreeNode(fileHits.file);
+				for (Hit hit : fileHits.hits)
+					fileNode.add(new DefaultMutableTreeNode(hit, false));
+				// keep files sorted as they stream in
+				int low = 0;
+				int high = rootNode.getChildCount();
+				while (low < high) {
+					int middle = (low + high) >>> 1;
+					File other = (File) ((DefaultMutableTreeNode) rootNode.getChildAt(middle)).getUserObject();
+					if (other.compareTo(fileHits.file) < 0)
+						low = middle + 1;
+					else
+						high = middle;
+				}
+				model.insertNodeInto(fileNode, rootNode, low);
+				if (rootNode.getChildCount() <= 20)
+					tree.expandPath(new TreePath(fileNode.getPath()));
+			}
+			String summary = search.getHits() + (search.isTruncated() ? "+" : "") + " hits in "
+					+ rootNode.getChildCount() + " files, " + search.getFiles() + " files searched ("
+					+ (search.getBytes() >> 20) + " MB" + (search.isNarrowed() ? ", narrowed by the content index)" : ")")
+					+ (search.getTimedOut() > 0 ? ", " + search.getTimedOut() + " files took too long to match" : "");
+			if (search.isDone()) {
+				status.setText(String.format("%s in %.1f s", summary, (System.nanoTime() - started) / 1e9));
+				drain.stop();
+			} else
+				status.setText("Searching... " + summary);
+		});
+		drain.start();
+		parent.addResultsTab("Find: " + query, panel, () -> {
+			search.cancel();
+			drain.stop();
+		});
+	}
+}
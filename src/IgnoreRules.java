@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which project files are ignored, following the .gitignore files of
+ * the project, .git/info/exclude and the ignore list of the project's
+ * settings, which take precedence in reverse order. Patterns are compiled once
+ * per .gitignore and cached per directory. Safe to use from any thread.
+ */
+public class IgnoreRules {
+	private static final String IGNORE_FILE = ".gitignore";
+
+	private static class Rule {
+		final Pattern pattern;
+		final boolean negated;
+		final boolean directoryOnly;
+
+		Rule(Pattern pattern, boolean negated, boolean directoryOnly) {
+			this.pattern = pattern;
+			this.negated = negated;
+			this.directoryOnly = directoryOnly;
+		}
+	}
+
+	/**
+	 * The rules that apply to the entries of one directory, from the lowest to
+	 * the highest precedence, each with the entry's path prefix relative to the
+	 * directory that holds the rules.
+	 */
+	public class Filter {
+		private final List<List<Rule>> layers = new ArrayList<>();
+		private final List<String> prefixes = new ArrayList<>();
+
+		private void add(List<Rule> rules, String prefix) {
+			if (!rules.isEmpty()) {
+				layers.add(rules);
+				prefixes.add(prefix);
+			}
+		}
+
+		public boolean isIgnored(String name, boolean directory) {
+			if (isHidden(name, directory))
+				return true;
+			boolean ignored = false;
+			for (int i = 0; i < layers.size(); i++) {
+				String path = prefixes.get(i) + name;
+				for (Rule rule : layers.get(i))
+					if ((directory || !rule.directoryOnly) && rule.negated == ignored
+							&& rule.pattern.matcher(path).matches())
+						ignored = !rule.negated;
+			}
+			return ignored;
+		}
+	}
+
+	private final Path root;
+	private final List<Rule> excluded;
+	private final List<Rule> configured;
+	private final Map<Path, List<Rule>> cache = new ConcurrentHashMap<>();
+	private final int fingerprint;
+
+	public IgnoreRules(File projectDir, List<String> patterns) {
+		root = projectDir.toPath().toAbsolutePath().normalize();
+		List<String> exclude = read(root.resolve(".git").resolve("info").resolve("exclude"));
+		if (patterns == null)
+			patterns = Collections.emptyList();
+		excluded = parse(exclude);
+		configured = parse(patterns);
+		fingerprint = Objects.hash(exclude, patterns);
+	}
+
+	// directories hidden whatever the rules say, such as .git, .mango or __pycache__
+	public static boolean isHidden(String name, boolean directory) {
+		return directory && (name.startsWith(".") || name.startsWith("__"));
+	}
+
+	// identifies the project-wide rules; the rules of .gitignore files are not included
+	public int getFingerprint() {
+		return fingerprint;
+	}
+
+	public static boolean isIgnoreFile(Path path) {
+		return path.getFileName() != null && IGNORE_FILE.equals(path.getFileName().toString());
+	}
+
+	// call when the .gitignore of the directory changes
+	public void invalidate(Path dir) {
+		cache.remove(dir.toAbsolutePath().normalize());
+	}
+
+	public Filter forDirectory(Path dir) {
+		Filter filter = new Filter();
+		dir = dir.toAbsolutePath().normalize();
+		if (!dir.startsWith(root))
+			return filter;
+		String relative = relative(root, dir);
+		filter.add(excluded, relative);
+		for (Path layer = root;; layer = layer.resolve(dir.getName(layer.getNameCount()))) {
+			filter.add(rulesOf(layer), relative(layer, dir));
+			if (layer.equals(dir))
+				break;
+		}
+		filter.add(configured, relative);
+		return filter;
+	}
+
+	public boolean isIgnored(Path path, boolean directory) {
+		path = path.toAbsolutePath().normalize();
+		if (path.getParent() == null || path.equals(root))
+			return false;
+		return forDirectory(path.getParent()).isIgnored(path.getFileName().toString(), directory);
+	}
+
+	// the prefix that turns names within dir into paths relative to base
+	private static String relative(Path base, Path dir) {
+		if (base.equals(dir))
+			return "";
+		return base.relativize(dir).toString().replace(File.separatorChar, '/') + "/";
+	}
+
+	private List<Rule> rulesOf(Path dir) {
+		return cache.computeIfAbsent(dir, d -> parse(read(d.resolve(IGNORE_FILE))));
+	}
+
+	private static List<String> read(Path file) {
+		if (!Files.isRegularFile(file))
+			return Collections.emptyList();
+		try {
+			return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).lines().toList();
+		} catch (IOException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	private static List<Rule> parse(List<String> lines) {
+		List<Rule> rules = new ArrayList<>();
+		for (String line : lines) {
+			// trailing spaces are dropped unless escaped
+			int end = line.length();
+			while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\'))
+				end--;
+			line = line.substring(0, end);
+			if (line.isEmpty() || line.startsWith("#"))
+				continue;
+			boolean negated = line.startsWith("!");
+			if (negated)
+				line = line.substring(1);
+			else if (line.startsWith("\\!") || line.startsWith("\\#"))
+				line = line.substring(1);
+			boolean directoryOnly = line.endsWith("/");
+			if (directoryOnly)
+				line = line.substring(0, line.length() - 1);
+			// a slash anywhere but at the end anchors the pattern to the directory of the rules
+			boolean anchored = line.contains("/");
+			if (line.startsWith("/"))
+				line = line.substring(1);
+			if (line.isEmpty())
+				continue;
+			rules.add(new Rule(Pattern.compile((anchored ? "" : "(?:.*/)?") + toRegex(line)), negated, directoryOnly));
+		}
+		return rules.isEmpty() ? Collections.emptyList() : rules;
+	}
+
+	private static String toRegex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		int n = glob.length();
+		for (int i = 0; i < n; i++) {
+			char c = glob.charAt(i);
+			boolean segmentStart = i == 0 || glob.charAt(i - 1) == '/';
+			if (c == '*' && segmentStart && glob.startsWith("**", i) && (i + 2 == n || glob.charAt(i + 2) == '/')) {
+				if (i + 2 == n) {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("(?:.*/)?");
+					i += 2;
+				}
+				continue;
+			}
+			if (c == '*')
+				regex.append("[^/]*");
+			else if (c == '?')
+				regex.append("[^/]");
+			else if (c == '[') {
+				int close = glob.indexOf(']', i + 2);
+				if (close < 0) {
+					regex.append("\\[");
+					continue;
+				}
+				String set = glob.substring(i + 1, close);
+				if (set.startsWith("!"))
+					set = "^" + set.substring(1);
+				regex.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+				i = close;
+			} else if (c == '\\' && i + 1 < n)
+				regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+			else
+				regex.append(Pattern.quote(String.valueOf(c)));
+		}
+		return regex.toString();
+	}
+}
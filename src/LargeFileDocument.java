@@ -0,0 +1,491 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntConsumer;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.SimpleAttributeSet;
+import javax.swing.undo.UndoableEdit;
+
+/**
+ * Read-only document over a memory-mapped file. The file is split into pages
+ * that end on line (or character) boundaries; only a small cache of decoded
+ * pages lives on the heap, so memory stays flat regardless of the file size.
+ */
+public class LargeFileDocument extends AbstractDocument {
+	private static final long serialVersionUID = -2841760912635480721L;
+	private static final int PAGE_SIZE = 1 << 16;
+	private static final long SEGMENT_SIZE = 1L << 30;
+	private static final int SEGMENT_OVERLAP = 4 * PAGE_SIZE;
+	private static final int CACHED_PAGES = 32;
+
+	private final File file;
+	private final Charset charset;
+	private final MappedByteBuffer[] segments;
+	// how a newline is encoded, whose length is also the code unit that pages are aligned to
+	private final byte[] newline;
+	private final boolean bigEndian;
+	// where the text starts, past any byte order mark
+	private long textStart = 0;
+	private int pages;
+	private long[] pageByteStart;
+	private int[] pageCharStart;
+	private int[] pageLineStart;
+	private int chars;
+	private int newlines;
+	private final LinesElement root = new LinesElement();
+
+	private static class Page {
+		char[] chars;
+		int length;
+		int[] newlines;
+		int newlineCount;
+	}
+
+	private LargeFileDocument(File file, Charset charset, MappedByteBuffer[] segments, MappedContent content) {
+		super(content);
+		content.document = this;
+		this.file = file;
+		this.charset = charset;
+		this.segments = segments;
+		byte[] encoded;
+		try {
+			ByteBuffer bytes = charset.newEncoder().encode(CharBuffer.wrap("\n"));
+			encoded = new byte[bytes.remaining()];
+			bytes.get(encoded);
+		} catch (CharacterCodingException e) {
+			encoded = new byte[] { '\n' };
+		}
+		newline = encoded;
+		bigEndian = newline.length > 1 && newline[0] == 0;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Maps the file and builds its page index. Meant to run off the EDT; returns
+	 * null if cancelled. Files beyond the int range of Swing documents are shown
+	 * up to that limit.
+	 */
+	public static LargeFileDocument open(File file, Charset charset, IntConsumer progress, BooleanSupplier cancelled)
+			throws IOException {
+		MappedByteBuffer[] segments;
+		long size;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			size = channel.size();
+			segments = new MappedByteBuffer[(int) Math.max(1, (size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for (int i = 0; i < segments.length; i++) {
+				long start = i * SEGMENT_SIZE;
+				long length = Math.min(size - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+			}
+		}
+		LargeFileDocument doc = new LargeFileDocument(file, charset, segments, new MappedContent());
+		doc.textStart = doc.byteOrderMark(size);
+		if (!doc.buildIndex(size, progress, cancelled))
+			return null;
+		return doc;
+	}
+
+	private boolean buildIndex(long size, IntConsumer progress, BooleanSupplier cancelled) {
+		int capacity = (int) Math.min(Integer.MAX_VALUE - 8, size / PAGE_SIZE + 2);
+		pageByteStart = new long[capacity];
+		pageCharStart = new int[capacity];
+		pageLineStart = new int[capacity];
+		CharsetDecoder decoder = newDecoder();
+		CharBuffer out = CharBuffer.allocate(2 * PAGE_SIZE + 8);
+		long start = textStart;
+		long chars = 0;
+		long lines = 0;
+		int lastPercent = -1;
+		while (start < size) {
+			if (cancelled.getAsBoolean())
+				return false;
+			long end = pageEnd(start, size);
+			out.clear();
+			decoder.reset();
+			decoder.decode(slice(start, end), out, true);
+			decoder.flush(out);
+			if (chars + out.position() >= Integer.MAX_VALUE - 1)
+				break;
+			int nl = 0;
+			for (int i = 0; i < out.position(); i++)
+				if (out.get(i) == '\n')
+					nl++;
+			if (pages + 1 >= pageByteStart.length) {
+				pageByteStart = Arrays.copyOf(pageByteStart, pageByteStart.length * 2);
+				pageCharStart = Arrays.copyOf(pageCharStart, pageCharStart.length * 2);
+				pageLineStart = Arrays.copyOf(pageLineStart, pageLineStart.length * 2);
+			}
+			pageByteStart[pages] = start;
+			pageCharStart[pages] = (int) chars;
+			pageLineStart[pages] = (int) lines;
+			pages++;
+			chars += out.position();
+			lines += nl;
+			start = end;
+			int percent = (int) (100 * start / size);
+			if (percent != lastPercent) {
+				progress.accept(percent);
+				lastPercent = percent;
+			}
+		}
+		pageByteStart[pages] = start;
+		pageCharStart[pages] = (int) chars;
+		pageLineStart[pages] = (int) lines;
+		this.chars = (int) chars;
+		this.newlines = (int) lines;
+		return true;
+	}
+
+	// the length of the byte order mark of the charset the file starts with, if any
+	private int byteOrderMark(long size) {
+		if (charset.equals(StandardCharsets.UTF_8) && size >= 3 && (byteAt(0) & 0xFF) == 0xEF
+				&& (byteAt(1) & 0xFF) == 0xBB && (byteAt(2) & 0xFF) == 0xBF)
+			return 3;
+		if (charset.equals(StandardCharsets.UTF_16BE) && size >= 2 && (byteAt(0) & 0xFF) == 0xFE
+				&& (byteAt(1) & 0xFF) == 0xFF)
+			return 2;
+		if (charset.equals(StandardCharsets.UTF_16LE) && size >= 2 && (byteAt(0) & 0xFF) == 0xFF
+				&& (byteAt(1) & 0xFF) == 0xFE)
+			return 2;
+		return 0;
+	}
+
+	private long pageEnd(long start, long size) {
+		// pages start on code units, and PAGE_SIZE is a multiple of any code unit
+		int unit = newline.length;
+		long end = start + PAGE_SIZE;
+		if (end >= size)
+			return size;
+		long limit = Math.min(size, start + 2 * PAGE_SIZE);
+		for (long i = end - unit; i + unit <= limit; i += unit)
+			if (isNewline(i))
+				return i + unit;
+		// no newline nearby, so at least avoid splitting a character
+		if (unit == 2) {
+			int high = byteAt(bigEndian ? end - 2 : end - 1) & 0xFC;
+			if (high == 0xD8)
+				end -= 2;
+		} else if (unit == 1 && charset.equals(StandardCharsets.UTF_8))
+			for (int i = 0; i < 3 && (byteAt(end) & 0xC0) == 0x80; i++)
+				end--;
+		return end;
+	}
+
+	private boolean isNewline(long position) {
+		for (int i = 0; i < newline.length; i++)
+			if (byteAt(position + i) != newline[i])
+				return false;
+		return true;
+	}
+
+	private byte byteAt(long position) {
+		MappedByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)];
+		return segment.get((int) (position % SEGMENT_SIZE));
+	}
+
+	private ByteBuffer slice(long start, long end) {
+		ByteBuffer buffer = segments[(int) (start / SEGMENT_SIZE)].duplicate();
+		int from = (int) (start % SEGMENT_SIZE);
+		buffer.limit(from + (int) (end - start));
+		buffer.position(from);
+		return buffer;
+	}
+
+	private CharsetDecoder newDecoder() {
+		return charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+
+	private CharsetDecoder decoder;
+	private final Map<Integer, Page> cache = new LinkedHashMap<Integer, Page>(CACHED_PAGES, 0.75f, true) {
+		private static final long serialVersionUID = 6113271508745716339L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Page> eldest) {
+			return size() > CACHED_PAGES;
+		}
+	};
+
+	private Page page(int index) {
+		Page page = cache.get(index);
+		if (page != null)
+			return page;
+		if (decoder == null)
+			decoder = newDecoder();
+		page = new Page();
+		page.length = pageCharStart[index + 1] - pageCharStart[index];
+		page.chars = new char[page.length];
+		CharBuffer out = CharBuffer.wrap(page.chars);
+		decoder.reset();
+		decoder.decode(slice(pageByteStart[index], pageByteStart[index + 1]), out, true);
+		decoder.flush(out);
+		page.newlineCount = pageLineStart[index + 1] - pageLineStart[index];
+		page.newlines = new int[page.newlineCount];
+		int k = 0;
+		for (int i = 0; i < page.length && k < page.newlineCount; i++)
+			if (page.chars[i] == '\n')
+				page.newlines[k++] = i;
+		cache.put(index, page);
+		return page;
+	}
+
+	private int pageOfChar(int offset) {
+		int index = Arrays.binarySearch(pageCharStart, 0, pages, offset);
+		if (index < 0)
+			index = -index - 2;
+		while (index + 1 < pages && pageCharStart[index + 1] == offset)
+			index++;
+		return Math.max(0, index);
+	}
+
+	private int lineStart(int line) {
+		if (line <= 0)
+			return 0;
+		int newline = line - 1;
+		int index = Arrays.binarySearch(pageLineStart, 0, pages, newline);
+		if (index < 0)
+			index = -index - 2;
+		while (index + 1 < pages && pageLineStart[index + 1] <= newline)
+			index++;
+		Page page = page(index);
+		return pageCharStart[index] + page.newlines[newline - pageLineStart[index]] + 1;
+	}
+
+	private int lineOf(int offset) {
+		if (pages == 0)
+			return 0;
+		if (offset >= chars)
+			return newlines;
+		int index = pageOfChar(offset);
+		Page page = page(index);
+		int local = offset - pageCharStart[index];
+		int found = Arrays.binarySearch(page.newlines, 0, page.newlineCount, local);
+		int before = found >= 0 ? found : -found - 1;
+		return pageLineStart[index] + before;
+	}
+
+	private void chars(int where, int len, Segment txt) throws BadLocationException {
+		if (where < 0 || len < 0 || where + len > chars + 1)
+			throw new BadLocationException("Invalid range", where);
+		if (len == 0) {
+			txt.array = new char[0];
+			txt.offset = 0;
+			txt.count = 0;
+			return;
+		}
+		if (where < chars) {
+			int index = pageOfChar(where);
+			Page page = page(index);
+			int local = where - pageCharStart[index];
+			int available = page.length - local;
+			if (len <= available || txt.isPartialReturn()) {
+				txt.array = page.chars;
+				txt.offset = local;
+				txt.count = Math.min(len, available);
+				return;
+			}
+		}
+		char[] copy = new char[len];
+		int copied = 0;
+		while (copied < len) {
+			int position = where + copied;
+			if (position >= chars) {
+				copy[copied++] = '\n';
+				continue;
+			}
+			int index = pageOfChar(position);
+			Page page = page(index);
+			int local = position - pageCharStart[index];
+			int count = Math.min(len - copied, page.length - local);
+			System.arraycopy(page.chars, local, copy, copied, count);
+			copied += count;
+		}
+		txt.array = copy;
+		txt.offset = 0;
+		txt.count = len;
+	}
+
+	@Override
+	public Element getDefaultRootElement() {
+		return root;
+	}
+
+	@Override
+	public Element getParagraphElement(int pos) {
+		return root.getElement(root.getElementIndex(pos));
+	}
+
+	private static class MappedContent implements AbstractDocument.Content {
+		LargeFileDocument document;
+
+		@Override
+		public Position createPosition(int offset) {
+			return () -> offset;
+		}
+
+		@Override
+		public int length() {
+			return document == null || document.pageByteStart == null ? 1 : document.chars + 1;
+		}
+
+		@Override
+		public UndoableEdit insertString(int where, String str) throws BadLocationException {
+			throw new BadLocationException("Large files are opened read-only", where);
+		}
+
+		@Override
+		public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+			throw new BadLocationException("Large files are opened read-only", where);
+		}
+
+		@Override
+		public String getString(int where, int len) throws BadLocationException {
+			Segment segment = new Segment();
+			getChars(where, len, segment);
+			return segment.toString();
+		}
+
+		@Override
+		public void getChars(int where, int len, Segment txt) throws BadLocationException {
+			document.chars(where, len, txt);
+		}
+	}
+
+	private class LinesElement implements Element {
+		@Override
+		public javax.swing.text.Document getDocument() {
+			return LargeFileDocument.this;
+		}
+
+		@Override
+		public Element getParentElement() {
+			return null;
+		}
+
+		@Override
+		public String getName() {
+			return AbstractDocument.SectionElementName;
+		}
+
+		@Override
+		public AttributeSet getAttributes() {
+			return SimpleAttributeSet.EMPTY;
+		}
+
+		@Override
+		public int getStartOffset() {
+			return 0;
+		}
+
+		@Override
+		public int getEndOffset() {
+			return chars + 1;
+		}
+
+		@Override
+		public int getElementIndex(int offset) {
+			return lineOf(offset);
+		}
+
+		@Override
+		public int getElementCount() {
+			return newlines + 1;
+		}
+
+		@Override
+		public Element getElement(int index) {
+			if (index < 0 || index > newlines)
+				return null;
+			return new LineElement(this, index);
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return false;
+		}
+	}
+
+	private class LineElement implements Element {
+		private final Element parent;
+		private final int start;
+		private final int end;
+
+		LineElement(Element parent, int line) {
+			this.parent = parent;
+			this.start = lineStart(line);
+			this.end = line < newlines ? lineStart(line + 1) : chars + 1;
+		}
+
+		@Override
+		public javax.swing.text.Document getDocument() {
+			return LargeFileDocument.this;
+		}
+
+		@Override
+		public Element getParentElement() {
+			return parent;
+		}
+
+		@Override
+		public String getName() {
+			return AbstractDocument.ParagraphElementName;
+		}
+
+		@Override
+		public AttributeSet getAttributes() {
+			return SimpleAttributeSet.EMPTY;
+		}
+
+		@Override
+		public int getStartOffset() {
+			return start;
+		}
+
+		@Override
+		public int getEndOffset() {
+			return end;
+		}
+
+		@Override
+		public int getElementIndex(int offset) {
+			return -1;
+		}
+
+		@Override
+		public int getElementCount() {
+			return 0;
+		}
+
+		@Override
+		public Element getElement(int index) {
+			return null;
+		}
+
+		@Override
+		public boolean isLeaf() {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+import java.awt.Container;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+
+import javax.swing.JTextArea;
+import javax.swing.plaf.basic.BasicTextAreaUI;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.Segment;
+import javax.swing.text.TabExpander;
+import javax.swing.text.Utilities;
+import javax.swing.text.View;
+
+/**
+ * Read-only viewer for a {@link LargeFileDocument}. Its view only asks the
+ * document for the lines that are actually painted, so the decoded text never
+ * has to be held in memory as a whole.
+ */
+public class LargeFileTextArea extends JTextArea {
+	private static final long serialVersionUID = 3164915078468132954L;
+	// very long lines (e.g., minified files) are cut when painted
+	private static final int MAX_PAINTED_LINE = 4096;
+
+	public LargeFileTextArea(LargeFileDocument doc) {
+		super(doc);
+		setEditable(false);
+		setLineWrap(false);
+	}
+
+	@Override
+	public void updateUI() {
+		setUI(new BasicTextAreaUI() {
+			@Override
+			public View create(Element elem) {
+				return new LinesView(elem);
+			}
+		});
+	}
+
+	private static class LinesView extends View implements TabExpander {
+		private int longestLine;
+		private final Segment segment = new Segment();
+
+		LinesView(Element elem) {
+			super(elem);
+		}
+
+		private FontMetrics metrics() {
+			Container container = getContainer();
+			return container.getFontMetrics(container.getFont());
+		}
+
+		private void lineText(Element line, int limit) throws BadLocationException {
+			int start = line.getStartOffset();
+			int length = Math.min(line.getEndOffset() - 1 - start, limit);
+			getDocument().getText(start, Math.max(0, length), segment);
+		}
+
+		@Override
+		public float nextTabStop(float x, int tabOffset) {
+			int tabWidth = metrics().charWidth('m') * 4;
+			return tabWidth == 0 ? x : ((int) x / tabWidth + 1) * tabWidth;
+		}
+
+		@Override
+		public float getPreferredSpan(int axis) {
+			FontMetrics fm = metrics();
+			if (axis == X_AXIS)
+				return Math.max(longestLine, fm.charWidth('m') * 80);
+			return (float) getElement().getElementCount() * fm.getHeight();
+		}
+
+		@Override
+		public void paint(Graphics g, Shape a) {
+			Rectangle alloc = a.getBounds();
+			Rectangle clip = g.getClipBounds();
+			if (clip == null)
+				clip = alloc;
+			Container container = getContainer();
+			g.setFont(container.getFont());
+			g.setColor(container.getForeground());
+			FontMetrics fm = g.getFontMetrics();
+			int height = fm.getHeight();
+			Element root = getElement();
+			int first = Math.max(0, (clip.y - alloc.y) / height);
+			int last = Math.min(root.getElementCount() - 1, (clip.y + clip.height - alloc.y) / height);
+			int widest = longestLine;
+			for (int i = first; i <= last; i++) {
+				Element line = root.getElement(i);
+				try {
+					lineText(line, MAX_PAINTED_LINE);
+				} catch (BadLocationException e) {
+					continue;
+				}
+				float y = alloc.y + i * height + fm.getAscent();
+				float end = Utilities.drawTabbedText(segment, (float) alloc.x, y, (Graphics2D) g, this,
+						line.getStartOffset());
+				widest = Math.max(widest, (int) Math.ceil(end - alloc.x));
+			}
+			if (widest > longestLine) {
+				longestLine = widest;
+				preferenceChanged(null, true, false);
+			}
+		}
+
+		@Override
+		public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+			Rectangle alloc = a.getBounds();
+			Element root = getElement();
+			int index = root.getElementIndex(pos);
+			Element line = root.getElement(index);
+			FontMetrics fm = metrics();
+			getDocument().getText(line.getStartOffset(), Math.min(pos - line.getStartOffset(), MAX_PAINTED_LINE),
+					segment);
+			float x = Utilities.getTabbedTextWidth(segment, fm, (float) alloc.x, this, line.getStartOffset());
+			return new Rectangle(alloc.x + (int) x, alloc.y + index * fm.getHeight(), 1, fm.getHeight());
+		}
+
+		@Override
+		public int viewToModel(float x, float y, Shape a, Position.Bias[] bias) {
+			bias[0] = Position.Bias.Forward;
+			Rectangle alloc = a.getBounds();
+			Element root = getElement();
+			FontMetrics fm = metrics();
+			int index = Math.max(0, Math.min(root.getElementCount() - 1, (int) (y - alloc.y) / fm.getHeight()));
+			Element line = root.getElement(index);
+			try {
+				lineText(line, MAX_PAINTED_LINE);
+			} catch (BadLocationException e) {
+				return line.getStartOffset();
+			}
+			int offset = Utilities.getTabbedTextOffset(segment, fm, (float) alloc.x, x, this, line.getStartOffset(),
+					true);
+			return Math.min(line.getStartOffset() + offset, line.getEndOffset() - 1);
+		}
+	}
+}
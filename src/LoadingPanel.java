@@ -0,0 +1,55 @@
+import java.awt.GridBagLayout;
+
+import javax.swing.JButton;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import javax.swing.SwingUtilities;
+
+/**
+ * Placeholder shown in a tab while its content loads in the background.
+ * Loading counts as cancelled once the panel leaves the window, e.g., when
+ * its tab is closed.
+ */
+public class LoadingPanel extends JPanel {
+	private static final long serialVersionUID = -4360518129645037728L;
+	private final JProgressBar progressBar = new JProgressBar(0, 100);
+	private final JButton cancelButton = new JButton("Cancel");
+	private volatile boolean cancelled = false;
+
+	public LoadingPanel(String message) {
+		super(new GridBagLayout());
+		progressBar.setStringPainted(true);
+		progressBar.setString(message);
+		add(progressBar);
+		add(cancelButton);
+	}
+
+	public void onCancel(Runnable action) {
+		cancelButton.addActionListener(e -> {
+			cancelled = true;
+			action.run();
+		});
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	// safe to call from any thread
+	public void setProgress(int percent) {
+		SwingUtilities.invokeLater(() -> progressBar.setValue(percent));
+	}
+
+	public void fail(String message) {
+		SwingUtilities.invokeLater(() -> {
+			progressBar.setString(message);
+			cancelButton.setVisible(false);
+		});
+	}
+
+	@Override
+	public void removeNotify() {
+		cancelled = true;
+		super.removeNotify();
+	}
+}
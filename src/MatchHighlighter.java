@@ -0,0 +1,179 @@
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.Rectangle2D;
+
+import javax.swing.JButton;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.border.Border;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+import javax.swing.text.JTextComponent;
+
+import org.fife.ui.rtextarea.RTextArea;
+
+/**
+ * Highlights all matches of a {@link MatchSet} in a text area, and marks the
+ * rows of the vertical scroll bar that have matches. Painting looks up only
+ * the matches within the painted area, so its cost follows the visible text
+ * rather than the number of matches, and the set itself keeps up with edits.
+ * Call {@link #refresh()} from the event dispatch thread once the set may have
+ * changed, and {@link #uninstall()} once done.
+ */
+public class MatchHighlighter implements Highlighter.HighlightPainter {
+	private static final int MAX_PAINTED = 5000;
+	private static final int MARKER_HEIGHT = 2;
+	private final RTextArea textArea;
+	private final MatchSet matches;
+	private final Object tag;
+	private final JScrollBar scrollBar;
+	private final Border scrollBarBorder;
+	private int paintedVersion = -1;
+
+	private MatchHighlighter(RTextArea textArea, MatchSet matches) throws BadLocationException {
+		this.textArea = textArea;
+		this.matches = matches;
+		// spans the whole document, and the painter picks out the matches itself
+		tag = textArea.getHighlighter().addHighlight(0, textArea.getDocument().getLength(), this);
+		JScrollPane scrollPane = (JScrollPane) SwingUtilities.getAncestorOfClass(JScrollPane.class, textArea);
+		scrollBar = scrollPane == null ? null : scrollPane.getVerticalScrollBar();
+		scrollBarBorder = scrollBar == null ? null : scrollBar.getBorder();
+		if (scrollBar != null)
+			scrollBar.setBorder(new MarkerBorder());
+	}
+
+	public static MatchHighlighter install(RTextArea textArea, MatchSet matches) {
+		try {
+			return new MatchHighlighter(textArea, matches);
+		} catch (BadLocationException e) {
+			return null;
+		}
+	}
+
+	public void uninstall() {
+		textArea.getHighlighter().removeHighlight(tag);
+		textArea.repaint();
+		if (scrollBar != null) {
+			scrollBar.setBorder(scrollBarBorder);
+			scrollBar.repaint();
+		}
+	}
+
+	// repaints once matches were found, dropped or moved since the last paint
+	public void refresh() {
+		int version = matches.getVersion();
+		if (version == paintedVersion)
+			return;
+		paintedVersion = version;
+		textArea.repaint(textArea.getVisibleRect());
+		if (scrollBar != null)
+			scrollBar.repaint();
+	}
+
+	@Override
+	public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = bounds.getBounds();
+		int from = textArea.viewToModel2D(new Point(0, clip.y));
+		int to = textArea.viewToModel2D(new Point(textArea.getWidth(), clip.y + clip.height));
+		if (from < 0 || to < 0)
+			return;
+		Element root = textArea.getDocument().getDefaultRootElement();
+		from = root.getElement(root.getElementIndex(from)).getStartOffset();
+		to = root.getElement(root.getElementIndex(to)).getEndOffset();
+		Rectangle area = bounds.getBounds();
+		g.setColor(textArea.getMarkAllHighlightColor());
+		int size = matches.size();
+		// the match before may reach into the painted lines
+		int index = Math.max(0, matches.firstFrom(from) - 1);
+		for (int painted = 0; index < size && painted < MAX_PAINTED; index++, painted++) {
+			int start = matches.get(index);
+			int end = matches.getEnd(index);
+			if (start >= to)
+				break;
+			if (end > from && end > start)
+				paintMatch(g, start, end, area);
+		}
+	}
+
+	private void paintMatch(Graphics g, int start, int end, Rectangle area) {
+		try {
+			Rectangle2D first = textArea.modelToView2D(start);
+			Rectangle2D last = textArea.modelToView2D(end);
+			if (first == null || last == null)
+				return;
+			int y0 = (int) first.getY();
+			int h0 = (int) first.getHeight();
+			int y1 = (int) last.getY();
+			int h1 = (int) last.getHeight();
+			int x0 = (int) first.getX();
+			int x1 = (int) last.getX();
+			if (y0 == y1) {
+				g.fillRect(x0, y0, x1 - x0, h0);
+				return;
+			}
+			g.fillRect(x0, y0, area.x + area.width - x0, h0);
+			if (y0 + h0 < y1)
+				g.fillRect(area.x, y0 + h0, area.width, y1 - y0 - h0);
+			g.fillRect(area.x, y1, x1 - area.x, h1);
+		} catch (BadLocationException e) {
+			// the document changed meanwhile and gets repainted anyway
+		}
+	}
+
+	// keeps the look of the scroll bar, and marks each row of the track that has matches
+	private class MarkerBorder implements Border {
+		@Override
+		public void paintBorder(Component c, Graphics g, int x, int y, int width, int height) {
+			if (scrollBarBorder != null)
+				scrollBarBorder.paintBorder(c, g, x, y, width, height);
+			Insets insets = getBorderInsets(c);
+			int top = y + insets.top;
+			int bottom = y + height - insets.bottom;
+			// arrow buttons, where shown, are not part of the track
+			for (Component child : scrollBar.getComponents())
+				if (child instanceof JButton && child.isVisible() && child.getHeight() > 0) {
+					if (child.getY() <= top)
+						top = Math.max(top, child.getY() + child.getHeight());
+					else
+						bottom = Math.min(bottom, child.getY());
+				}
+			int track = bottom - top;
+			Element root = textArea.getDocument().getDefaultRootElement();
+			int lines = root.getElementCount();
+			int size = matches.size();
+			if (track <= 0 || size == 0)
+				return;
+			Color color = textArea.getMarkAllHighlightColor();
+			g.setColor(new Color(color.getRed(), color.getGreen(), color.getBlue()));
+			for (int row = 0; row < track; row += MARKER_HEIGHT) {
+				int firstLine = (int) ((long) row * lines / track);
+				int lastLine = (int) Math.min(lines - 1, (long) (row + MARKER_HEIGHT) * lines / track);
+				int start = root.getElement(firstLine).getStartOffset();
+				int end = lastLine > firstLine ? root.getElement(lastLine).getStartOffset()
+						: root.getElement(firstLine).getEndOffset();
+				int index = matches.firstFrom(start);
+				if (index < size && matches.get(index) < end)
+					g.fillRect(x + insets.left + 1, top + row, width - insets.left - insets.right - 2, MARKER_HEIGHT);
+			}
+		}
+
+		@Override
+		public Insets getBorderInsets(Component c) {
+			return scrollBarBorder == null ? new Insets(0, 0, 0, 0) : scrollBarBorder.getBorderInsets(c);
+		}
+
+		@Override
+		public boolean isBorderOpaque() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+import java.util.Arrays;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.Document;
+
+/**
+ * The non-overlapping matches of a {@link SearchQuery} in a document, kept as
+ * sorted arrays of start and end offsets. The document is scanned chunk by
+ * chunk, typically from a background thread through {@link #scan()}, and
+ * edits are applied incrementally by rescanning only around the edited text
+ * until the matches after it line up again. Each chunk and each edit gets a
+ * time budget; a pattern that exceeds it leaves the set failed. Call
+ * {@link #dispose()} once no longer needed.
+ * <p>
+ * The arrays have a gap where the last edit was, and the matches after it
+ * store their offsets less a shift that is applied on reading, so an edit
+ * moves only the matches between it and the previous one rather than all
+ * later matches.
+ */
+public class MatchSet implements DocumentListener {
+	// small enough that neither edits nor readers of the matches wait long on a chunk
+	private static final int CHUNK = 1 << 15;
+	private static final long SCAN_BUDGET = 500;
+	private static final long EDIT_BUDGET = 50;
+	private final Document doc;
+	private final SearchQuery query;
+	private int[] starts = new int[64];
+	private int[] ends = new int[64];
+	private int size = 0;
+	// matches before gap are stored as they are, and later ones after gapLength free slots, less shift
+	private int gap = 0;
+	private int gapLength = 64;
+	private int shift = 0;
+	// where scanning continues; every match starting before it is known
+	private int scanned = 0;
+	private int version = 0;
+	private volatile boolean disposed = false;
+	private volatile boolean failed = false;
+	private volatile boolean scanning = false;
+
+	public MatchSet(Document doc, SearchQuery query) {
+		this.doc = doc;
+		this.query = query;
+		doc.addDocumentListener(this);
+	}
+
+	public Document getDocument() {
+		return doc;
+	}
+
+	public SearchQuery getQuery() {
+		return query;
+	}
+
+	public void dispose() {
+		disposed = true;
+		doc.removeDocumentListener(this);
+	}
+
+	public boolean isDisposed() {
+		return disposed;
+	}
+
+	// whether matching ran out of its time budget, which leaves the set incomplete for good
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public synchronized boolean isComplete() {
+		return scanned >= doc.getLength();
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	// changes whenever matches are found, dropped or moved
+	public synchronized int getVersion() {
+		return version;
+	}
+
+	public synchronized int get(int index) {
+		return index < gap ? starts[index] : starts[index + gapLength] + shift;
+	}
+
+	public synchronized int getEnd(int index) {
+		return index < gap ? ends[index] : ends[index + gapLength] + shift;
+	}
+
+	// index of the match starting at offset, or -1
+	public synchronized int indexOf(int offset) {
+		int index = lowerBound(offset);
+		return index < size && get(index) == offset ? index : -1;
+	}
+
+	// index of the first match starting at or after offset, or size() if none does
+	public synchronized int firstFrom(int offset) {
+		return lowerBound(offset);
+	}
+
+	// scans the whole document, returning false if disposed or failed meanwhile
+	public boolean scan() {
+		scanning = true;
+		try {
+			while (!disposed && !failed) {
+				boolean[] complete = { false };
+				doc.render(() -> complete[0] = scanChunk());
+				if (complete[0])
+					return true;
+			}
+			return false;
+		} finally {
+			scanning = false;
+		}
+	}
+
+	public boolean isScanning() {
+		return scanning;
+	}
+
+	// matches outside the monitor, which the render lock makes safe as edits wait for it, and locks only to append
+	private boolean scanChunk() {
+		int from;
+		synchronized (this) {
+			from = scanned;
+		}
+		CharSequence text = query.limit(new DocumentText(doc), SCAN_BUDGET);
+		// the last chunk takes in an empty match at the very end
+		int end = from + CHUNK < text.length() ? from + CHUNK : text.length() + 1;
+		int[] found = new int[32];
+		int count = 0;
+		try {
+			for (long match = query.find(text, from, end); match >= 0; match = query.find(text, from, end)) {
+				if (count == found.length)
+					found = Arrays.copyOf(found, count * 2);
+				found[count++] = SearchQuery.start(match);
+				found[count++] = SearchQuery.end(match);
+				from = after(match);
+			}
+		} catch (SearchQuery.TimeoutException e) {
+			failed = true;
+			return false;
+		}
+		synchronized (this) {
+			moveGap(size);
+			for (int i = 0; i < count; i += 2)
+				insert(found[i], found[i + 1]);
+			scanned = Math.max(from, end);
+			return scanned >= text.length();
+		}
+	}
+
+	// where the next match may start, past empty ones
+	private static int after(long match) {
+		int end = SearchQuery.end(match);
+		return end > SearchQuery.start(match) ? end : end + 1;
+	}
+
+	// inserts a match at the gap
+	private void insert(int start, int end) {
+		if (gapLength == 0) {
+			int capacity = Math.max(64, starts.length * 2);
+			int tail = size - gap;
+			int[] newStarts = Arrays.copyOf(starts, capacity);
+			int[] newEnds = Arrays.copyOf(ends, capacity);
+			System.arraycopy(starts, gap, newStarts, capacity - tail, tail);
+			System.arraycopy(ends, gap, newEnds, capacity - tail, tail);
+			starts = newStarts;
+			ends = newEnds;
+			gapLength = capacity - size;
+		}
+		starts[gap] = start;
+		ends[gap++] = end;
+		gapLength--;
+		size++;
+		version++;
+	}
+
+	// moves the gap to the index, storing the matches it passes over accordingly
+	private void moveGap(int index) {
+		if (index < gap) {
+			System.arraycopy(starts, index, starts, index + gapLength, gap - index);
+			System.arraycopy(ends, index, ends, index + gapLength, gap - index);
+			for (int i = index + gapLength; i < gap + gapLength; i++) {
+				starts[i] -= shift;
+				ends[i] -= shift;
+			}
+		} else if (index > gap) {
+			System.arraycopy(starts, gap + gapLength, starts, gap, index - gap);
+			System.arraycopy(ends, gap + gapLength, ends, gap, index - gap);
+			for (int i = gap; i < index; i++) {
+				starts[i] += shift;
+				ends[i] += shift;
+			}
+		}
+		gap = index;
+		if (gap == size)
+			shift = 0;
+	}
+
+	// drops the matches from the index on
+	private void truncate(int index) {
+		moveGap(index);
+		gapLength += size - index;
+		size = index;
+		shift = 0;
+		version++;
+	}
+
+	@Override
+	public void insertUpdate(DocumentEvent e) {
+		edited(e.getOffset(), 0, e.getLength());
+	}
+
+	@Override
+	public void removeUpdate(DocumentEvent e) {
+		edited(e.getOffset(), e.getLength(), 0);
+	}
+
+	@Override
+	public void changedUpdate(DocumentEvent e) {
+	}
+
+	// called while the document is locked for writing, so no chunk is being scanned
+	private synchronized void edited(int offset, int removed, int inserted) {
+		if (disposed || failed)
+			return;
+		CharSequence text = query.limit(new DocumentText(doc), EDIT_BUDGET);
+		// matches starting before reach end before the edit and stay as they are
+		int reach = query.reach(text, offset);
+		int delta = inserted - removed;
+		// an edit past the frontier is scanned on the way, unless scanning is over
+		if (reach >= scanned && scanned < doc.getLength() - delta)
+			return;
+		int kept = lowerBound(reach);
+		while (kept > 0 && getEnd(kept - 1) > offset)
+			kept--;
+		int from = kept < size ? Math.min(reach, get(kept)) : reach;
+		if (kept > 0)
+			from = Math.max(from, getEnd(kept - 1) > get(kept - 1) ? getEnd(kept - 1) : getEnd(kept - 1) + 1);
+		if (scanned < offset + removed || inserted > CHUNK) {
+			// the edit reaches past the scanned part, or is too large to rescan while the document is locked, and is scanned anew
+			truncate(kept);
+			scanned = from;
+			return;
+		}
+		// later matches move along with the text, and are rechecked until they line up with new ones
+		int next = lowerBound(offset + removed);
+		int end = scanned + delta;
+		// past settle nothing changes, unless an old match there held back others
+		int settle = query.settle(text, offset + inserted);
+		for (int i = kept; i < next; i++)
+			settle = Math.max(settle, getEnd(i) + delta);
+		long[] found = new long[8];
+		int count = 0;
+		try {
+			while (true) {
+				// old matches overlapped by a new one are no longer matches
+				for (; next < size && get(next) + delta < from; next++)
+					settle = Math.max(settle, getEnd(next) + delta);
+				settle = Math.min(settle, end);
+				if (from >= settle)
+					break;
+				// the old match is still there, so a match is found no later than it
+				int to = next < size ? Math.min(settle, get(next) + delta + 1) : settle;
+				long match = query.find(text, from, to);
+				if (match < 0) {
+					from = to;
+					continue;
+				}
+				if (next < size && SearchQuery.start(match) == get(next) + delta
+						&& SearchQuery.end(match) == getEnd(next) + delta)
+					break;
+				if (count == found.length)
+					found = Arrays.copyOf(found, count * 2);
+				found[count++] = match;
+				from = after(match);
+			}
+		} catch (SearchQuery.TimeoutException e) {
+			failed = true;
+			return;
+		}
+		// back in step with the old matches, which are kept and move along through the shift
+		moveGap(next);
+		gap = kept;
+		gapLength += next - kept;
+		size -= next - kept;
+		shift += delta;
+		for (int i = 0; i < count; i++)
+			insert(SearchQuery.start(found[i]), SearchQuery.end(found[i]));
+		if (gap == size)
+			shift = 0;
+		version++;
+		scanned = Math.max(end, from);
+	}
+
+	// index of the first match starting at or after offset
+	private int lowerBound(int offset) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (get(middle) < offset)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+}
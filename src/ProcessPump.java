@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the output of running processes for their consoles. A single daemon
+ * thread polls the standard output and error of every registered process and
+ * reads whatever is available in large chunks, so a console takes no threads
+ * of its own and output shows as soon as it is written, newline or not. Bytes
+ * are decoded with the charset of each process, and every chunk is passed on
+ * tagged with its stream and the time it was read; as one thread reads both
+ * streams, chunks arrive in the order they were read. A sink that is full is
+ * not read from for a while, which leaves the process waiting on its pipe.
+ */
+public class ProcessPump {
+	// the most a read passes on at once
+	static final int CHUNK = 1 << 15;
+	private static final long IDLE_SLEEP = 10;
+	private static final long THROTTLE = 250;
+	private static final ProcessPump instance = new ProcessPump();
+	private final List<Pumped> pumped = new ArrayList<>();
+	private Thread thread = null;
+
+	public interface Sink {
+		// whether output should wait, which it does for a while before being passed on anyway
+		boolean isFull();
+
+		void output(boolean error, long nanos, char[] chars, int offset, int count);
+
+		// both streams have ended
+		void closed();
+	}
+
+	public static ProcessPump getInstance() {
+		return instance;
+	}
+
+	public synchronized void add(Process process, Charset charset, Sink sink) {
+		pumped.add(new Pumped(process, charset, sink));
+		if (thread == null) {
+			thread = new Thread(this::run, "Mango output");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		notifyAll();
+	}
+
+	private void run() {
+		List<Pumped> pumping = new ArrayList<>();
+		while (true) {
+			synchronized (this) {
+				pumped.removeIf(Pumped::isDone);
+				while (pumped.isEmpty()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				pumping.clear();
+				pumping.addAll(pumped);
+			}
+			boolean read = false;
+			for (Pumped process : pumping)
+				read |= process.pump();
+			if (!read) {
+				try {
+					Thread.sleep(IDLE_SLEEP);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private static class Pumped {
+		private final Process process;
+		private final Sink sink;
+		private final Stream output;
+		private final Stream error;
+		private final long started = System.nanoTime();
+		private long fullSince = 0;
+		private boolean done = false;
+
+		Pumped(Process process, Charset charset, Sink sink) {
+			this.process = process;
+			this.sink = sink;
+			output = new Stream(process.getInputStream(), charset, false);
+			error = new Stream(process.getErrorStream(), charset, true);
+		}
+
+		boolean isDone() {
+			return done;
+		}
+
+		// reads what is available, returning whether there was any
+		boolean pump() {
+			long now = System.nanoTime();
+			if (sink.isFull()) {
+				if (fullSince == 0)
+					fullSince = now;
+				if (now - fullSince < THROTTLE * 1_000_000)
+					return false;
+			} else
+				fullSince = 0;
+			// checked first, so that nothing is written after streams read as empty
+			boolean alive = process.isAlive();
+			boolean read = output.pump(sink, now - started) | error.pump(sink, now - started);
+			if (!alive && !read) {
+				// children that inherited the streams may keep them open, and are not waited for
+				output.close(sink, now - started);
+				error.close(sink, now - started);
+				done = true;
+				sink.closed();
+			}
+			return read;
+		}
+	}
+
+	private static class Stream {
+		private final InputStream in;
+		private final boolean error;
+		private final CharsetDecoder decoder;
+		private final byte[] bytes = new byte[CHUNK];
+		private final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
+		private final CharBuffer chars = CharBuffer.allocate(CHUNK);
+		private boolean ended = false;
+
+		Stream(InputStream in, Charset charset, boolean error) {
+			this.in = in;
+			this.error = error;
+			decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+
+		boolean pump(Sink sink, long nanos) {
+			if (ended)
+				return false;
+			try {
+				int available = in.available();
+				if (available <= 0)
+					return false;
+				int read = in.read(bytes, byteBuffer.position(), Math.min(available, byteBuffer.remaining()));
+				if (read < 0) {
+					ended = true;
+					return false;
+				}
+				byteBuffer.position(byteBuffer.position() + read);
+			} catch (IOException e) {
+				// closed when the process was destroyed
+				ended = true;
+				return false;
+			}
+			byteBuffer.flip();
+			decoder.decode(byteBuffer, chars, false);
+			// an incomplete character waits for the rest of its bytes
+			byteBuffer.compact();
+			emit(sink, nanos);
+			return true;
+		}
+
+		void close(Sink sink, long nanos) {
+			byteBuffer.flip();
+			decoder.decode(byteBuffer, chars, true);
+			decoder.flush(chars);
+			byteBuffer.clear();
+			emit(sink, nanos);
+			ended = true;
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private void emit(Sink sink, long nanos) {
+			chars.flip();
+			if (chars.hasRemaining())
+				sink.output(error, nanos, chars.array(), 0, chars.limit());
+			chars.clear();
+		}
+	}
+}
@@ -0,0 +1,397 @@
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.event.EventListenerList;
+import javax.swing.event.TreeModelEvent;
+import javax.swing.event.TreeModelListener;
+import javax.swing.tree.TreeModel;
+import javax.swing.tree.TreePath;
+
+/**
+ * Tree model of the project explorer. Each loaded directory keeps its entries
+ * as one sorted array of names, directories first, so that an entry costs
+ * little more than its name. Node objects for directories are created the
+ * first time they are asked for; file nodes are throwaway views that compare
+ * equal by parent and name. Only directory nodes are indexed by path.
+ */
+public class ProjectTreeModel implements TreeModel {
+	public static final String LOADING = "Loading...";
+	private static final String[] NO_NAMES = new String[0];
+	private static final DirectoryNode[] NO_DIRECTORIES = new DirectoryNode[0];
+
+	private final EventListenerList listeners = new EventListenerList();
+	private final Map<Path, DirectoryNode> index = new HashMap<>();
+	private Object root = "Project";
+
+	public class DirectoryNode {
+		private final File file;
+		private final DirectoryNode parent;
+		private String[] names = NO_NAMES;
+		private DirectoryNode[] directoryNodes = NO_DIRECTORIES;
+		private int size = 0;
+		private int directories = 0;
+		private boolean loaded = false;
+		private boolean detached = false;
+
+		private DirectoryNode(File file, DirectoryNode parent) {
+			this.file = file;
+			this.parent = parent;
+			index.put(indexKey(file), this);
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public boolean isLoaded() {
+			return loaded;
+		}
+
+		public int getChildCount() {
+			return loaded ? size : 1;
+		}
+
+		public Object getChild(int i) {
+			if (!loaded)
+				return LOADING;
+			return i < directories ? getDirectory(i) : new FileNode(this, names[i]);
+		}
+
+		private DirectoryNode getDirectory(int i) {
+			DirectoryNode node = directoryNodes[i];
+			if (node == null) {
+				node = new DirectoryNode(new File(file, names[i]), this);
+				directoryNodes[i] = node;
+			}
+			return node;
+		}
+
+		// binary search among the entries of one kind, as in Arrays.binarySearch
+		private int indexOf(String name, boolean directory) {
+			int low = directory ? 0 : directories;
+			int high = (directory ? directories : size) - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int order = compareNames(names[middle], name);
+				if (order < 0)
+					low = middle + 1;
+				else if (order > 0)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -(low + 1);
+		}
+
+		private int indexOf(String name) {
+			int i = indexOf(name, true);
+			return i >= 0 ? i : indexOf(name, false);
+		}
+
+		private int insert(String name, boolean directory) {
+			int position = -indexOf(name, directory) - 1;
+			if (size == names.length) {
+				String[] grown = new String[Math.max(8, size * 2)];
+				System.arraycopy(names, 0, grown, 0, size);
+				names = grown;
+			}
+			System.arraycopy(names, position, names, position + 1, size - position);
+			names[position] = name;
+			size++;
+			if (directory) {
+				if (directories == directoryNodes.length) {
+					DirectoryNode[] grown = new DirectoryNode[Math.max(4, directories * 2)];
+					System.arraycopy(directoryNodes, 0, grown, 0, directories);
+					directoryNodes = grown;
+				}
+				System.arraycopy(directoryNodes, position, directoryNodes, position + 1, directories - position);
+				directoryNodes[position] = null;
+				directories++;
+			}
+			return position;
+		}
+
+		private Object remove(int i) {
+			Object child = getChild(i);
+			System.arraycopy(names, i + 1, names, i, size - i - 1);
+			names[--size] = null;
+			if (i < directories) {
+				System.arraycopy(directoryNodes, i + 1, directoryNodes, i, directories - i - 1);
+				directoryNodes[--directories] = null;
+				detach((DirectoryNode) child);
+			}
+			return child;
+		}
+
+		@Override
+		public String toString() {
+			return file.getName().isEmpty() ? file.getPath() : file.getName();
+		}
+	}
+
+	public static class FileNode {
+		private final DirectoryNode parent;
+		private final String name;
+
+		private FileNode(DirectoryNode parent, String name) {
+			this.parent = parent;
+			this.name = name;
+		}
+
+		public File getFile() {
+			return new File(parent.file, name);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			return other instanceof FileNode && ((FileNode) other).parent == parent
+					&& ((FileNode) other).name.equals(name);
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(parent) * 31 + name.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	public static int compareEntries(boolean directoryA, String nameA, boolean directoryB, String nameB) {
+		if (directoryA != directoryB)
+			return directoryA ? -1 : 1;
+		return compareNames(nameA, nameB);
+	}
+
+	private static int compareNames(String nameA, String nameB) {
+		int order = nameA.compareToIgnoreCase(nameB);
+		return order != 0 ? order : nameA.compareTo(nameB);
+	}
+
+	private static Path indexKey(File file) {
+		return file.toPath().toAbsolutePath().normalize();
+	}
+
+	// the file behind a node of this model, or null for placeholders
+	public static File fileOf(Object node) {
+		if (node instanceof DirectoryNode)
+			return ((DirectoryNode) node).file;
+		if (node instanceof FileNode)
+			return ((FileNode) node).getFile();
+		return null;
+	}
+
+	public DirectoryNode setRoot(File dir) {
+		index.clear();
+		DirectoryNode node = new DirectoryNode(dir, null);
+		root = node;
+		fireStructureChanged();
+		return node;
+	}
+
+	// whether the node is still part of the displayed tree
+	public boolean contains(DirectoryNode node) {
+		for (DirectoryNode n = node; n != null; n = n.parent) {
+			if (n.detached)
+				return false;
+			if (n == root)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the node of a directory whose parents are loaded, creating it if
+	 * it was not needed so far, or null if it is not in the tree.
+	 */
+	public DirectoryNode findDirectory(File dir) {
+		if (dir == null || !(root instanceof DirectoryNode))
+			return null;
+		Path key = indexKey(dir);
+		DirectoryNode node = index.get(key);
+		if (node != null || key.getParent() == null || !key.startsWith(indexKey(((DirectoryNode) root).file)))
+			return node;
+		DirectoryNode parent = findDirectory(key.getParent().toFile());
+		if (parent == null || !parent.loaded)
+			return null;
+		int i = parent.indexOf(key.getFileName().toString(), true);
+		return i >= 0 ? parent.getDirectory(i) : null;
+	}
+
+	// the directory or file node of a path whose parent directory is loaded, or null
+	public Object findNode(File file) {
+		DirectoryNode node = findDirectory(file);
+		if (node != null)
+			return node;
+		DirectoryNode parent = findDirectory(file.getParentFile());
+		if (parent == null || !parent.loaded)
+			return null;
+		int i = parent.indexOf(file.getName(), false);
+		return i >= 0 ? parent.getChild(i) : null;
+	}
+
+	public TreePath pathTo(Object node) {
+		if (node instanceof FileNode)
+			return pathTo(((FileNode) node).parent).pathByAddingChild(node);
+		DirectoryNode directory = (DirectoryNode) node;
+		return directory.parent == null ? new TreePath(directory) : pathTo(directory.parent).pathByAddingChild(directory);
+	}
+
+	/**
+	 * Appends entries that sort after the loaded ones, e.g., the next batch of
+	 * a sorted listing. The first call replaces the "Loading..." placeholder.
+	 */
+	public void appendEntries(DirectoryNode parent, List<DirectoryLister.Entry> entries) {
+		if (!parent.loaded) {
+			parent.loaded = true;
+			fireRemoved(parent, 0, LOADING);
+		}
+		int[] indices = new int[entries.size()];
+		int count = 0;
+		for (DirectoryLister.Entry entry : entries) {
+			if (parent.indexOf(entry.file.getName()) >= 0)
+				continue;
+			int position = parent.insert(entry.file.getName(), entry.directory);
+			if (position == parent.size - 1)
+				indices[count++] = position;
+			else
+				fireInserted(parent, new int[] { position });
+		}
+		if (count > 0) {
+			int[] appended = new int[count];
+			System.arraycopy(indices, 0, appended, 0, count);
+			fireInserted(parent, appended);
+		}
+	}
+
+	/**
+	 * Brings one entry of a loaded directory in line with the file system:
+	 * inserts, removes or refreshes only that entry's row.
+	 */
+	public void updateEntry(DirectoryNode parent, String name, boolean exists, boolean directory) {
+		int i = parent.indexOf(name);
+		if (i >= 0) {
+			if (exists && (i < parent.directories) == directory) {
+				fireChanged(parent, i);
+				return;
+			}
+			fireRemoved(parent, i, parent.remove(i));
+		}
+		if (exists)
+			fireInserted(parent, new int[] { parent.insert(name, directory) });
+	}
+
+	// replaces the entries of a loaded directory with a fresh listing, touching only the differences
+	public void applyListing(DirectoryNode parent, List<DirectoryLister.Entry> entries) {
+		Map<String, Boolean> listed = new LinkedHashMap<>();
+		for (DirectoryLister.Entry entry : entries)
+			listed.put(entry.file.getName(), entry.directory);
+		for (int i = parent.size - 1; i >= 0; i--) {
+			Boolean directory = listed.remove(parent.names[i]);
+			if (directory == null || directory != i < parent.directories) {
+				String name = parent.names[i];
+				fireRemoved(parent, i, parent.remove(i));
+				if (directory != null)
+					listed.put(name, directory);
+			}
+		}
+		for (Map.Entry<String, Boolean> entry : listed.entrySet())
+			fireInserted(parent, new int[] { parent.insert(entry.getKey(), entry.getValue()) });
+	}
+
+	private void detach(DirectoryNode node) {
+		node.detached = true;
+		index.remove(indexKey(node.file), node);
+		for (int i = 0; i < node.directories; i++)
+			if (node.directoryNodes[i] != null)
+				detach(node.directoryNodes[i]);
+	}
+
+	@Override
+	public Object getRoot() {
+		return root;
+	}
+
+	@Override
+	public Object getChild(Object parent, int index) {
+		return ((DirectoryNode) parent).getChild(index);
+	}
+
+	@Override
+	public int getChildCount(Object parent) {
+		return parent instanceof DirectoryNode ? ((DirectoryNode) parent).getChildCount() : 0;
+	}
+
+	@Override
+	public boolean isLeaf(Object node) {
+		return !(node instanceof DirectoryNode);
+	}
+
+	@Override
+	public void valueForPathChanged(TreePath path, Object newValue) {
+		// renaming goes through the file system
+	}
+
+	@Override
+	public int getIndexOfChild(Object parent, Object child) {
+		if (!(parent instanceof DirectoryNode))
+			return -1;
+		DirectoryNode directory = (DirectoryNode) parent;
+		if (!directory.loaded)
+			return child == LOADING ? 0 : -1;
+		if (child instanceof DirectoryNode) {
+			DirectoryNode node = (DirectoryNode) child;
+			int i = node.parent == directory ? directory.indexOf(node.file.getName(), true) : -1;
+			return i >= 0 && directory.directoryNodes[i] == node ? i : -1;
+		}
+		if (child instanceof FileNode && ((FileNode) child).parent == directory) {
+			int i = directory.indexOf(((FileNode) child).name, false);
+			return i >= 0 ? i : -1;
+		}
+		return -1;
+	}
+
+	@Override
+	public void addTreeModelListener(TreeModelListener listener) {
+		listeners.add(TreeModelListener.class, listener);
+	}
+
+	@Override
+	public void removeTreeModelListener(TreeModelListener listener) {
+		listeners.remove(TreeModelListener.class, listener);
+	}
+
+	private void fireInserted(DirectoryNode parent, int[] indices) {
+		Object[] children = new Object[indices.length];
+		for (int i = 0; i < indices.length; i++)
+			children[i] = parent.getChild(indices[i]);
+		TreeModelEvent event = new TreeModelEvent(this, pathTo(parent), indices, children);
+		for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class))
+			listener.treeNodesInserted(event);
+	}
+
+	private void fireRemoved(DirectoryNode parent, int index, Object child) {
+		TreeModelEvent event = new TreeModelEvent(this, pathTo(parent), new int[] { index }, new Object[] { child });
+		for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class))
+			listener.treeNodesRemoved(event);
+	}
+
+	private void fireChanged(DirectoryNode parent, int index) {
+		TreeModelEvent event = new TreeModelEvent(this, pathTo(parent), new int[] { index },
+				new Object[] { parent.getChild(index) });
+		for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class))
+			listener.treeNodesChanged(event);
+	}
+
+	private void fireStructureChanged() {
+		TreeModelEvent event = new TreeModelEvent(this, new Object[] { root });
+		for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class))
+			listener.treeStructureChanged(event);
+	}
+}
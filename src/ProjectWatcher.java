@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.swing.SwingUtilities;
+
+/**
+ * Watches the directories loaded in the project tree. Events that arrive close
+ * together, up to a second's worth, are coalesced per directory and handed to
+ * the listener on the EDT as a map from each changed directory to its changed
+ * entries. A directory listed among its own entries lost events and should be
+ * rescanned.
+ */
+public class ProjectWatcher {
+	private static final long QUIET_MS = 100;
+	// a directory that never falls quiet still refreshes this often
+	private static final long MAX_LATENCY_MS = 1000;
+	private final WatchService service;
+	private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+	private final Map<Path, WatchKey> watched = new ConcurrentHashMap<>();
+	private final Consumer<Map<Path, Set<Path>>> listener;
+
+	public ProjectWatcher(Consumer<Map<Path, Set<Path>>> listener) throws IOException {
+		this.listener = listener;
+		this.service = FileSystems.getDefault().newWatchService();
+		Thread thread = new Thread(this::run, "Mango watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void watch(Path dir) {
+		if (watched.containsKey(dir))
+			return;
+		try {
+			WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+			keys.put(key, dir);
+			watched.put(dir, key);
+		} catch (IOException | ClosedWatchServiceException e) {
+			// the directory is gone or cannot be watched; it will not refresh on its own
+		}
+	}
+
+	public void close() {
+		try {
+			service.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				Map<Path, Set<Path>> changes = new LinkedHashMap<>();
+				WatchKey key = service.take();
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(MAX_LATENCY_MS);
+				do {
+					collect(key, changes);
+					long left = deadline - System.nanoTime();
+					key = left > 0 ? service.poll(Math.min(left, TimeUnit.MILLISECONDS.toNanos(QUIET_MS)),
+							TimeUnit.NANOSECONDS) : null;
+				} while (key != null);
+				if (!changes.isEmpty())
+					SwingUtilities.invokeLater(() -> listener.accept(changes));
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// closed with the project
+		}
+	}
+
+	private void collect(WatchKey key, Map<Path, Set<Path>> changes) {
+		Path dir = keys.get(key);
+		if (dir == null) {
+			key.cancel();
+			return;
+		}
+		Set<Path> entries = changes.computeIfAbsent(dir, d -> new LinkedHashSet<>());
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+				entries.add(dir);
+			else
+				entries.add(dir.resolve((Path) event.context()));
+		}
+		if (!key.reset()) {
+			keys.remove(key);
+			watched.remove(dir);
+		}
+	}
+}
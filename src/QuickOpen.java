@@ -0,0 +1,146 @@
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.File;
+
+import javax.swing.AbstractAction;
+import javax.swing.DefaultListModel;
+import javax.swing.JComponent;
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JList;
+import javax.swing.JScrollPane;
+import javax.swing.JTextField;
+import javax.swing.KeyStroke;
+import javax.swing.ListSelectionModel;
+import javax.swing.Timer;
+
+/**
+ * Dialog that opens project files by fuzzy matching their paths against the
+ * project's {@link FileIndex}.
+ */
+public class QuickOpen {
+	private static final int RESULTS = 50;
+	private String previousQuery = "";
+
+	public void showQuickOpenDialog(CodeEditor parent, FileIndex index) {
+		if (parent.projectDir == null || index == null)
+			return;
+		index.revalidate();
+		JDialog dialog = new JDialog(parent, "Open file", false);
+		dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+		dialog.setLayout(new BorderLayout());
+
+		JTextField queryField = new JTextField(previousQuery, 40);
+		queryField.setToolTipText("Type parts of the file's path & press Enter to open");
+		queryField.selectAll();
+		DefaultListModel<String> results = new DefaultListModel<String>();
+		JList<String> resultList = new JList<String>(results);
+		resultList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		resultList.setVisibleRowCount(15);
+		resultList.setFocusable(false);
+		JLabel statusLabel = new JLabel(" ");
+		statusLabel.setEnabled(false);
+
+		Runnable update = () -> {
+			previousQuery = queryField.getText();
+			results.clear();
+			for (String path : index.search(previousQuery, RESULTS))
+				results.addElement(path);
+			if (!results.isEmpty())
+				resultList.setSelectedIndex(0);
+			statusLabel.setText(index.isReady() ? index.size() + " files" : "Indexing... " + index.size() + " files");
+		};
+		Runnable open = () -> {
+			String path = resultList.getSelectedValue();
+			if (path == null)
+				return;
+			dialog.dispose();
+			parent.openFile(new File(parent.projectDir, path));
+		};
+
+		queryField.getDocument().addDocumentListener(new Search.SimpleDocumentListener() {
+			@Override
+			public void documentChanged() {
+				update.run();
+			}
+		});
+		queryField.addActionListener(e -> open.run());
+		resultList.addMouseListener(new MouseAdapter() {
+			@Override
+			public void mouseClicked(MouseEvent e) {
+				if (e.getClickCount() == 2)
+					open.run();
+			}
+		});
+		bind(queryField, KeyEvent.VK_DOWN, "next", () -> move(resultList, 1));
+		bind(queryField, KeyEvent.VK_UP, "previous", () -> move(resultList, -1));
+		bind(queryField, KeyEvent.VK_PAGE_DOWN, "nextPage", () -> move(resultList, resultList.getVisibleRowCount()));
+		bind(queryField, KeyEvent.VK_PAGE_UP, "previousPage", () -> move(resultList, -resultList.getVisibleRowCount()));
+		dialog.getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW)
+				.put(KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0, false), "ESCAPE");
+		dialog.getRootPane().getActionMap().put("ESCAPE", action(dialog::dispose));
+
+		// show changes of the index, e.g., while the first scan is running
+		int[] shownVersion = { index.getVersion() };
+		Timer refresh = new Timer(250, e -> {
+			if (index.getVersion() != shownVersion[0]) {
+				shownVersion[0] = index.getVersion();
+				update.run();
+			}
+		});
+		refresh.start();
+		dialog.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(WindowEvent e) {
+				refresh.stop();
+			}
+		});
+
+		dialog.add(queryField, BorderLayout.NORTH);
+		dialog.add(new JScrollPane(resultList), BorderLayout.CENTER);
+		dialog.add(statusLabel, BorderLayout.SOUTH);
+		update.run();
+		dialog.pack();
+		dialog.setLocationRelativeTo(parent);
+		dialog.setVisible(true);
+	}
+
+	private static void move(JList<String> list, int delta) {
+		int size = list.getModel().getSize();
+		if (size == 0)
+			return;
+		int index = Math.max(0, Math.min(size - 1, list.getSelectedIndex() + delta));
+		list.setSelectedIndex(index);
+		list.ensureIndexIsVisible(index);
+	}
+
+	private static void bind(JComponent component, int key, String name, Runnable action) {
+		component.getInputMap().put(KeyStroke.getKeyStroke(key, 0), name);
+		component.getActionMap().put(name, action(action));
+	}
+
+	private static AbstractAction action(Runnable action) {
+		return new AbstractAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				action.run();
+			}
+		};
+	}
+
+	private QuickOpen() {
+	}
+
+	private static QuickOpen instance = new QuickOpen();
+
+	public static QuickOpen getInstance() {
+		return instance;
+	}
+}
@@ -0,0 +1,127 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Segment;
+
+/**
+ * Keeps a console document to its last lines, like a ring buffer of lines,
+ * while its whole output goes to a temporary file as lines are completed. The
+ * file holds the full history off the heap: it can be viewed through a
+ * memory-mapped {@link LargeFileDocument} and exported by streaming. Lines
+ * are trimmed from the document in batches, as each removal makes the views
+ * lay out all remaining lines again.
+ */
+public class Scrollback {
+	public static final String PROPERTY = "scrollback";
+	private final Document doc;
+	private final int maxLines;
+	private final File file;
+	private final FileChannel channel;
+	private final Segment segment = new Segment();
+	// where the text not yet in the file starts
+	private int spilled = 0;
+	private boolean failed = false;
+
+	public Scrollback(Document doc, int maxLines) throws IOException {
+		this.doc = doc;
+		this.maxLines = Math.max(1, maxLines);
+		file = File.createTempFile("mango-console-", ".log");
+		file.deleteOnExit();
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		segment.setPartialReturn(true);
+		doc.putProperty(PROPERTY, this);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Writes the lines that end before completed to the file, then trims the
+	 * document if it has grown past its lines. Returns how many characters were
+	 * trimmed from its start. Call on the event dispatch thread.
+	 */
+	public int spill(int completed) {
+		if (failed)
+			return trim(completed);
+		try {
+			for (int from = spilled; from < completed; from += segment.count) {
+				doc.getText(from, completed - from, segment);
+				ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(segment.array, segment.offset, segment.count));
+				while (bytes.hasRemaining())
+					channel.write(bytes);
+			}
+			spilled = Math.max(spilled, completed);
+		} catch (IOException | BadLocationException e) {
+			// the document still holds its last lines
+			failed = true;
+		}
+		return trim(spilled);
+	}
+
+	private int trim(int completed) {
+		Element root = doc.getDefaultRootElement();
+		int lines = root.getElementCount();
+		if (lines <= maxLines + maxLines / 8)
+			return 0;
+		int cut = Math.min(completed, root.getElement(lines - maxLines).getStartOffset());
+		if (cut <= 0)
+			return 0;
+		try {
+			doc.remove(0, cut);
+		} catch (BadLocationException e) {
+			return 0;
+		}
+		spilled = Math.max(0, spilled - cut);
+		return cut;
+	}
+
+	/**
+	 * Captures the output so far, to be written out later from any thread. Call
+	 * on the event dispatch thread.
+	 */
+	public Snapshot snapshot() throws IOException, BadLocationException {
+		return new Snapshot(channel.size(), doc.getText(spilled, doc.getLength() - spilled));
+	}
+
+	public class Snapshot {
+		private final long size;
+		private final String rest;
+
+		private Snapshot(long size, String rest) {
+			this.size = size;
+			this.rest = rest;
+		}
+
+		// streams the file, then what the document held past it
+		public void writeTo(OutputStream out) throws IOException {
+			try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				WritableByteChannel target = Channels.newChannel(out);
+				for (long position = 0; position < size;)
+					position += in.transferTo(position, size - position, target);
+			}
+			out.write(rest.getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		}
+	}
+
+	public void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		file.delete();
+	}
+}
@@ -1,9 +1,16 @@
 
 import java.awt.BorderLayout;
+import java.awt.Component;
 import java.awt.FlowLayout;
 import java.awt.Image;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.PatternSyntaxException;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -19,138 +26,228 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
 
 import org.fife.ui.rsyntaxtextarea.RSyntaxTextArea;
 
 public class Search {
 	private String previousSearchText = "";
+	private String previousReplaceText = "";
+	private static final int COUNT_DELAY = 150;
+	private static final int REFRESH_DELAY = 100;
+	private static final long SEARCH_BUDGET = 1000;
+	private final ExecutorService countExecutor = CodeEditor.daemonPool("Mango search", 1);
+	private Timer countTimer = new Timer(COUNT_DELAY, null);
+	private SearchQuery currentQuery = null;
+	private MatchSet matches = null;
+	private MatchHighlighter highlighter = null;
+	private int lastEmptyMatch = -1;
+	private volatile String countStats = null;
+
+	// bytes allocated so far by the current thread, or -1 where the JVM does not tell
+	static long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+			if (allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled())
+				return allocations.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
 
-	// RSyntaxTextArea textArea = openFilesMap.get(currentFile);
-	private void searchFirst(CodeEditor parent, RSyntaxTextArea textArea, String text, boolean caseSensitive,
-			boolean wrapAround) {
-		if (textArea != null) {
-			String content = caseSensitive ? textArea.getText() : textArea.getText().toLowerCase();
-			String searchText = caseSensitive ? text : text.toLowerCase();
-
-			int searchStart = content.indexOf(searchText, 0);
-
-			if (searchStart >= 0) {
-				textArea.setCaretPosition(searchStart);
-				textArea.moveCaretPosition(searchStart + text.length());
-			} else {
-				JOptionPane.showMessageDialog(parent, "No first occurrence found.", "Search",
-						JOptionPane.INFORMATION_MESSAGE);
-			}
+	// the query for the text, or null after showing why the regular expression is invalid
+	static SearchQuery query(Component parent, String text, boolean caseSensitive, boolean regex) {
+		if (!regex)
+			return SearchQuery.literal(text, caseSensitive);
+		try {
+			return SearchQuery.regex(text, caseSensitive);
+		} catch (PatternSyntaxException e) {
+			if (parent != null)
+				JOptionPane.showMessageDialog(parent, e.getMessage(), "Invalid regular expression",
+						JOptionPane.ERROR_MESSAGE);
+			return null;
 		}
 	}
 
-	private void searchNext(CodeEditor parent, RSyntaxTextArea textArea, String text, boolean caseSensitive,
-			boolean wrapAround) {
-		if (textArea != null) {
-			String content = caseSensitive ? textArea.getText() : textArea.getText().toLowerCase();
-			String searchText = caseSensitive ? text : text.toLowerCase();
-			int caretPosition = textArea.getCaretPosition();
+	private static void select(RSyntaxTextArea textArea, long match) {
+		textArea.setCaretPosition(SearchQuery.start(match));
+		textArea.moveCaretPosition(SearchQuery.end(match));
+	}
 
-			int searchStart = content.indexOf(searchText, caretPosition);
+	private void searchFirst(CodeEditor parent, RSyntaxTextArea textArea, SearchQuery query, boolean wrapAround) {
+		if (textArea != null && query != null) {
+			CharSequence content = query.limit(new DocumentText(textArea.getDocument()), SEARCH_BUDGET);
+			try {
+				long match = query.find(content, 0, content.length() + 1);
 
-			if (searchStart >= 0) {
-				textArea.setCaretPosition(searchStart);
-				textArea.moveCaretPosition(searchStart + text.length());
-			} else if (wrapAround) {
-				searchStart = content.indexOf(searchText);
-				if (searchStart >= 0) {
-					textArea.setCaretPosition(searchStart);
-					textArea.moveCaretPosition(searchStart + text.length());
+				if (match >= 0) {
+					select(textArea, match);
 				} else {
-					JOptionPane.showMessageDialog(parent, "No occurrences found.", "Search",
+					JOptionPane.showMessageDialog(parent, "No first occurrence found.", "Search",
 							JOptionPane.INFORMATION_MESSAGE);
 				}
-			} else {
-				JOptionPane.showMessageDialog(parent, "No next occurrence found.", "Search",
-						JOptionPane.INFORMATION_MESSAGE);
+			} catch (SearchQuery.TimeoutException e) {
+				JOptionPane.showMessageDialog(parent, e.getMessage(), "Search", JOptionPane.WARNING_MESSAGE);
 			}
 		}
 	}
 
-	private void searchPrevious(CodeEditor parent, RSyntaxTextArea textArea, String text, boolean caseSensitive,
-			boolean wrapAround) {
-		if (textArea != null) {
-			String content = caseSensitive ? textArea.getText() : textArea.getText().toLowerCase();
-			String searchText = caseSensitive ? text : text.toLowerCase();
+	private void searchNext(CodeEditor parent, RSyntaxTextArea textArea, SearchQuery query, boolean wrapAround) {
+		if (textArea != null && query != null) {
+			CharSequence content = query.limit(new DocumentText(textArea.getDocument()), SEARCH_BUDGET);
 			int caretPosition = textArea.getCaretPosition();
-
-			int searchStart = content.lastIndexOf(searchText, caretPosition - text.length() - 1);
-
-			if (searchStart >= 0) {
-				textArea.setCaretPosition(searchStart);
-				textArea.moveCaretPosition(searchStart + text.length());
-			} else if (wrapAround) {
-				searchStart = content.lastIndexOf(searchText);
-				if (searchStart >= 0) {
-					textArea.setCaretPosition(searchStart);
-					textArea.moveCaretPosition(searchStart + text.length());
+			// an empty match is not found again where it is selected
+			if (textArea.getSelectionStart() == textArea.getSelectionEnd() && caretPosition == lastEmptyMatch)
+				caretPosition++;
+			try {
+				long match = query.find(content, caretPosition, content.length() + 1);
+
+				if (match >= 0) {
+					select(textArea, match);
+				} else if (wrapAround) {
+					match = query.find(content, 0, content.length() + 1);
+					if (match >= 0) {
+						select(textArea, match);
+					} else {
+						JOptionPane.showMessageDialog(parent, "No occurrences found.", "Search",
+								JOptionPane.INFORMATION_MESSAGE);
+					}
 				} else {
-					JOptionPane.showMessageDialog(parent, "No occurrences found.", "Search",
+					JOptionPane.showMessageDialog(parent, "No next occurrence found.", "Search",
 							JOptionPane.INFORMATION_MESSAGE);
 				}
-			} else {
-				JOptionPane.showMessageDialog(parent, "No previous occurrence found.", "Search",
-						JOptionPane.INFORMATION_MESSAGE);
+				lastEmptyMatch = match >= 0 && SearchQuery.start(match) == SearchQuery.end(match) ? SearchQuery.end(match)
+						: -1;
+			} catch (SearchQuery.TimeoutException e) {
+				JOptionPane.showMessageDialog(parent, e.getMessage(), "Search", JOptionPane.WARNING_MESSAGE);
 			}
 		}
 	}
 
-	private int countOccurrences(CodeEditor parent, RSyntaxTextArea textArea, String searchText,
-			boolean caseSensitive) {
-		if (textArea != null) {
-			String content = caseSensitive ? textArea.getText() : textArea.getText().toLowerCase();
-			String search = caseSensitive ? searchText : searchText.toLowerCase();
-			int occurrences = 0;
-			int index = 0;
-
-			while (index >= 0) {
-				index = content.indexOf(search, index);
-				if (index >= 0) {
-					occurrences++;
-					index += search.length();
-					if (occurrences > 100) {
-						return occurrences;
+	private void searchPrevious(CodeEditor parent, RSyntaxTextArea textArea, SearchQuery query, boolean wrapAround) {
+		if (textArea != null && query != null) {
+			CharSequence content = query.limit(new DocumentText(textArea.getDocument()), SEARCH_BUDGET);
+			int selectionStart = textArea.getSelectionStart();
+			try {
+				long match = query.findLast(content, selectionStart - 1);
+
+				if (match >= 0) {
+					select(textArea, match);
+				} else if (wrapAround) {
+					match = query.findLast(content, content.length());
+					if (match >= 0) {
+						select(textArea, match);
+					} else {
+						JOptionPane.showMessageDialog(parent, "No occurrences found.", "Search",
+								JOptionPane.INFORMATION_MESSAGE);
 					}
+				} else {
+					JOptionPane.showMessageDialog(parent, "No previous occurrence found.", "Search",
+							JOptionPane.INFORMATION_MESSAGE);
 				}
+				lastEmptyMatch = -1;
+			} catch (SearchQuery.TimeoutException e) {
+				JOptionPane.showMessageDialog(parent, e.getMessage(), "Search", JOptionPane.WARNING_MESSAGE);
 			}
-			return occurrences;
 		}
-		return 0;
 	}
 
-	private void updateOccurrences(CodeEditor parent, RSyntaxTextArea textArea, JPanel buttons, JLabel occurrenceLabel,
-			String searchText, boolean caseSensitive) {
+	// restarts counting once typing pauses, dropping the count of the previous query
+	private void updateOccurrences(CodeEditor parent, JPanel buttons, JLabel occurrenceLabel, String searchText,
+			boolean caseSensitive, boolean regex) {
+		previousSearchText = searchText;
+		countTimer.stop();
+		stopCounting();
+		currentQuery = null;
 		if (searchText.length() == 0) {
 			occurrenceLabel.setText("Type above  ");
+			occurrenceLabel.setToolTipText(null);
 			buttons.setVisible(false);
-			previousSearchText = searchText;
 			return;
 		}
-		int occurrences = countOccurrences(parent, textArea, searchText, caseSensitive);
-		if (occurrences > 100) {
-			occurrenceLabel.setText("100+ occurrences  ");
-			buttons.setVisible(true);
-			previousSearchText = searchText;
-		} else if (occurrences > 1) {
-			occurrenceLabel.setText(occurrences + " occurrences  ");
-			buttons.setVisible(true);
-			previousSearchText = searchText;
-		} else if (occurrences == 1) {
-			occurrenceLabel.setText(occurrences + " occurrence  ");
-			buttons.setVisible(true);
-			previousSearchText = searchText;
-		} else {
-			occurrenceLabel.setText("Nothing found  ");
+		currentQuery = query(null, searchText, caseSensitive, regex);
+		if (currentQuery == null) {
+			occurrenceLabel.setText("Invalid pattern  ");
+			occurrenceLabel.setToolTipText(null);
 			buttons.setVisible(false);
-			previousSearchText = searchText;
+			return;
+		}
+		occurrenceLabel.setText("Counting...  ");
+		SearchQuery counted = currentQuery;
+		countTimer = new Timer(COUNT_DELAY, e -> startCounting(parent.getCurrentTextArea(), counted));
+		countTimer.setRepeats(false);
+		countTimer.start();
+	}
+
+	private void startCounting(RSyntaxTextArea textArea, SearchQuery query) {
+		stopCounting();
+		if (textArea == null || query == null)
+			return;
+		MatchSet counted = new MatchSet(textArea.getDocument(), query);
+		matches = counted;
+		highlighter = MatchHighlighter.install(textArea, counted);
+		countStats = null;
+		countExecutor.submit(() -> {
+			long allocated = allocatedBytes();
+			long started = System.nanoTime();
+			if (!counted.scan())
+				return;
+			String stats = String.format("Counted in %.1f ms", (System.nanoTime() - started) / 1e6);
+			if (allocated >= 0)
+				stats += ", " + (allocatedBytes() - allocated) + " bytes allocated";
+			if (!counted.isDisposed())
+				countStats = stats;
+		});
+	}
+
+	private void stopCounting() {
+		if (highlighter != null)
+			highlighter.uninstall();
+		highlighter = null;
+		if (matches != null)
+			matches.dispose();
+		matches = null;
+	}
+
+	// shows the count so far, and which match is selected, of the text area that is open
+	private void showOccurrences(CodeEditor parent, JPanel buttons, JLabel occurrenceLabel) {
+		MatchSet counted = matches;
+		if (counted == null)
+			return;
+		RSyntaxTextArea textArea = parent.getCurrentTextArea();
+		if (textArea == null || textArea.getDocument() != counted.getDocument()) {
+			// another file was opened meanwhile
+			startCounting(textArea, currentQuery);
+			return;
 		}
+		if (!counted.isComplete() && !counted.isFailed() && !counted.isScanning())
+			// a large edit left part of the document to count again
+			countExecutor.submit(counted::scan);
+		if (highlighter != null)
+			highlighter.refresh();
+		int occurrences = counted.size();
+		int selected = counted.indexOf(textArea.getSelectionStart());
+		if (selected >= 0 && counted.getEnd(selected) != textArea.getSelectionEnd())
+			selected = -1;
+		String text;
+		if (counted.isFailed())
+			text = "Pattern too slow  ";
+		else if (!counted.isComplete())
+			text = occurrences + "+ occurrences...  ";
+		else if (occurrences == 0)
+			text = "Nothing found  ";
+		else if (selected >= 0)
+			text = "Match " + (selected + 1) + " of " + occurrences + "  ";
+		else if (occurrences == 1)
+			text = occurrences + " occurrence  ";
+		else
+			text = occurrences + " occurrences  ";
+		occurrenceLabel.setText(text);
+		occurrenceLabel.setToolTipText(counted.isFailed() ? new SearchQuery.TimeoutException().getMessage() : countStats);
+		buttons.setVisible(occurrences > 0);
 	}
 
 	public void showSearchDialog(CodeEditor parent) {
@@ -186,8 +283,11 @@ public class Search {
 
 		JCheckBox caseSensitiveCheckBox = new JCheckBox("Case Sensitive");
 		JCheckBox wrapAroundCheckBox = new JCheckBox("Wrap Around", true);
-		searchField.addActionListener(e -> searchNext(parent, parent.getCurrentTextArea(), searchField.getText(),
-				caseSensitiveCheckBox.isSelected(), wrapAroundCheckBox.isSelected()));
+		JCheckBox regexCheckBox = new JCheckBox("Regular Expression");
+		regexCheckBox.setToolTipText("Java syntax, with ^ and $ matching at line ends");
+		searchField.addActionListener(e -> searchNext(parent, parent.getCurrentTextArea(), query(searchDialog,
+				searchField.getText(), caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()),
+				wrapAroundCheckBox.isSelected()));
 
 		inputPanel.add(searchField);
 
@@ -195,6 +295,7 @@ public class Search {
 		checkBoxPanel.setLayout(new BoxLayout(checkBoxPanel, BoxLayout.Y_AXIS));
 		checkBoxPanel.add(caseSensitiveCheckBox);
 		checkBoxPanel.add(wrapAroundCheckBox);
+		checkBoxPanel.add(regexCheckBox);
 
 		JPanel buttonPanel = new JPanel(new BorderLayout());
 		JLabel occurrenceLabel = new JLabel("Type above  ", SwingConstants.RIGHT);
@@ -207,23 +308,26 @@ public class Search {
 				.getImage().getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
 		firstButton.setToolTipText("First occurrence");
 		firstButton.setSize(16, 16);
-		firstButton.addActionListener(e -> searchFirst(parent, parent.getCurrentTextArea(), searchField.getText(),
-				caseSensitiveCheckBox.isSelected(), wrapAroundCheckBox.isSelected()));
+		firstButton.addActionListener(e -> searchFirst(parent, parent.getCurrentTextArea(), query(searchDialog,
+				searchField.getText(), caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()),
+				wrapAroundCheckBox.isSelected()));
 
 		JButton nextButton = new JButton(new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/next.png"))
 				.getImage().getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
 		nextButton.setToolTipText("Next");
 		nextButton.setSize(16, 16);
-		nextButton.addActionListener(e -> searchNext(parent, parent.getCurrentTextArea(), searchField.getText(),
-				caseSensitiveCheckBox.isSelected(), wrapAroundCheckBox.isSelected()));
+		nextButton.addActionListener(e -> searchNext(parent, parent.getCurrentTextArea(), query(searchDialog,
+				searchField.getText(), caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()),
+				wrapAroundCheckBox.isSelected()));
 
 		JButton previousButton = new JButton(
 				new ImageIcon(new ImageIcon(CodeEditor.class.getResource("/icons/previous.png")).getImage()
 						.getScaledInstance(16, 16, Image.SCALE_SMOOTH)));
 		previousButton.setToolTipText("Previous");
 		previousButton.setSize(16, 16);
-		previousButton.addActionListener(e -> searchPrevious(parent, parent.getCurrentTextArea(), searchField.getText(),
-				caseSensitiveCheckBox.isSelected(), wrapAroundCheckBox.isSelected()));
+		previousButton.addActionListener(e -> searchPrevious(parent, parent.getCurrentTextArea(), query(searchDialog,
+				searchField.getText(), caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()),
+				wrapAroundCheckBox.isSelected()));
 
 		buttons.add(firstButton);
 		buttons.add(previousButton);
@@ -234,12 +338,26 @@ public class Search {
 		searchField.getDocument().addDocumentListener(new SimpleDocumentListener() {
 			@Override
 			public void documentChanged() {
-				updateOccurrences(parent, parent.getCurrentTextArea(), buttons, occurrenceLabel, searchField.getText(),
-						caseSensitiveCheckBox.isSelected());
+				updateOccurrences(parent, buttons, occurrenceLabel, searchField.getText(),
+						caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected());
+			}
+		});
+		caseSensitiveCheckBox.addActionListener(e -> updateOccurrences(parent, buttons, occurrenceLabel,
+				searchField.getText(), caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()));
+		regexCheckBox.addActionListener(e -> updateOccurrences(parent, buttons, occurrenceLabel,
+				searchField.getText(), caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()));
+
+		// follows the count as it grows, edits and moves between matches
+		Timer refresh = new Timer(REFRESH_DELAY, e -> showOccurrences(parent, buttons, occurrenceLabel));
+		refresh.start();
+		searchDialog.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(WindowEvent e) {
+				refresh.stop();
+				countTimer.stop();
+				stopCounting();
 			}
 		});
-		caseSensitiveCheckBox.addActionListener(e -> updateOccurrences(parent, parent.getCurrentTextArea(), buttons,
-				occurrenceLabel, searchField.getText(), caseSensitiveCheckBox.isSelected()));
 
 		buttons.setVisible(false);
 
@@ -247,14 +365,150 @@ public class Search {
 		searchDialog.add(checkBoxPanel, BorderLayout.WEST);
 		searchDialog.add(buttonPanel, BorderLayout.EAST);
 
-		updateOccurrences(parent, parent.getCurrentTextArea(), buttons, occurrenceLabel, searchField.getText(),
-				caseSensitiveCheckBox.isSelected());
+		updateOccurrences(parent, buttons, occurrenceLabel, searchField.getText(), caseSensitiveCheckBox.isSelected(),
+				regexCheckBox.isSelected());
 
 		searchDialog.pack();
 		searchDialog.setResizable(false);
 		searchDialog.setVisible(true);
 	}
 
+	// replaces the selection if it is a match, then moves to the next match
+	private void replaceNext(CodeEditor parent, RSyntaxTextArea textArea, SearchQuery query, String replacement,
+			JLabel status) {
+		if (textArea == null || query == null)
+			return;
+		if (!textArea.isEditable()) {
+			status.setText("The file is read-only  ");
+			return;
+		}
+		CharSequence content = query.limit(new DocumentText(textArea.getDocument()), SEARCH_BUDGET);
+		int start = textArea.getSelectionStart();
+		int end = textArea.getSelectionEnd();
+		try {
+			long match = query.find(content, start, start + 1);
+			if (match >= 0 && SearchQuery.start(match) == start && SearchQuery.end(match) == end
+					&& (start < end || start == lastEmptyMatch)) {
+				String text = query.replacement(content, match, replacement);
+				textArea.beginAtomicEdit();
+				try {
+					textArea.replaceSelection(text);
+				} finally {
+					textArea.endAtomicEdit();
+				}
+				lastEmptyMatch = -1;
+				status.setText("Replaced 1  ");
+			}
+		} catch (SearchQuery.TimeoutException | IllegalArgumentException | IndexOutOfBoundsException e) {
+			JOptionPane.showMessageDialog(parent, e.getMessage(), "Replace", JOptionPane.WARNING_MESSAGE);
+			return;
+		}
+		searchNext(parent, textArea, query, true);
+	}
+
+	private void replaceAll(CodeEditor parent, RSyntaxTextArea textArea, SearchQuery query, String replacement,
+			JLabel status) {
+		if (textArea == null || query == null)
+			return;
+		if (!textArea.isEditable()) {
+			status.setText("The file is read-only  ");
+			return;
+		}
+		try {
+			BulkReplace replaced = BulkReplace.replaceAll(textArea, query, replacement);
+			lastEmptyMatch = -1;
+			if (replaced.getCount() == 0)
+				status.setText("Nothing found  ");
+			else
+				status.setText(String.format("Replaced %d in %.0f ms  ", replaced.getCount(), replaced.getNanos() / 1e6));
+		} catch (SearchQuery.TimeoutException | IllegalArgumentException | IndexOutOfBoundsException
+				| BadLocationException e) {
+			JOptionPane.showMessageDialog(parent, e.getMessage(), "Replace", JOptionPane.WARNING_MESSAGE);
+		}
+	}
+
+	public void showReplaceDialog(CodeEditor parent) {
+		JDialog replaceDialog = new JDialog(parent, "Replace", false);
+		replaceDialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+		KeyStroke escapeKeyStroke = KeyStroke.getKeyStroke(KeyEvent.VK_ESCAPE, 0, false);
+		replaceDialog.getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(escapeKeyStroke, "ESCAPE");
+		replaceDialog.getRootPane().getActionMap().put("ESCAPE", new AbstractAction() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				replaceDialog.dispose();
+			}
+		});
+		replaceDialog.setLayout(new BorderLayout());
+		replaceDialog.setLocationRelativeTo(parent);
+
+		JTextField searchField = new JTextField(30);
+		searchField.setToolTipText("Text to find");
+		String selectedText = parent.getSelectedText();
+		if (selectedText != null && !selectedText.isEmpty() && selectedText.indexOf('\n') < 0)
+			previousSearchText = selectedText;
+		searchField.setText(previousSearchText);
+		searchField.selectAll();
+		JTextField replaceField = new JTextField(previousReplaceText, 30);
+		replaceField.setToolTipText("Replacement; $1 or ${name} insert groups of a regular expression");
+
+		JPanel inputPanel = new JPanel();
+		inputPanel.setLayout(new BoxLayout(inputPanel, BoxLayout.Y_AXIS));
+		inputPanel.add(searchField);
+		inputPanel.add(replaceField);
+
+		JCheckBox caseSensitiveCheckBox = new JCheckBox("Case Sensitive");
+		JCheckBox regexCheckBox = new JCheckBox("Regular Expression");
+		JPanel checkBoxPanel = new JPanel();
+		checkBoxPanel.setLayout(new BoxLayout(checkBoxPanel, BoxLayout.Y_AXIS));
+		checkBoxPanel.add(caseSensitiveCheckBox);
+		checkBoxPanel.add(regexCheckBox);
+
+		JLabel status = new JLabel(" ", SwingConstants.RIGHT);
+		status.setEnabled(false);
+		JButton findButton = new JButton("Find Next");
+		JButton replaceButton = new JButton("Replace");
+		JButton replaceAllButton = new JButton("Replace All");
+		findButton.addActionListener(e -> searchNext(parent, parent.getCurrentTextArea(), query(replaceDialog,
+				searchField.getText(), caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()), true));
+		searchField.addActionListener(e -> findButton.doClick());
+		replaceButton.addActionListener(e -> {
+			previousReplaceText = replaceField.getText();
+			replaceNext(parent, parent.getCurrentTextArea(), query(replaceDialog, searchField.getText(),
+					caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()), replaceField.getText(), status);
+		});
+		replaceField.addActionListener(e -> replaceButton.doClick());
+		replaceAllButton.addActionListener(e -> {
+			previousReplaceText = replaceField.getText();
+			replaceAll(parent, parent.getCurrentTextArea(), query(replaceDialog, searchField.getText(),
+					caseSensitiveCheckBox.isSelected(), regexCheckBox.isSelected()), replaceField.getText(), status);
+		});
+		searchField.getDocument().addDocumentListener(new SimpleDocumentListener() {
+			@Override
+			public void documentChanged() {
+				previousSearchText = searchField.getText();
+				status.setText(" ");
+			}
+		});
+
+		JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+		buttons.add(findButton);
+		buttons.add(replaceButton);
+		buttons.add(replaceAllButton);
+		JPanel buttonPanel = new JPanel(new BorderLayout());
+		buttonPanel.add(status, BorderLayout.NORTH);
+		buttonPanel.add(buttons, BorderLayout.SOUTH);
+
+		replaceDialog.add(inputPanel, BorderLayout.NORTH);
+		replaceDialog.add(checkBoxPanel, BorderLayout.WEST);
+		replaceDialog.add(buttonPanel, BorderLayout.EAST);
+
+		replaceDialog.pack();
+		replaceDialog.setResizable(false);
+		replaceDialog.setVisible(true);
+	}
+
 	private Search() {
 	}
 
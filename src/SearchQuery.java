@@ -0,0 +1,425 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * What the search dialogs look for: literal text or a regular expression.
+ * Matches are found in any {@link CharSequence}, such as a
+ * {@link DocumentText}, without copying it. Regular expressions are compiled
+ * once per expression and flags, and matching them can be given a time budget
+ * so that a pattern that backtracks catastrophically fails with a
+ * {@link TimeoutException} instead of hanging. Matches of regular expressions
+ * are assumed to span less than {@link #SPAN} chars wherever text is scanned
+ * piecewise.
+ */
+public abstract class SearchQuery {
+	public static final int SPAN = 1 << 16;
+	private static final int WINDOW = 1 << 10;
+	private static final int PATTERNS = 32;
+	private static final Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>(PATTERNS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+			return size() > PATTERNS;
+		}
+	};
+
+	/** Thrown when matching runs out of its time budget. */
+	public static class TimeoutException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public TimeoutException() {
+			super("The pattern takes too long to match");
+		}
+	}
+
+	public static SearchQuery literal(String text, boolean caseSensitive) {
+		return new Literal(text, caseSensitive);
+	}
+
+	public static SearchQuery regex(String regex, boolean caseSensitive) throws PatternSyntaxException {
+		int flags = Pattern.MULTILINE | (caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+		String key = flags + ":" + regex;
+		Pattern pattern;
+		synchronized (patterns) {
+			pattern = patterns.get(key);
+		}
+		if (pattern == null) {
+			pattern = Pattern.compile(regex, flags);
+			synchronized (patterns) {
+				patterns.put(key, pattern);
+			}
+		}
+		return new Regex(pattern, caseSensitive);
+	}
+
+	static long match(int start, int end) {
+		return (long) start << 32 | end;
+	}
+
+	public static int start(long match) {
+		return (int) (match >>> 32);
+	}
+
+	public static int end(long match) {
+		return (int) match;
+	}
+
+	/**
+	 * Returns the first match that starts within [from, to) as a value for
+	 * {@link #start(long)} and {@link #end(long)}, or -1.
+	 */
+	public abstract long find(CharSequence text, int from, int to);
+
+	// the last match that starts at or before from, or -1
+	public abstract long findLast(CharSequence text, int from);
+
+	/**
+	 * Where matches may start that are affected by an edit at the offset;
+	 * earlier matches end before the edit.
+	 */
+	public abstract int reach(CharSequence text, int offset);
+
+	// where matches start that are no longer affected by an edit ending at the offset
+	public abstract int settle(CharSequence text, int offset);
+
+	/**
+	 * The text that replaces a match found in the text, with $n, ${name} and
+	 * escapes expanded for regular expressions.
+	 */
+	public abstract String replacement(CharSequence text, long match, String replacement);
+
+	// texts that every match contains, which can narrow down the files to search
+	public abstract List<String> requiredTexts();
+
+	public abstract boolean isCaseSensitive();
+
+	// the longest match to expect where text is scanned piecewise
+	public abstract int maxLength();
+
+	/**
+	 * Wraps the text so that matching it fails with a {@link TimeoutException}
+	 * once the given time has passed.
+	 */
+	public CharSequence limit(CharSequence text, long millis) {
+		return text;
+	}
+
+	private static class Literal extends SearchQuery {
+		private final String text;
+		private final boolean caseSensitive;
+		private final TextMatcher matcher;
+
+		Literal(String text, boolean caseSensitive) {
+			this.text = text;
+			this.caseSensitive = caseSensitive;
+			this.matcher = new TextMatcher(text, caseSensitive);
+		}
+
+		@Override
+		public long find(CharSequence text, int from, int to) {
+			int m = matcher.length();
+			int start = matcher.next(text, from, Math.min(text.length(), to + Math.max(0, m - 1)));
+			return start >= 0 ? match(start, start + m) : -1;
+		}
+
+		@Override
+		public long findLast(CharSequence text, int from) {
+			int start = matcher.previous(text, from);
+			return start >= 0 ? match(start, start + matcher.length()) : -1;
+		}
+
+		@Override
+		public int reach(CharSequence text, int offset) {
+			return Math.max(0, offset - matcher.length() + 1);
+		}
+
+		@Override
+		public int settle(CharSequence text, int offset) {
+			return offset;
+		}
+
+		@Override
+		public String replacement(CharSequence text, long match, String replacement) {
+			return replacement;
+		}
+
+		@Override
+		public List<String> requiredTexts() {
+			return List.of(text);
+		}
+
+		@Override
+		public int maxLength() {
+			return text.length();
+		}
+
+		@Override
+		public boolean isCaseSensitive() {
+			return caseSensitive;
+		}
+	}
+
+	private static class Regex extends SearchQuery {
+		private final Pattern pattern;
+		private final boolean caseSensitive;
+		private final boolean spansLines;
+
+		Regex(Pattern pattern, boolean caseSensitive) {
+			this.pattern = pattern;
+			this.caseSensitive = caseSensitive;
+			this.spansLines = spansLines(pattern.pattern());
+		}
+
+		private Matcher matcher(CharSequence text, int from, int to) {
+			return pattern.matcher(text).useTransparentBounds(true).useAnchoringBounds(false).region(from, to);
+		}
+
+		@Override
+		public long find(CharSequence text, int from, int to) {
+			if (from > text.length())
+				return -1;
+			// a little text past to mostly settles the search, and the whole span is read only where the matcher ran into its end
+			for (int window = WINDOW;; window = SPAN) {
+				int end = (int) Math.min(text.length(), (long) to + window);
+				Matcher matcher = matcher(text, from, end);
+				boolean found = matcher.find() && matcher.start() < to;
+				if (matcher.hitEnd() && end < text.length() && window < SPAN)
+					continue;
+				if (found && matcher.hitEnd() && end < text.length()) {
+					// the match may go on past the span
+					matcher = matcher(text, matcher.start(), text.length());
+					found = matcher.lookingAt();
+				}
+				return found ? match(matcher.start(), matcher.end()) : -1;
+			}
+		}
+
+		@Override
+		public long findLast(CharSequence text, int from) {
+			// searches ever larger windows back from the offset, keeping the last match of the first window with any
+			from = Math.min(from, text.length());
+			for (int window = 1 << 12;; window <<= 1) {
+				int start = Math.max(0, from - window);
+				long last = -1;
+				for (long match = find(text, start, from + 1); match >= 0; match = find(text, next(match), from + 1))
+					last = match;
+				if (last >= 0 || start == 0)
+					return last;
+			}
+		}
+
+		private static int next(long match) {
+			return end(match) > start(match) ? end(match) : end(match) + 1;
+		}
+
+		@Override
+		public int reach(CharSequence text, int offset) {
+			if (spansLines)
+				return Math.max(0, offset - SPAN);
+			int start = Math.min(offset, text.length());
+			while (start > 0 && text.charAt(start - 1) != '\n')
+				start--;
+			return start;
+		}
+
+		@Override
+		public int settle(CharSequence text, int offset) {
+			// matches may look back past their start, but not across lines
+			int end = offset;
+			while (end < text.length() && text.charAt(end) != '\n')
+				end++;
+			return Math.min(text.length(), end + 1);
+		}
+
+		@Override
+		public String replacement(CharSequence text, long match, String replacement) {
+			if (replacement.indexOf('$') < 0 && replacement.indexOf('\\') < 0)
+				return replacement;
+			Matcher matcher = matcher(text, start(match), text.length());
+			if (!matcher.lookingAt())
+				return replacement;
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < replacement.length(); i++) {
+				char c = replacement.charAt(i);
+				if (c == '\\' && i + 1 < replacement.length())
+					result.append(replacement.charAt(++i));
+				else if (c == '$' && i + 1 < replacement.length() && replacement.charAt(i + 1) == '{') {
+					int close = replacement.indexOf('}', i + 2);
+					if (close < 0)
+						throw new IllegalArgumentException("Unclosed group name in the replacement");
+					String group = matcher.group(replacement.substring(i + 2, close));
+					result.append(group != null ? group : "");
+					i = close;
+				} else if (c == '$' && i + 1 < replacement.length() && Character.isDigit(replacement.charAt(i + 1))) {
+					// takes as many digits as still name a group, as Matcher does
+					int group = replacement.charAt(++i) - '0';
+					while (i + 1 < replacement.length() && Character.isDigit(replacement.charAt(i + 1))
+							&& group * 10 + replacement.charAt(i + 1) - '0' <= matcher.groupCount())
+						group = group * 10 + replacement.charAt(++i) - '0';
+					if (group > matcher.groupCount())
+						throw new IndexOutOfBoundsException("No group " + group + " in the pattern");
+					String value = matcher.group(group);
+					result.append(value != null ? value : "");
+				} else
+					result.append(c);
+			}
+			return result.toString();
+		}
+
+		@Override
+		public List<String> requiredTexts() {
+			return requiredLiterals(pattern.pattern());
+		}
+
+		@Override
+		public int maxLength() {
+			return SPAN;
+		}
+
+		@Override
+		public boolean isCaseSensitive() {
+			return caseSensitive;
+		}
+
+		@Override
+		public CharSequence limit(CharSequence text, long millis) {
+			return new LimitedText(text, System.nanoTime() + millis * 1_000_000L);
+		}
+	}
+
+	// whether the expression may match a line break, judging by the constructs that can
+	static boolean spansLines(String regex) {
+		if (regex.indexOf('\n') >= 0 || regex.indexOf("[^") >= 0 || hasInlineFlags(regex))
+			return true;
+		for (int i = regex.indexOf('\\'); i >= 0 && i + 1 < regex.length(); i = regex.indexOf('\\', i + 2))
+			if ("nsRvHWDPpXNxu0cQ".indexOf(regex.charAt(i + 1)) >= 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * Runs of literal chars that every match of the expression contains. Gives
+	 * none for alternatives and inline flags, which the runs cannot account for.
+	 */
+	static List<String> requiredLiterals(String regex) {
+		List<String> literals = new ArrayList<>();
+		if (regex.indexOf('|') >= 0 || hasInlineFlags(regex))
+			return literals;
+		StringBuilder run = new StringBuilder();
+		int depth = 0;
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (depth > 0) {
+				// groups are skipped as a whole
+				if (c == '\\')
+					i++;
+				else if (c == '[')
+					i = classEnd(regex, i);
+				else if (c == '(')
+					depth++;
+				else if (c == ')')
+					depth--;
+			} else if (c == '(') {
+				flush(run, literals);
+				depth++;
+			} else if (c == '[') {
+				flush(run, literals);
+				i = classEnd(regex, i);
+			} else if (c == '*' || c == '?' || c == '{') {
+				// the char before may be missing, so it ends the run without being part of it
+				if (run.length() > 0)
+					run.setLength(run.length() - (run.length() > 1 && Character.isLowSurrogate(run.charAt(run.length() - 1)) ? 2 : 1));
+				flush(run, literals);
+				if (c == '{')
+					i = Math.max(i, regex.indexOf('}', i));
+			} else if (c == '\\' && i + 1 < regex.length()) {
+				char escaped = regex.charAt(++i);
+				if (escaped == 'Q') {
+					int end = regex.indexOf("\\E", i + 1);
+					run.append(regex, i + 1, end < 0 ? regex.length() : end);
+					i = end < 0 ? regex.length() : end + 1;
+				} else if (Character.isLetterOrDigit(escaped))
+					flush(run, literals);
+				else
+					run.append(escaped);
+			} else if ("+.^$)".indexOf(c) >= 0)
+				flush(run, literals);
+			else
+				run.append(c);
+		}
+		flush(run, literals);
+		return literals;
+	}
+
+	private static boolean hasInlineFlags(String regex) {
+		for (int i = regex.indexOf("(?"); i >= 0; i = regex.indexOf("(?", i + 1))
+			if (i + 2 < regex.length() && "idmsuxU-".indexOf(regex.charAt(i + 2)) >= 0 && (i == 0 || regex.charAt(i - 1) != '\\'))
+				return true;
+		return false;
+	}
+
+	// index of the bracket that closes the class opened at start
+	private static int classEnd(String regex, int start) {
+		int depth = 0;
+		for (int i = start; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (c == '\\')
+				i++;
+			else if (c == '[')
+				depth++;
+			else if (c == ']' && --depth == 0)
+				return i;
+		}
+		return regex.length();
+	}
+
+	private static void flush(StringBuilder run, List<String> literals) {
+		if (run.length() > 0)
+			literals.add(run.toString());
+		run.setLength(0);
+	}
+
+	/** Text that fails with a {@link TimeoutException} once read after a deadline. */
+	private static class LimitedText implements CharSequence {
+		private static final int CHECK = 1 << 12;
+		private final CharSequence text;
+		private final long deadline;
+		private int reads = 0;
+
+		LimitedText(CharSequence text, long deadline) {
+			this.text = text;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++reads == CHECK) {
+				reads = 0;
+				if (System.nanoTime() > deadline)
+					throw new TimeoutException();
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return text.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,494 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Remembers the results of task runs by what went into them, so that a task
+ * whose declared inputs have not changed is not run again. The key of a run
+ * hashes the task's command with the path and content of every input file;
+ * its entry holds the exit code and console output of the run and the output
+ * files it left, all stored by the hash of their content so that unchanged
+ * results are kept once. Files are hashed again only when their size or
+ * modification time changes. Entries are evicted least recently used first
+ * once what they hold grows past the size limit. Everything is stored under
+ * the project's .mango directory and done on a background thread.
+ */
+public class TaskCache {
+	private static final int MAGIC = 0x4D544331;
+	// runs with more output than this are not cached
+	private static final int MAX_RECORDED_CHARS = 1 << 22;
+	private static final long REPLAY_WAIT = 10;
+	private final Path root;
+	private final Path objects;
+	private final Path entries;
+	private final ExecutorService executor;
+	// the project's current rules, which may be replaced as the settings change
+	private final Supplier<IgnoreRules> ignoreRules;
+	// file hashes by path, with the size and modification time they were taken at; background thread only
+	private final Map<Path, FileHash> hashes = new HashMap<>();
+	private long maxBytes;
+
+	private static class FileHash {
+		final long size;
+		final long modified;
+		final String hash;
+
+		FileHash(long size, long modified, String hash) {
+			this.size = size;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+
+	/**
+	 * A cached run, whose console output can be replayed to a sink and whose
+	 * output files have been restored.
+	 */
+	public class Hit {
+		private final int exitCode;
+		private final String output;
+
+		private Hit(int exitCode, String output) {
+			this.exitCode = exitCode;
+			this.output = output;
+		}
+
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		// passes the recorded output on in the order it was read, then closes the sink
+		public void replay(ProcessPump.Sink sink) {
+			executor.execute(() -> {
+				try (DataInputStream in = new DataInputStream(Files.newInputStream(objects.resolve(output)))) {
+					int chunks = in.readInt();
+					for (int i = 0; i < chunks; i++) {
+						boolean error = in.readBoolean();
+						byte[] bytes = new byte[in.readInt()];
+						in.readFully(bytes);
+						char[] chars = new String(bytes, StandardCharsets.UTF_8).toCharArray();
+						// waits for the console as the pump would, rather than have it elide output
+						while (sink.isFull())
+							Thread.sleep(REPLAY_WAIT);
+						sink.output(error, 0, chars, 0, chars.length);
+					}
+				} catch (InterruptedException e) {
+					return;
+				} catch (IOException e) {
+					char[] chars = ("[cached output unavailable: " + e + "]").toCharArray();
+					sink.output(true, 0, chars, 0, chars.length);
+				}
+				sink.closed();
+			});
+		}
+	}
+
+	/**
+	 * Passes process output on to a sink while recording it, to be stored once
+	 * the run has exited.
+	 */
+	public static class Recorder implements ProcessPump.Sink {
+		private final ProcessPump.Sink sink;
+		private final List<Boolean> errors = new ArrayList<>();
+		private final List<String> chunks = new ArrayList<>();
+		private long recorded = 0;
+
+		public Recorder(ProcessPump.Sink sink) {
+			this.sink = sink;
+		}
+
+		@Override
+		public boolean isFull() {
+			return sink.isFull();
+		}
+
+		@Override
+		public void output(boolean error, long nanos, char[] chars, int offset, int count) {
+			synchronized (this) {
+				recorded += count;
+				if (recorded <= MAX_RECORDED_CHARS) {
+					errors.add(error);
+					chunks.add(new String(chars, offset, count));
+				} else
+					chunks.clear();
+			}
+			sink.output(error, nanos, chars, offset, count);
+		}
+
+		@Override
+		public void closed() {
+			sink.closed();
+		}
+
+		private synchronized boolean isComplete() {
+			return recorded <= MAX_RECORDED_CHARS;
+		}
+	}
+
+	public TaskCache(Path projectDir, Supplier<IgnoreRules> ignoreRules, long maxBytes) {
+		this.root = projectDir.toAbsolutePath().normalize();
+		this.ignoreRules = ignoreRules;
+		Path dir = root.resolve(".mango").resolve("task-cache");
+		this.objects = dir.resolve("objects");
+		this.entries = dir.resolve("entries");
+		this.maxBytes = maxBytes;
+		this.executor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Mango task cache");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public void setMaxBytes(long maxBytes) {
+		executor.execute(() -> this.maxBytes = maxBytes);
+	}
+
+	/**
+	 * Hashes the inputs of a run into its key. Inputs are glob patterns
+	 * relative to the project, or absolute paths within it. Globs skip what the
+	 * project ignores, and files of the project's .mango directory are never
+	 * inputs.
+	 */
+	public CompletableFuture<String> key(String command, List<String> inputs, List<String> outputs) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				MessageDigest digest = digest();
+				update(digest, command);
+				for (String output : outputs)
+					update(digest, "output " + output);
+				for (Map.Entry<String, Path> input : match(inputs, ignoreRules.get()).entrySet()) {
+					update(digest, input.getKey());
+					update(digest, hashOf(input.getValue()));
+				}
+				return hex(digest.digest());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Looks up the run of a key, restoring its output files if found. Completes
+	 * with null if the run is not cached.
+	 */
+	public CompletableFuture<Hit> lookup(String key) {
+		return CompletableFuture.supplyAsync(() -> {
+			Path entry = entries.resolve(key);
+			if (!Files.isRegularFile(entry))
+				return null;
+			try (DataInputStream in = new DataInputStream(Files.newInputStream(entry))) {
+				if (in.readInt() != MAGIC)
+					return null;
+				int exitCode = in.readInt();
+				String output = in.readUTF();
+				int files = in.readInt();
+				Map<Path, String> restored = new HashMap<>();
+				for (int i = 0; i < files; i++)
+					restored.put(resolve(in.readUTF()), in.readUTF());
+				if (!Files.isRegularFile(objects.resolve(output)))
+					return null;
+				for (Map.Entry<Path, String> file : restored.entrySet())
+					restore(file.getKey(), file.getValue());
+				Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+				return new Hit(exitCode, output);
+			} catch (IOException e) {
+				// a broken entry is a miss, and is replaced by the next run
+				return null;
+			}
+		}, executor);
+	}
+
+	/**
+	 * Stores the run of a key with the output it recorded and the output files
+	 * it left, then evicts the least recently used runs past the size limit.
+	 */
+	public void store(String key, Recorder recorder, int exitCode, List<String> outputs) {
+		if (!recorder.isComplete())
+			return;
+		executor.execute(() -> {
+			try {
+				Files.createDirectories(objects);
+				Files.createDirectories(entries);
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (DataOutputStream out = new DataOutputStream(bytes)) {
+					synchronized (recorder) {
+						out.writeInt(recorder.chunks.size());
+						for (int i = 0; i < recorder.chunks.size(); i++) {
+							byte[] chunk = recorder.chunks.get(i).getBytes(StandardCharsets.UTF_8);
+							out.writeBoolean(recorder.errors.get(i));
+							out.writeInt(chunk.length);
+							out.write(chunk);
+						}
+					}
+				}
+				String output = put(bytes.toByteArray());
+				Map<String, Path> files = match(outputs, null);
+				ByteArrayOutputStream entry = new ByteArrayOutputStream();
+				try (DataOutputStream out = new DataOutputStream(entry)) {
+					out.writeInt(MAGIC);
+					out.writeInt(exitCode);
+					out.writeUTF(output);
+					out.writeInt(files.size());
+					for (Map.Entry<String, Path> file : files.entrySet()) {
+						out.writeUTF(file.getKey());
+						out.writeUTF(put(file.getValue()));
+					}
+				}
+				write(entries.resolve(key), entry.toByteArray());
+				evict();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	public void close() {
+		executor.shutdown();
+	}
+
+	/**
+	 * The files matching the patterns by their path relative to the project, in
+	 * a stable order. Skips what the rules ignore, if any; outputs are matched
+	 * without them since build output is usually ignored.
+	 */
+	private Map<String, Path> match(List<String> patterns, IgnoreRules ignoreRules) throws IOException {
+		Map<String, Path> matched = new TreeMap<>();
+		String prefix = root.toString().replace("\\", "/") + "/";
+		Path mango = root.resolve(".mango");
+		for (String pattern : patterns) {
+			pattern = pattern.replace("\\", "/");
+			if (pattern.startsWith(prefix))
+				pattern = pattern.substring(prefix.length());
+			String fixed = pattern.replaceAll("[*?\\[{].*", "");
+			if (fixed.equals(pattern)) {
+				// a plain path names its file, ignored or not
+				Path file = root.resolve(pattern).normalize();
+				if (file.startsWith(root) && !file.startsWith(mango) && Files.isRegularFile(file))
+					matched.put(root.relativize(file).toString().replace("\\", "/"), file);
+				continue;
+			}
+			// walks only below the part of the pattern without wildcards
+			Path base = root.resolve(fixed.contains("/") ? fixed.substring(0, fixed.lastIndexOf('/')) : "").normalize();
+			if (!base.startsWith(root) || !Files.isDirectory(base))
+				continue;
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+			Deque<IgnoreRules.Filter> filters = new ArrayDeque<>();
+			Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+					if (dir.startsWith(mango) || !dir.equals(base) && ignoreRules != null
+							&& filters.peek().isIgnored(dir.getFileName().toString(), true))
+						return FileVisitResult.SKIP_SUBTREE;
+					if (ignoreRules != null)
+						filters.push(ignoreRules.forDirectory(dir));
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+					if (!attributes.isRegularFile()
+							|| ignoreRules != null && filters.peek().isIgnored(file.getFileName().toString(), false))
+						return FileVisitResult.CONTINUE;
+					Path relative = root.relativize(file);
+					if (matcher.matches(relative))
+						matched.put(relative.toString().replace("\\", "/"), file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+					if (ignoreRules != null)
+						filters.pop();
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		return matched;
+	}
+
+	private Path resolve(String relative) throws IOException {
+		Path path = root.resolve(relative).normalize();
+		if (!path.startsWith(root))
+			throw new IOException("Cached output outside the project: " + relative);
+		return path;
+	}
+
+	private String hashOf(Path file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long modified = attributes.lastModifiedTime().toMillis();
+		FileHash known = hashes.get(file);
+		if (known != null && known.size == attributes.size() && known.modified == modified)
+			return known.hash;
+		String hash;
+		try (InputStream in = Files.newInputStream(file)) {
+			hash = hash(in);
+		}
+		hashes.put(file, new FileHash(attributes.size(), modified, hash));
+		return hash;
+	}
+
+	// stores the file's content unless stored already, returning its hash
+	private String put(Path file) throws IOException {
+		String hash = hashOf(file);
+		Path object = objects.resolve(hash);
+		if (!Files.exists(object)) {
+			Path temporary = objects.resolve(hash + ".tmp");
+			Files.copy(file, temporary, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(temporary, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		return hash;
+	}
+
+	private String put(byte[] content) throws IOException {
+		String hash = hash(new ByteArrayInputStream(content));
+		Path object = objects.resolve(hash);
+		if (!Files.exists(object))
+			write(object, content);
+		return hash;
+	}
+
+	private static void write(Path path, byte[] content) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(temporary, content);
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// puts back an output file that is missing or differs from the one the run left
+	private void restore(Path file, String hash) throws IOException {
+		if (Files.isRegularFile(file) && hashOf(file).equals(hash))
+			return;
+		Files.createDirectories(file.getParent());
+		Path temporary = file.resolveSibling(file.getFileName() + ".mango.tmp");
+		Files.copy(objects.resolve(hash), temporary, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// drops the least recently used entries until the objects they hold fit, then the objects no entry holds
+	private void evict() throws IOException {
+		List<Path> stored = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(entries)) {
+			for (Path entry : stream)
+				if (!entry.getFileName().toString().endsWith(".tmp"))
+					stored.add(entry);
+		}
+		Map<Path, Long> used = new HashMap<>();
+		for (Path entry : stored)
+			used.put(entry, Files.getLastModifiedTime(entry).toMillis());
+		stored.sort(Comparator.comparing(used::get));
+		Map<Path, Set<String>> held = new HashMap<>();
+		Map<String, Integer> holders = new HashMap<>();
+		Map<String, Long> sizes = new HashMap<>();
+		long total = 0;
+		for (Path entry : stored) {
+			Set<String> hashes = objectsOf(entry);
+			held.put(entry, hashes);
+			for (String hash : hashes)
+				if (holders.merge(hash, 1, Integer::sum) == 1) {
+					Path object = objects.resolve(hash);
+					long size = Files.exists(object) ? Files.size(object) : 0;
+					sizes.put(hash, size);
+					total += size;
+				}
+		}
+		// the most recent entry stays even if it alone is past the limit
+		for (int i = 0; i < stored.size() - 1 && total > maxBytes; i++) {
+			Files.deleteIfExists(stored.get(i));
+			for (String hash : held.get(stored.get(i)))
+				if (holders.merge(hash, -1, Integer::sum) == 0)
+					total -= sizes.get(hash);
+		}
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(objects)) {
+			for (Path object : stream)
+				if (holders.getOrDefault(object.getFileName().toString(), 0) == 0)
+					Files.deleteIfExists(object);
+		}
+	}
+
+	private static Set<String> objectsOf(Path entry) {
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(entry))) {
+			if (in.readInt() != MAGIC)
+				return Collections.emptySet();
+			in.readInt();
+			Set<String> hashes = new HashSet<>();
+			hashes.add(in.readUTF());
+			int files = in.readInt();
+			for (int i = 0; i < files; i++) {
+				in.readUTF();
+				hashes.add(in.readUTF());
+			}
+			return hashes;
+		} catch (IOException e) {
+			return Collections.emptySet();
+		}
+	}
+
+	private static void update(MessageDigest digest, String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		digest.update((byte) (bytes.length >>> 24));
+		digest.update((byte) (bytes.length >>> 16));
+		digest.update((byte) (bytes.length >>> 8));
+		digest.update((byte) bytes.length);
+		digest.update(bytes);
+	}
+
+	private static String hash(InputStream in) throws IOException {
+		MessageDigest digest = digest();
+		byte[] buffer = new byte[1 << 16];
+		for (int read; (read = in.read(buffer)) > 0;)
+			digest.update(buffer, 0, read);
+		return hex(digest.digest());
+	}
+
+	private static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+			hex.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Runs task commands as processes, with limits on how many run at once in
+ * total and per task; runs beyond the limits wait in order of submission.
+ * Each run is tracked by a {@link Run} with its state, exit code and timing.
+ * Stopping a run stops its whole process tree, politely at first and forcibly
+ * for whatever is still alive after a timeout, so that compilers, test forks
+ * and shell grandchildren do not outlive it.
+ */
+public class TaskExecutor {
+	private static final long STOP_TIMEOUT = 3000;
+	private final List<Run> queued = new ArrayList<>();
+	private final List<Run> running = new ArrayList<>();
+	private int maxRuns = Runtime.getRuntime().availableProcessors();
+
+	public enum State {
+		QUEUED, RUNNING, EXITED, STOPPED, FAILED
+	}
+
+	public class Run {
+		private final String task;
+		private final int maxTaskRuns;
+		private final ProcessBuilder builder;
+		private final Consumer<Run> onStart;
+		private final Consumer<Run> onEnd;
+		private final long queuedAt = System.currentTimeMillis();
+		private volatile State state = State.QUEUED;
+		private volatile boolean stopRequested = false;
+		private volatile Process process = null;
+		private volatile IOException failure = null;
+		private volatile long startedAt = 0;
+		private volatile long endedAt = 0;
+		private volatile int exitCode = -1;
+
+		private Run(String task, int maxTaskRuns, ProcessBuilder builder, Consumer<Run> onStart, Consumer<Run> onEnd) {
+			this.task = task;
+			this.maxTaskRuns = maxTaskRuns;
+			this.builder = builder;
+			this.onStart = onStart;
+			this.onEnd = onEnd;
+		}
+
+		public String getTask() {
+			return task;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		// whether the run is queued or running
+		public boolean isActive() {
+			return state == State.QUEUED || state == State.RUNNING;
+		}
+
+		public Process getProcess() {
+			return process;
+		}
+
+		// the exit code once exited or stopped, and -1 before
+		public int getExitCode() {
+			return exitCode;
+		}
+
+		// why the process could not start, if it failed
+		public IOException getFailure() {
+			return failure;
+		}
+
+		public long getQueuedAt() {
+			return queuedAt;
+		}
+
+		public long getStartedAt() {
+			return startedAt;
+		}
+
+		public long getEndedAt() {
+			return endedAt;
+		}
+
+		// how long the process ran, or has run so far
+		public long getRunMillis() {
+			if (startedAt == 0)
+				return 0;
+			return (endedAt == 0 ? System.currentTimeMillis() : endedAt) - startedAt;
+		}
+
+		// whether the run was asked to stop, which it may not have yet
+		public boolean isStopRequested() {
+			return stopRequested || state == State.STOPPED;
+		}
+
+		public void stop() {
+			TaskExecutor.this.stop(this);
+		}
+	}
+
+	public synchronized void setMaxRuns(int maxRuns) {
+		this.maxRuns = Math.max(1, maxRuns);
+	}
+
+	/**
+	 * Queues a run of the task, which starts as soon as the limits allow; a
+	 * non-positive maxTaskRuns leaves the task to the overall limit. onStart runs
+	 * once the process has started and onEnd once it has ended or failed to
+	 * start, or the run was stopped while queued; both may run on any thread.
+	 */
+	public Run submit(String task, int maxTaskRuns, ProcessBuilder builder, Consumer<Run> onStart,
+			Consumer<Run> onEnd) {
+		Run run = new Run(task, maxTaskRuns, builder, onStart, onEnd);
+		List<Run> changed;
+		synchronized (this) {
+			queued.add(run);
+			changed = dispatch();
+		}
+		announce(changed);
+		return run;
+	}
+
+	// starts the queued runs that fit within the limits, returning them and those that failed to start
+	private List<Run> dispatch() {
+		List<Run> changed = new ArrayList<>();
+		for (int i = 0; i < queued.size() && running.size() < maxRuns;) {
+			Run run = queued.get(i);
+			if (run.maxTaskRuns > 0 && runningOf(run.task) >= run.maxTaskRuns) {
+				i++;
+				continue;
+			}
+			queued.remove(i);
+			changed.add(run);
+			try {
+				run.process = run.builder.start();
+				run.startedAt = System.currentTimeMillis();
+				run.state = State.RUNNING;
+				running.add(run);
+				run.process.onExit().thenRun(() -> ended(run));
+			} catch (IOException e) {
+				run.failure = e;
+				run.endedAt = System.currentTimeMillis();
+				run.state = State.FAILED;
+			}
+		}
+		return changed;
+	}
+
+	private int runningOf(String task) {
+		int count = 0;
+		for (Run run : running)
+			if (run.task.equals(task))
+				count++;
+		return count;
+	}
+
+	private void announce(List<Run> changed) {
+		for (Run run : changed) {
+			if (run.state == State.FAILED)
+				run.onEnd.accept(run);
+			else
+				run.onStart.accept(run);
+		}
+	}
+
+	private void ended(Run run) {
+		List<Run> changed;
+		synchronized (this) {
+			running.remove(run);
+			run.exitCode = run.process.exitValue();
+			run.endedAt = System.currentTimeMillis();
+			run.state = run.stopRequested ? State.STOPPED : State.EXITED;
+			changed = dispatch();
+		}
+		run.onEnd.accept(run);
+		announce(changed);
+	}
+
+	private void stop(Run run) {
+		boolean wasQueued;
+		synchronized (this) {
+			wasQueued = run.state == State.QUEUED;
+			if (wasQueued) {
+				queued.remove(run);
+				run.endedAt = System.currentTimeMillis();
+				run.state = State.STOPPED;
+			} else if (run.state == State.RUNNING)
+				run.stopRequested = true;
+			else
+				return;
+		}
+		if (wasQueued)
+			run.onEnd.accept(run);
+		else
+			stopTree(run.process.toHandle());
+	}
+
+	private static void stopTree(ProcessHandle root) {
+		// taken before anything stops, as orphaned children are no longer descendants
+		List<ProcessHandle> tree = new ArrayList<>();
+		root.descendants().forEach(tree::add);
+		tree.add(root);
+		for (ProcessHandle handle : tree)
+			handle.destroy();
+		CompletableFuture.delayedExecutor(STOP_TIMEOUT, TimeUnit.MILLISECONDS).execute(() -> {
+			for (ProcessHandle handle : tree)
+				if (handle.isAlive()) {
+					handle.descendants().forEach(ProcessHandle::destroyForcibly);
+					handle.destroyForcibly();
+				}
+		});
+	}
+}
@@ -0,0 +1,126 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The tasks a task depends on, directly or not, in an order where each comes
+ * after its dependencies, and which of them may start as earlier ones finish.
+ * Tasks whose dependencies have all succeeded are ready at once, so that
+ * independent branches run side by side; a task that fails cancels every
+ * task that depends on it. Not thread safe; meant for the event dispatch
+ * thread.
+ */
+public class TaskGraph {
+	public enum State {
+		WAITING, STARTED, SUCCEEDED, FAILED, CANCELLED
+	}
+
+	// dependencies by task, in the order tasks are to run
+	private final Map<String, List<String>> dependencies = new LinkedHashMap<>();
+	private final Map<String, State> states = new HashMap<>();
+
+	/**
+	 * Resolves the dependencies of the target. Throws an
+	 * IllegalArgumentException naming the tasks if they depend on each other in
+	 * a cycle or on a task that is not declared.
+	 */
+	public TaskGraph(Map<String, Tasks.Task> tasks, String target) {
+		visit(tasks, target, new ArrayList<>());
+		for (String task : dependencies.keySet())
+			states.put(task, State.WAITING);
+	}
+
+	private void visit(Map<String, Tasks.Task> tasks, String task, List<String> path) {
+		if (dependencies.containsKey(task))
+			return;
+		int index = path.indexOf(task);
+		if (index >= 0) {
+			List<String> cycle = new ArrayList<>(path.subList(index, path.size()));
+			cycle.add(task);
+			throw new IllegalArgumentException("Tasks depend on each other: " + String.join(" -> ", cycle));
+		}
+		Tasks.Task declared = tasks.get(task);
+		if (declared == null)
+			throw new IllegalArgumentException(
+					"Task " + path.get(path.size() - 1) + " depends on undeclared task " + task);
+		List<String> depends = declared.getDependsOn() == null ? Collections.emptyList() : declared.getDependsOn();
+		path.add(task);
+		for (String dependency : depends)
+			visit(tasks, dependency, path);
+		path.remove(path.size() - 1);
+		dependencies.put(task, new ArrayList<>(depends));
+	}
+
+	// the tasks in an order where each comes after its dependencies
+	public List<String> getOrder() {
+		return new ArrayList<>(dependencies.keySet());
+	}
+
+	public List<String> getDependencies(String task) {
+		return dependencies.get(task);
+	}
+
+	public State getState(String task) {
+		return states.get(task);
+	}
+
+	// marks the waiting tasks whose dependencies have all succeeded as started, and returns them
+	public List<String> start() {
+		List<String> ready = new ArrayList<>();
+		for (Map.Entry<String, List<String>> task : dependencies.entrySet()) {
+			if (states.get(task.getKey()) != State.WAITING)
+				continue;
+			boolean succeeded = true;
+			for (String dependency : task.getValue())
+				succeeded &= states.get(dependency) == State.SUCCEEDED;
+			if (succeeded) {
+				states.put(task.getKey(), State.STARTED);
+				ready.add(task.getKey());
+			}
+		}
+		return ready;
+	}
+
+	/**
+	 * Records how a started task ended. After a failure, returns the waiting
+	 * tasks that depend on it, which are cancelled.
+	 */
+	public List<String> finish(String task, boolean succeeded) {
+		states.put(task, succeeded ? State.SUCCEEDED : State.FAILED);
+		List<String> cancelled = new ArrayList<>();
+		if (!succeeded)
+			cancelDependents(cancelled);
+		return cancelled;
+	}
+
+	/**
+	 * Cancels a waiting task and the waiting tasks that depend on it, returning
+	 * them all; a task that is no longer waiting is left alone.
+	 */
+	public List<String> cancel(String task) {
+		List<String> cancelled = new ArrayList<>();
+		if (states.get(task) != State.WAITING)
+			return cancelled;
+		states.put(task, State.CANCELLED);
+		cancelled.add(task);
+		cancelDependents(cancelled);
+		return cancelled;
+	}
+
+	private void cancelDependents(List<String> cancelled) {
+		// dependents come later in the order, so one pass reaches them all
+		for (Map.Entry<String, List<String>> dependent : dependencies.entrySet()) {
+			if (states.get(dependent.getKey()) != State.WAITING)
+				continue;
+			for (String dependency : dependent.getValue())
+				if (states.get(dependency) == State.FAILED || states.get(dependency) == State.CANCELLED) {
+					states.put(dependent.getKey(), State.CANCELLED);
+					cancelled.add(dependent.getKey());
+					break;
+				}
+		}
+	}
+}
@@ -13,6 +13,13 @@ import org.yaml.snakeyaml.constructor.Constructor;
 
 public class Tasks {
 	private Map<String, Task> tasks;
+	private int largeFileMB = 32;
+	private ArrayList<String> ignore = new ArrayList<String>();
+	private boolean indexContents = false;
+	private int consoleLines = 10000;
+	// how many task runs go at once, or 0 for as many as there are processors
+	private int maxParallelRuns = 0;
+	private int taskCacheMB = 256;
 
 	public Tasks overwrite(Tasks other) {
 		if (other != null)
@@ -26,6 +33,16 @@ public class Tasks {
 		private ArrayList<String> extensions = new ArrayList<String>();
 		private String highlighter = "txt";
 		private String command = "";
+		// of the output, or empty for the platform default
+		private String charset = "";
+		// how many runs of the task go at once, or 0 for no limit of its own
+		private int maxParallelRuns = 0;
+		// globs relative to the project of the files a run depends on, which make its result cached
+		// when declared, and of the files it leaves, which are cached with it
+		private ArrayList<String> inputs = new ArrayList<String>();
+		private ArrayList<String> outputs = new ArrayList<String>();
+		// names of the tasks that must succeed before this one runs
+		private ArrayList<String> dependsOn = new ArrayList<String>();
 
 		public ArrayList<String> getExtensions() {
 			return extensions;
@@ -50,6 +67,46 @@ public class Tasks {
 		public void setCommand(String command) {
 			this.command = command;
 		}
+
+		public String getCharset() {
+			return charset;
+		}
+
+		public void setCharset(String charset) {
+			this.charset = charset;
+		}
+
+		public int getMaxParallelRuns() {
+			return maxParallelRuns;
+		}
+
+		public void setMaxParallelRuns(int maxParallelRuns) {
+			this.maxParallelRuns = maxParallelRuns;
+		}
+
+		public ArrayList<String> getInputs() {
+			return inputs;
+		}
+
+		public void setInputs(ArrayList<String> inputs) {
+			this.inputs = inputs != null ? inputs : new ArrayList<String>();
+		}
+
+		public ArrayList<String> getOutputs() {
+			return outputs;
+		}
+
+		public void setOutputs(ArrayList<String> outputs) {
+			this.outputs = outputs != null ? outputs : new ArrayList<String>();
+		}
+
+		public ArrayList<String> getDependsOn() {
+			return dependsOn;
+		}
+
+		public void setDependsOn(ArrayList<String> dependsOn) {
+			this.dependsOn = dependsOn;
+		}
 	}
 
 	public Map<String, Task> getTasks() {
@@ -62,6 +119,55 @@ public class Tasks {
 		this.tasks = tasks;
 	}
 
+	public int getLargeFileMB() {
+		return largeFileMB;
+	}
+
+	public void setLargeFileMB(int largeFileMB) {
+		this.largeFileMB = largeFileMB;
+	}
+
+	public ArrayList<String> getIgnore() {
+		return ignore;
+	}
+
+	public void setIgnore(ArrayList<String> ignore) {
+		// a bare ignore: key in the file means no patterns
+		this.ignore = ignore != null ? ignore : new ArrayList<String>();
+	}
+
+	public boolean isIndexContents() {
+		return indexContents;
+	}
+
+	public void setIndexContents(boolean indexContents) {
+		this.indexContents = indexContents;
+	}
+
+	public int getConsoleLines() {
+		return consoleLines;
+	}
+
+	public void setConsoleLines(int consoleLines) {
+		this.consoleLines = consoleLines;
+	}
+
+	public int getMaxParallelRuns() {
+		return maxParallelRuns;
+	}
+
+	public void setMaxParallelRuns(int maxParallelRuns) {
+		this.maxParallelRuns = maxParallelRuns;
+	}
+
+	public int getTaskCacheMB() {
+		return taskCacheMB;
+	}
+
+	public void setTaskCacheMB(int taskCacheMB) {
+		this.taskCacheMB = taskCacheMB;
+	}
+
 	public static Tasks readYamlConfig(File yamlFile, Tasks previous) throws IOException {
 		Yaml yaml = new Yaml(new Constructor(Tasks.class));
 		Tasks tasks = null;
@@ -233,7 +233,9 @@ public class TasksEditor {
             String command = commandField.getText();
 
             if (!name.isEmpty() && !name.equals("Task name")) {
-                Tasks.Task newTask = new Tasks.Task();
+                // keeps what the editor does not show, such as inputs and outputs
+                Tasks.Task newTask = tasks != null && tasks.getTasks().containsKey(name) ? tasks.getTasks().get(name)
+                        : new Tasks.Task();
                 newTask.setExtensions(new ArrayList<>(List.of(extensions.split(",\\s*"))));
                 newTask.setHighlighter("text/" + highlighter);
                 newTask.setCommand(command);
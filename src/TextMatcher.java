@@ -0,0 +1,95 @@
+import java.util.Arrays;
+
+/**
+ * Boyer-Moore-Horspool matcher for a literal pattern, optionally folding
+ * case char by char so that offsets in the text stay exact. Works on any
+ * {@link CharSequence}, e.g., a {@link DocumentText}, and allocates nothing
+ * while searching. Shift tables are indexed by the low byte of the folded
+ * char and keep the smallest shift of the chars sharing a slot, which is
+ * always safe.
+ */
+public class TextMatcher {
+	private final char[] pattern;
+	private final boolean caseSensitive;
+	private final int[] forwardShift = new int[256];
+	private final int[] backwardShift = new int[256];
+
+	public TextMatcher(String pattern, boolean caseSensitive) {
+		this.caseSensitive = caseSensitive;
+		this.pattern = new char[pattern.length()];
+		int m = this.pattern.length;
+		for (int i = 0; i < m; i++)
+			this.pattern[i] = fold(pattern.charAt(i));
+		Arrays.fill(forwardShift, Math.max(1, m));
+		Arrays.fill(backwardShift, Math.max(1, m));
+		for (int i = 0; i < m - 1; i++)
+			forwardShift[this.pattern[i] & 0xFF] = m - 1 - i;
+		for (int i = m - 1; i > 0; i--)
+			backwardShift[this.pattern[i] & 0xFF] = i;
+	}
+
+	public int length() {
+		return pattern.length;
+	}
+
+	private char fold(char c) {
+		if (caseSensitive)
+			return c;
+		if (c < 128)
+			return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	// start of the first match at or after from, or -1
+	public int next(CharSequence text, int from) {
+		return next(text, from, text.length());
+	}
+
+	// start of the first match that lies within [from, to), or -1
+	public int next(CharSequence text, int from, int to) {
+		int m = pattern.length;
+		from = Math.max(0, from);
+		if (m == 0)
+			return from <= to ? from : -1;
+		char last = pattern[m - 1];
+		for (int s = from; s + m <= to;) {
+			char c = fold(text.charAt(s + m - 1));
+			if (c == last && matchesAt(text, s))
+				return s;
+			s += forwardShift[c & 0xFF];
+		}
+		return -1;
+	}
+
+	// start of the last match that starts at or before from, or -1
+	public int previous(CharSequence text, int from) {
+		int m = pattern.length;
+		from = Math.min(from, text.length() - m);
+		if (m == 0)
+			return from >= 0 ? from : -1;
+		char first = pattern[0];
+		for (int s = from; s >= 0;) {
+			char c = fold(text.charAt(s));
+			if (c == first && matchesAt(text, s))
+				return s;
+			s -= backwardShift[c & 0xFF];
+		}
+		return -1;
+	}
+
+	// counts non-overlapping matches within [from, to), stopping once limit is exceeded
+	public int count(CharSequence text, int from, int to, int limit) {
+		int count = 0;
+		int m = Math.max(1, pattern.length);
+		for (int s = next(text, from, to); s >= 0 && count <= limit; s = next(text, s + m, to))
+			count++;
+		return count;
+	}
+
+	private boolean matchesAt(CharSequence text, int s) {
+		for (int i = pattern.length - 1; i >= 0; i--)
+			if (fold(text.charAt(s + i)) != pattern[i])
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,761 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Optional index of the trigrams in the project's files, so that a search for
+ * literal text only reads the files that contain all of the text's trigrams.
+ * The index is a memory-mapped file under .mango that lists the files and,
+ * per trigram, the delta-encoded ids of the files that contain it. Files that
+ * change later are indexed into an overlay in memory, which is merged into a
+ * new file once it holds as many trigrams as the mapped one. Trigrams are
+ * taken from UTF-8 bytes with ASCII letters folded to lowercase; files in
+ * other encodings or over 16 MB are not indexed and always searched. The
+ * files to index come from the project's {@link FileIndex}, and all
+ * maintenance runs on one background thread.
+ */
+public class TrigramIndex {
+	private static final int MAGIC = 0x4D545249;
+	private static final int VERSION = 1;
+	private static final String PREFIX = "trigrams-";
+	private static final String SUFFIX = ".bin";
+	private static final long POLL_MS = 1000;
+	private static final long PREVIOUS_WAIT_MS = 60000;
+	private static final int MAX_FILE_BYTES = 16 << 20;
+	private static final int BINARY_CHECK = 8000;
+	private static final int DETECT_BYTES = 1 << 16;
+	// the overlay is merged once it holds as many trigrams as the mapped file, within these bounds
+	private static final long MERGE_MIN = 1 << 22;
+	private static final long MERGE_MAX = 1 << 23;
+	private static final byte UNINDEXED = 1;
+	// contains chars such as the Kelvin sign that case-insensitive searches match with ASCII letters
+	private static final byte FOLDS = 2;
+
+	/** A file indexed after the mapped file was written. */
+	private static class Entry {
+		final long size;
+		final long modified;
+		final byte flags;
+		// sorted, and empty for binary files
+		final int[] trigrams;
+
+		Entry(long size, long modified, byte flags, int[] trigrams) {
+			this.size = size;
+			this.modified = modified;
+			this.flags = flags;
+			this.trigrams = trigrams;
+		}
+	}
+
+	private static final Entry REMOVED = new Entry(-1, -1, (byte) 0, new int[0]);
+
+	/** A mapped index file. */
+	private static class Segment {
+		final Path file;
+		final ByteBuffer buffer;
+		final String[] paths;
+		final long[] sizes;
+		final long[] modified;
+		final byte[] flags;
+		final Map<String, Integer> ids = new HashMap<>();
+		final long postingCount;
+		final int postingsStart;
+		final int tableStart;
+		final int trigramCount;
+
+		Segment(Path file, ByteBuffer buffer, String[] paths, long[] sizes, long[] modified, byte[] flags,
+				long postingCount, int postingsStart, int tableStart, int trigramCount) {
+			this.file = file;
+			this.buffer = buffer;
+			this.paths = paths;
+			this.sizes = sizes;
+			this.modified = modified;
+			this.flags = flags;
+			this.postingCount = postingCount;
+			this.postingsStart = postingsStart;
+			this.tableStart = tableStart;
+			this.trigramCount = trigramCount;
+			for (int i = 0; i < paths.length; i++)
+				ids.put(paths[i], i);
+		}
+
+		int trigramAt(int index) {
+			return buffer.getInt(tableStart + 12 * index);
+		}
+
+		int countAt(int index) {
+			return buffer.getInt(tableStart + 12 * index + 8);
+		}
+
+		// index of the trigram in the table, or -1
+		int find(int trigram) {
+			int low = 0;
+			int high = trigramCount - 1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				int found = trigramAt(middle);
+				if (found < trigram)
+					low = middle + 1;
+				else if (found > trigram)
+					high = middle - 1;
+				else
+					return middle;
+			}
+			return -1;
+		}
+
+		int[] postingsAt(int index) {
+			int position = postingsStart + buffer.getInt(tableStart + 12 * index + 4);
+			int[] ids = new int[countAt(index)];
+			int id = 0;
+			for (int k = 0; k < ids.length; k++) {
+				int delta = 0;
+				for (int shift = 0;; shift += 7) {
+					byte b = buffer.get(position++);
+					delta |= (b & 0x7F) << shift;
+					if (b >= 0)
+						break;
+				}
+				id += delta;
+				ids[k] = id;
+			}
+			return ids;
+		}
+
+		// ids of the files that contain all the trigrams, which must be in the table
+		int[] intersect(int[] tables) {
+			int[] order = tables.clone();
+			sortBy(order, this::countAt);
+			int[] ids = postingsAt(order[0]);
+			for (int i = 1; i < order.length && ids.length > 0; i++)
+				ids = intersection(ids, postingsAt(order[i]));
+			return ids;
+		}
+	}
+
+	private static class State {
+		final Segment base;
+		final Map<String, Entry> overlay;
+
+		State(Segment base, Map<String, Entry> overlay) {
+			this.base = base;
+			this.overlay = overlay;
+		}
+	}
+
+	private final Path root;
+	private final Path dir;
+	private final FileIndex files;
+	private final ScheduledExecutorService executor;
+	// background thread only
+	private final Map<String, Entry> overlay = new HashMap<>();
+	private long overlayTrigrams = 0;
+	private Set<String> known = Collections.emptySet();
+	private int syncedVersion = -1;
+	private int generation = 0;
+	private final long[] seen = new long[1 << 18];
+	private int[] found = new int[1 << 12];
+	private ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+	private volatile State state = new State(null, Collections.emptyMap());
+	private volatile boolean ready = false;
+
+	private TrigramIndex(File projectDir, FileIndex files) {
+		this.root = projectDir.toPath().toAbsolutePath().normalize();
+		this.dir = root.resolve(".mango");
+		this.files = files;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Mango content index");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+	}
+
+	/**
+	 * Starts loading the saved index of the project in the background, then
+	 * keeps it in line with the files of the file index. A closed index it
+	 * replaces, if any, first finishes its last merge, which would otherwise
+	 * write and delete index files under this one.
+	 */
+	public static TrigramIndex open(File projectDir, FileIndex files, TrigramIndex previous) {
+		TrigramIndex index = new TrigramIndex(projectDir, files);
+		index.executor.execute(() -> {
+			if (previous != null)
+				previous.awaitClose(PREVIOUS_WAIT_MS);
+			index.load();
+		});
+		index.executor.scheduleWithFixedDelay(index::poll, 0, POLL_MS, TimeUnit.MILLISECONDS);
+		return index;
+	}
+
+	// whether every file of the project has been indexed once
+	public boolean isReady() {
+		return ready;
+	}
+
+	// indexes the file again, e.g., after it was saved or changed on disk
+	public void update(File file) {
+		String relative = relative(file.toPath());
+		if (relative != null)
+			update(Collections.singletonList(relative));
+	}
+
+	private void update(List<String> paths) {
+		executor.execute(() -> {
+			for (String path : paths)
+				if (known.contains(path))
+					reindex(path);
+			publish();
+		});
+	}
+
+	// stops the index after merging its overlay in the background, without waiting for the merge
+	public void close() {
+		executor.execute(() -> {
+			if (!overlay.isEmpty())
+				try {
+					merge();
+				} catch (IOException e) {
+				}
+			// a closed index may stay referenced until the next one opens
+			overlay.clear();
+			state = new State(null, Collections.emptyMap());
+		});
+		executor.shutdown();
+	}
+
+	// waits up to the time for a closed index to finish merging, and returns whether it did
+	public boolean awaitClose(long millis) {
+		try {
+			return executor.awaitTermination(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the project-relative paths of the files that may contain all of
+	 * the texts, or null while the index is not ready or if the texts are too
+	 * short to rule out any file. Files that changed where no watcher saw them,
+	 * e.g., in a collapsed directory during a checkout, are told by their size
+	 * and modification time, so a file the index rules out is still returned,
+	 * and indexed again, if either differs. That reads the attributes of the
+	 * ruled out files, so call it off the event dispatch thread.
+	 */
+	public List<String> candidates(List<String> texts, boolean caseSensitive) {
+		if (!ready)
+			return null;
+		int[] query = trigramsOf(texts, caseSensitive);
+		if (query.length == 0)
+			return null;
+		State current = state;
+		List<String> candidates = new ArrayList<>();
+		List<String> stale = new ArrayList<>();
+		Segment base = current.base;
+		if (base != null) {
+			int[] tables = new int[query.length];
+			boolean all = true;
+			for (int i = 0; i < query.length && all; i++)
+				all = (tables[i] = base.find(query[i])) >= 0;
+			int[] ids = all ? base.intersect(tables) : new int[0];
+			boolean[] added = new boolean[base.paths.length];
+			for (int id : ids)
+				added[id] = true;
+			for (int id = 0; id < base.paths.length; id++) {
+				String path = base.paths[id];
+				if (current.overlay.containsKey(path))
+					continue;
+				if (added[id] || alwaysSearched(base.flags[id], caseSensitive))
+					candidates.add(path);
+				else if (changed(path, base.sizes[id], base.modified[id]))
+					stale.add(path);
+			}
+		}
+		for (Map.Entry<String, Entry> entry : current.overlay.entrySet()) {
+			Entry file = entry.getValue();
+			if (file == REMOVED)
+				continue;
+			if (alwaysSearched(file.flags, caseSensitive) || containsAll(file.trigrams, query))
+				candidates.add(entry.getKey());
+			else if (changed(entry.getKey(), file.size, file.modified))
+				stale.add(entry.getKey());
+		}
+		if (!stale.isEmpty()) {
+			candidates.addAll(stale);
+			update(stale);
+		}
+		return candidates;
+	}
+
+	private static boolean alwaysSearched(byte flags, boolean caseSensitive) {
+		return (flags & UNINDEXED) != 0 || !caseSensitive && (flags & FOLDS) != 0;
+	}
+
+	private static int[] trigramsOf(List<String> texts, boolean caseSensitive) {
+		Set<Integer> trigrams = new HashSet<>();
+		for (String text : texts) {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			for (int i = 0; i + 2 < bytes.length; i++) {
+				// other chars may match in another case, which is not folded in the index
+				if (!caseSensitive && (bytes[i] < 0 || bytes[i + 1] < 0 || bytes[i + 2] < 0))
+					continue;
+				trigrams.add(fold(bytes[i]) << 16 | fold(bytes[i + 1]) << 8 | fold(bytes[i + 2]));
+			}
+		}
+		int[] sorted = trigrams.stream().mapToInt(Integer::intValue).toArray();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static int fold(byte b) {
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xFF;
+	}
+
+	private static boolean containsAll(int[] sorted, int[] query) {
+		for (int trigram : query)
+			if (Arrays.binarySearch(sorted, trigram) < 0)
+				return false;
+		return true;
+	}
+
+	private static int[] intersection(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int n = 0;
+		for (int i = 0, j = 0; i < a.length && j < b.length;) {
+			if (a[i] < b[j])
+				i++;
+			else if (a[i] > b[j])
+				j++;
+			else {
+				result[n++] = a[i];
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	private static void sortBy(int[] values, IntUnaryOperator key) {
+		long[] keyed = new long[values.length];
+		for (int i = 0; i < values.length; i++)
+			keyed[i] = (long) key.applyAsInt(values[i]) << 32 | values[i];
+		Arrays.sort(keyed);
+		for (int i = 0; i < values.length; i++)
+			values[i] = (int) keyed[i];
+	}
+
+	private String relative(Path path) {
+		path = path.toAbsolutePath().normalize();
+		if (!path.startsWith(root))
+			return null;
+		return root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	// maps the newest index file and deletes the rest, which are outdated or were left unfinished
+	private void load() {
+		List<Path> stored = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, PREFIX + "*")) {
+			for (Path path : stream)
+				stored.add(path);
+		} catch (IOException e) {
+			return;
+		}
+		Path newest = null;
+		for (Path path : stored)
+			if (generationOf(path) > (newest == null ? -1 : generationOf(newest)))
+				newest = path;
+		Segment base = null;
+		if (newest != null)
+			try {
+				base = read(newest);
+				generation = generationOf(newest);
+			} catch (IOException e) {
+				base = null;
+			}
+		for (Path path : stored)
+			if (base == null || !path.equals(newest))
+				try {
+					Files.deleteIfExists(path);
+				} catch (IOException e) {
+				}
+		state = new State(base, Collections.emptyMap());
+	}
+
+	private static int generationOf(Path path) {
+		String name = path.getFileName().toString();
+		if (!name.endsWith(SUFFIX))
+			return -1;
+		try {
+			return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private Segment read(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE || channel.size() < 24)
+				throw new IOException("Invalid index size");
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		int size = buffer.capacity();
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+			throw new IOException("Unknown index format");
+		byte[] rootBytes = new byte[buffer.getInt(8)];
+		buffer.get(12, rootBytes);
+		if (!root.toString().equals(new String(rootBytes, StandardCharsets.UTF_8)))
+			throw new IOException("Index of another directory");
+		byte[] table = new byte[buffer.getInt(12 + rootBytes.length)];
+		buffer.get(16 + rootBytes.length, table);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(table));
+		int count = in.readInt();
+		long postingCount = in.readLong();
+		String[] paths = new String[count];
+		long[] sizes = new long[count];
+		long[] modified = new long[count];
+		byte[] flags = new byte[count];
+		for (int i = 0; i < count; i++) {
+			paths[i] = in.readUTF();
+			sizes[i] = in.readLong();
+			modified[i] = in.readLong();
+			flags[i] = in.readByte();
+		}
+		int trigramCount = buffer.getInt(size - 8);
+		int tableStart = buffer.getInt(size - 4);
+		if (tableStart < 0 || tableStart + 12L * trigramCount != size - 8)
+			throw new IOException("Corrupt index");
+		return new Segment(path, buffer, paths, sizes, modified, flags, postingCount, 16 + rootBytes.length + table.length,
+				tableStart, trigramCount);
+	}
+
+	private void poll() {
+		if (!files.isReady() || files.getVersion() == syncedVersion)
+			return;
+		try {
+			sync(!ready);
+			ready = true;
+		} catch (RuntimeException e) {
+			// keeps polling, which would stop on an exception
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Indexes the files that were added to the file index and drops the ones
+	 * removed from it. When validating, files indexed earlier are indexed again
+	 * if their size or modification time changed.
+	 */
+	private void sync(boolean validate) {
+		syncedVersion = files.getVersion();
+		List<String> paths = files.paths();
+		Set<String> current = new HashSet<>(paths);
+		for (String path : paths) {
+			Entry entry = overlay.get(path);
+			Segment base = state.base;
+			Integer id = base != null ? base.ids.get(path) : null;
+			if (entry != null && entry != REMOVED) {
+				if (validate && changed(path, entry.size, entry.modified))
+					reindex(path);
+			} else if (entry == null && id != null) {
+				if (validate && changed(path, base.sizes[id], base.modified[id]))
+					reindex(path);
+			} else
+				reindex(path);
+		}
+		List<String> removed = new ArrayList<>();
+		for (String path : overlay.keySet())
+			if (!current.contains(path))
+				removed.add(path);
+		Segment base = state.base;
+		if (base != null)
+			for (String path : base.paths)
+				if (!current.contains(path) && !overlay.containsKey(path))
+					removed.add(path);
+		for (String path : removed)
+			put(path, null);
+		known = current;
+		publish();
+	}
+
+	private boolean changed(String path, long size, long modified) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(root.resolve(path), BasicFileAttributes.class);
+			return attributes.size() != size || attributes.lastModifiedTime().toMillis() != modified;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private void reindex(String path) {
+		put(path, index(path));
+	}
+
+	// records the file in the overlay, where null means it is gone, and merges a large overlay
+	private void put(String path, Entry entry) {
+		Segment base = state.base;
+		if (entry == null)
+			entry = base != null && base.ids.containsKey(path) ? REMOVED : null;
+		Entry previous = entry != null ? overlay.put(path, entry) : overlay.remove(path);
+		if (previous != null)
+			overlayTrigrams -= previous.trigrams.length;
+		if (entry != null)
+			overlayTrigrams += entry.trigrams.length;
+		long limit = Math.min(MERGE_MAX, Math.max(MERGE_MIN, base != null ? base.postingCount : 0));
+		if (overlayTrigrams >= limit)
+			try {
+				merge();
+			} catch (IOException e) {
+			}
+	}
+
+	private void publish() {
+		state = new State(state.base, new HashMap<>(overlay));
+	}
+
+	// the trigrams of the file, or null if it is gone
+	private Entry index(String path) {
+		Path file = root.resolve(path);
+		long size;
+		long modified;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			if (!attributes.isRegularFile())
+				return null;
+			size = attributes.size();
+			modified = attributes.lastModifiedTime().toMillis();
+			if (size > MAX_FILE_BYTES)
+				return new Entry(size, modified, UNINDEXED, new int[0]);
+			if (buffer.capacity() < size)
+				buffer = ByteBuffer.allocate(Integer.highestOneBit((int) size) << 1);
+			buffer.clear();
+			buffer.limit((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) > 0)
+				;
+			buffer.flip();
+		} catch (IOException e) {
+			return null;
+		}
+		ByteBuffer head = buffer.duplicate();
+		head.limit(Math.min(buffer.limit(), DETECT_BYTES));
+		Charset charset = FileLoader.detectCharset(head);
+		if (!charset.equals(StandardCharsets.UTF_8))
+			return new Entry(size, modified, UNINDEXED, new int[0]);
+		byte[] bytes = buffer.array();
+		int start = head.position();
+		int end = buffer.limit();
+		for (int i = 0; i < Math.min(end, BINARY_CHECK); i++)
+			if (bytes[i] == 0)
+				return new Entry(size, modified, (byte) 0, new int[0]);
+		return new Entry(size, modified, folds(bytes, start, end) ? FOLDS : 0, trigrams(bytes, start, end));
+	}
+
+	// distinct trigrams of the bytes, sorted
+	private int[] trigrams(byte[] bytes, int start, int end) {
+		int n = 0;
+		if (end - start >= 3) {
+			int trigram = fold(bytes[start]) << 8 | fold(bytes[start + 1]);
+			for (int i = start + 2; i < end; i++) {
+				trigram = (trigram << 8 | fold(bytes[i])) & 0xFFFFFF;
+				long bit = 1L << trigram;
+				if ((seen[trigram >>> 6] & bit) == 0) {
+					seen[trigram >>> 6] |= bit;
+					if (n == found.length)
+						found = Arrays.copyOf(found, n * 2);
+					found[n++] = trigram;
+				}
+			}
+		}
+		int[] trigrams = Arrays.copyOf(found, n);
+		for (int trigram : trigrams)
+			seen[trigram >>> 6] = 0;
+		Arrays.sort(trigrams);
+		return trigrams;
+	}
+
+	// whether the text has a dotted or dotless i, a long s or the Kelvin sign, which fold to ASCII letters
+	private static boolean folds(byte[] bytes, int start, int end) {
+		for (int i = start; i + 1 < end; i++) {
+			int b = bytes[i] & 0xFF;
+			int next = bytes[i + 1] & 0xFF;
+			if (b == 0xC4 && (next == 0xB0 || next == 0xB1) || b == 0xC5 && next == 0xBF
+					|| b == 0xE2 && next == 0x84 && i + 2 < end && (bytes[i + 2] & 0xFF) == 0xAA)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the mapped file and the overlay into a new index file, maps it and
+	 * deletes the previous one.
+	 */
+	private void merge() throws IOException {
+		Segment base = state.base;
+		int baseCount = base != null ? base.paths.length : 0;
+		List<String> paths = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>();
+		List<Long> modified = new ArrayList<>();
+		ByteArrayOutputStream fileTable = new ByteArrayOutputStream();
+		DataOutputStream fileOut = new DataOutputStream(fileTable);
+		int[] remap = new int[baseCount];
+		byte[] flags = new byte[baseCount + overlay.size()];
+		for (int id = 0; id < baseCount; id++) {
+			remap[id] = -1;
+			if (overlay.containsKey(base.paths[id]))
+				continue;
+			remap[id] = paths.size();
+			flags[paths.size()] = base.flags[id];
+			paths.add(base.paths[id]);
+			sizes.add(base.sizes[id]);
+			modified.add(base.modified[id]);
+		}
+		long[] pairs = new long[(int) overlayTrigrams];
+		int pairCount = 0;
+		for (Map.Entry<String, Entry> entry : overlay.entrySet()) {
+			Entry file = entry.getValue();
+			if (file == REMOVED)
+				continue;
+			int id = paths.size();
+			for (int trigram : file.trigrams)
+				pairs[pairCount++] = (long) trigram << 32 | id;
+			flags[id] = file.flags;
+			paths.add(entry.getKey());
+			sizes.add(file.size);
+			modified.add(file.modified);
+		}
+		Arrays.sort(pairs, 0, pairCount);
+
+		Path next = dir.resolve(PREFIX + (generation + 1) + SUFFIX);
+		Path temporary = dir.resolve(next.getFileName() + ".tmp");
+		Files.createDirectories(dir);
+		long postingCount = 0;
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+			byte[] rootBytes = root.toString().getBytes(StandardCharsets.UTF_8);
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(rootBytes.length);
+			out.write(rootBytes);
+			// the count of postings goes first, so the file table is written after them
+			int[] trigrams = new int[1 << 12];
+			int[] offsets = new int[1 << 12];
+			int[] counts = new int[1 << 12];
+			int trigramCount = 0;
+			Path postingsFile = dir.resolve(next.getFileName() + ".postings.tmp");
+			int[] ids = new int[64];
+			try (DataOutputStream postingsOut = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(postingsFile), 1 << 16))) {
+				int i = 0;
+				int j = 0;
+				int baseTrigrams = base != null ? base.trigramCount : 0;
+				while (i < baseTrigrams || j < pairCount) {
+					int trigram = Math.min(i < baseTrigrams ? base.trigramAt(i) : Integer.MAX_VALUE,
+							j < pairCount ? (int) (pairs[j] >>> 32) : Integer.MAX_VALUE);
+					int n = 0;
+					if (i < baseTrigrams && base.trigramAt(i) == trigram) {
+						for (int id : base.postingsAt(i))
+							if (remap[id] >= 0) {
+								if (n == ids.length)
+									ids = Arrays.copyOf(ids, n * 2);
+								ids[n++] = remap[id];
+							}
+						i++;
+					}
+					for (; j < pairCount && (int) (pairs[j] >>> 32) == trigram; j++) {
+						if (n == ids.length)
+							ids = Arrays.copyOf(ids, n * 2);
+						ids[n++] = (int) pairs[j];
+					}
+					if (n == 0)
+						continue;
+					if (trigramCount == trigrams.length) {
+						trigrams = Arrays.copyOf(trigrams, trigramCount * 2);
+						offsets = Arrays.copyOf(offsets, trigramCount * 2);
+						counts = Arrays.copyOf(counts, trigramCount * 2);
+					}
+					if (postingsOut.size() == Integer.MAX_VALUE)
+						throw new IOException("Index too large");
+					trigrams[trigramCount] = trigram;
+					offsets[trigramCount] = postingsOut.size();
+					counts[trigramCount++] = n;
+					postingCount += n;
+					for (int k = 0, previous = 0; k < n; previous = ids[k++])
+						for (int delta = ids[k] - previous;; delta >>>= 7) {
+							if (delta < 0x80) {
+								postingsOut.write(delta);
+								break;
+							}
+							postingsOut.write(delta & 0x7F | 0x80);
+						}
+				}
+			}
+
+			fileOut.writeInt(paths.size());
+			fileOut.writeLong(postingCount);
+			for (int id = 0; id < paths.size(); id++) {
+				fileOut.writeUTF(paths.get(id));
+				fileOut.writeLong(sizes.get(id));
+				fileOut.writeLong(modified.get(id));
+				fileOut.writeByte(flags[id]);
+			}
+			out.writeInt(fileTable.size());
+			fileTable.writeTo(out);
+			Files.copy(postingsFile, out);
+			Files.delete(postingsFile);
+			if (out.size() == Integer.MAX_VALUE)
+				throw new IOException("Index too large");
+			int tableStart = out.size();
+			for (int k = 0; k < trigramCount; k++) {
+				out.writeInt(trigrams[k]);
+				out.writeInt(offsets[k]);
+				out.writeInt(counts[k]);
+			}
+			out.writeInt(trigramCount);
+			out.writeInt(tableStart);
+		}
+		try {
+			Files.move(temporary, next, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(temporary, next, StandardCopyOption.REPLACE_EXISTING);
+		}
+		Segment merged = read(next);
+		generation++;
+		overlay.clear();
+		overlayTrigrams = 0;
+		state = new State(merged, Collections.emptyMap());
+		if (base != null)
+			try {
+				// fails where mapped files cannot be deleted; the next load deletes it then
+				Files.deleteIfExists(base.file);
+			} catch (IOException e) {
+			}
+	}
+}